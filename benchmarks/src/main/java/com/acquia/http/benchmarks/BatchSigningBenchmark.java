@@ -0,0 +1,94 @@
+package com.acquia.http.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acquia.http.HMACHttpRequestInterceptor;
+
+/**
+ * Signing of a batch of small requests: one process call per request, processAll in the calling
+ * thread, and processAll split across a ForkJoinPool
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchSigningBenchmark {
+
+    @Param({ "1000" })
+    public int batchSize;
+
+    private HMACHttpRequestInterceptor interceptor;
+
+    private List<HttpRequest> requests;
+
+    private List<HttpContext> contexts;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        this.interceptor = new HMACHttpRequestInterceptor(BenchmarkFixtures.REALM,
+            BenchmarkFixtures.ACCESS_KEY, BenchmarkFixtures.SECRET_KEY, "SHA256");
+        byte[] body = BenchmarkFixtures.createBody(256);
+        long timestamp = System.currentTimeMillis() / 1000L;
+        this.requests = new ArrayList<HttpRequest>(this.batchSize);
+        this.contexts = new ArrayList<HttpContext>(this.batchSize);
+        for (int i = 0; i < this.batchSize; i++) {
+            this.requests.add(BenchmarkFixtures.createHttpRequest(body, timestamp));
+            this.contexts.add(new BasicHttpContext());
+        }
+        this.pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public List<HttpContext> process() throws HttpException, IOException {
+        for (int i = 0; i < this.batchSize; i++) {
+            this.interceptor.process(this.requests.get(i), this.contexts.get(i));
+        }
+        return this.contexts;
+    }
+
+    @Benchmark
+    public List<HttpContext> processAll() throws HttpException, IOException {
+        this.interceptor.processAll(this.requests, this.contexts);
+        return this.contexts;
+    }
+
+    @Benchmark
+    public List<HttpContext> processAllForkJoin() throws HttpException, IOException {
+        this.interceptor.processAll(this.requests, this.contexts, this.pool);
+        return this.contexts;
+    }
+
+}
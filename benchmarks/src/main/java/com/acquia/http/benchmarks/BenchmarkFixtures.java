@@ -0,0 +1,151 @@
+package com.acquia.http.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.acquia.http.HMACAuthorizationHeader;
+import com.acquia.http.HMACMessageCreator;
+
+/**
+ * Requests and keys shared by the benchmarks
+ * 
+ * @author chris.nagy
+ *
+ */
+public class BenchmarkFixtures {
+
+    public static final String REALM = "Plexus";
+    public static final String ACCESS_KEY = "efdde334-fe7b-11e4-a322-1697f925ec7b";
+    public static final String SECRET_KEY = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+    public static final String VERSION = "2.0";
+
+    public static final String HOST = "example.acquia.com:3000";
+    public static final String PATH = "/register";
+    public static final String QUERY = "limit=10&order=desc";
+    public static final String CONTENT_TYPE = "application/json";
+
+    /**
+     * Create a body of random bytes
+     * 
+     * @param length
+     * @return
+     */
+    public static byte[] createBody(int length) {
+        byte[] body = new byte[length];
+        new Random(42).nextBytes(body);
+        return body;
+    }
+
+    /**
+     * Create an Authorization header without signature
+     * 
+     * @return
+     */
+    public static HMACAuthorizationHeader createAuthorizationHeader() {
+        return new HMACAuthorizationHeader(REALM, ACCESS_KEY, UUID.randomUUID().toString(),
+            VERSION);
+    }
+
+    /**
+     * Create a POST servlet request with the given body and Authorization header
+     * 
+     * @param body
+     * @param authHeader
+     * @param timestamp
+     * @return
+     */
+    public static MockHttpServletRequest createServletRequest(final byte[] body,
+            HMACAuthorizationHeader authHeader, long timestamp) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", PATH) {
+            @Override
+            public ServletInputStream getInputStream() {
+                //the mock stream reads one byte at a time, which would dominate the results
+                final ByteArrayInputStream bais = new ByteArrayInputStream(body);
+                return new ServletInputStream() {
+                    @Override
+                    public int read() {
+                        return bais.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        return bais.read(b, off, len);
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return bais.available() == 0;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener readListener) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        request.setQueryString(QUERY);
+        request.addHeader(HMACMessageCreator.PARAMETER_HOST, HOST);
+        request.addHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION, authHeader.toString());
+        request.addHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP,
+            Long.toString(timestamp));
+        if (body.length > 0) {
+            request.setContentType(CONTENT_TYPE);
+            request.addHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_CONTENT_SHA256,
+                sha256(body));
+        }
+        request.setContent(body);
+        return request;
+    }
+
+    /**
+     * Create a POST HttpRequest with the given body
+     * 
+     * @param body
+     * @param timestamp
+     * @return
+     */
+    public static HttpRequest createHttpRequest(byte[] body, long timestamp) {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST",
+            PATH + "?" + QUERY);
+        request.addHeader(HMACMessageCreator.PARAMETER_HOST, HOST);
+        request.addHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP,
+            Long.toString(timestamp));
+        if (body.length > 0) {
+            request.addHeader(HMACMessageCreator.PARAMETER_CONTENT_TYPE, CONTENT_TYPE);
+            request.addHeader(HMACMessageCreator.PARAMETER_CONTENT_LENGTH,
+                Integer.toString(body.length));
+            request.addHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_CONTENT_SHA256,
+                sha256(body));
+        }
+        request.setEntity(new ByteArrayEntity(body));
+        return request;
+    }
+
+    /**
+     * Base64 encoded SHA-256 of the body
+     * 
+     * @param body
+     * @return
+     */
+    public static String sha256(byte[] body) {
+        return Base64.encodeBase64String(DigestUtils.sha256(body));
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.acquia.http.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (all by default) with the GC profiler,
+ * so the allocation rate of each benchmark is reported next to its time
+ * 
+ * @author chris.nagy
+ *
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        Options options = new OptionsBuilder().parent(commandLineOptions).addProfiler(
+            GCProfiler.class).build();
+        new Runner(options).run();
+    }
+
+}
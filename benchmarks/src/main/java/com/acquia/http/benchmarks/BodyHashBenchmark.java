@@ -0,0 +1,97 @@
+package com.acquia.http.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.acquia.http.CharRequestWrapper;
+import com.acquia.http.DigestingHttpEntity;
+import com.acquia.http.HMACAuthorizationHeader;
+
+/**
+ * Buffering and hashing of request bodies of 0 B, 1 KB, 1 MB and 50 MB: on the server by
+ * CharRequestWrapper, and on the client by the HttpRequest variant of the message creator and by
+ * DigestingHttpEntity for a body in a file
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BodyHashBenchmark {
+
+    @Param({ "0", "1024", "1048576", "52428800" })
+    public int bodyLength;
+
+    private HMACMessageCreatorBenchmark.HttpRequestMessageCreator messageCreator;
+
+    private HMACAuthorizationHeader authHeader;
+
+    private MockHttpServletRequest servletRequest;
+
+    private HttpRequest httpRequest;
+
+    private File bodyFile;
+
+    private HttpEntity fileEntity;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] body = BenchmarkFixtures.createBody(this.bodyLength);
+        long timestamp = System.currentTimeMillis() / 1000L;
+        this.messageCreator = new HMACMessageCreatorBenchmark.HttpRequestMessageCreator();
+        this.authHeader = BenchmarkFixtures.createAuthorizationHeader();
+        this.servletRequest = BenchmarkFixtures.createServletRequest(body, this.authHeader,
+            timestamp);
+        this.httpRequest = BenchmarkFixtures.createHttpRequest(body, timestamp);
+
+        this.bodyFile = File.createTempFile("body-hash-benchmark-", ".tmp");
+        Files.write(this.bodyFile.toPath(), body);
+        this.fileEntity = new FileEntity(this.bodyFile, ContentType.APPLICATION_OCTET_STREAM);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.bodyFile.delete();
+    }
+
+    @Benchmark
+    public byte[] charRequestWrapper() throws IOException {
+        return new CharRequestWrapper(this.servletRequest).getBodySha256();
+    }
+
+    @Benchmark
+    public String httpRequest() throws HttpException, IOException {
+        return this.messageCreator.createSignableRequestMessage(this.httpRequest, this.authHeader);
+    }
+
+    @Benchmark
+    public byte[] fileEntity() throws IOException {
+        return new DigestingHttpEntity(this.fileEntity).getContentSha256();
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.acquia.http.benchmarks;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acquia.http.HMACAuthorizationHeader;
+
+/**
+ * Parsing of the Authorization header, single-pass parser against the split-based parser of 1.0.0,
+ * and building of the header
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HMACAuthorizationHeaderBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean customHeaders;
+
+    private HMACAuthorizationHeader authHeader;
+
+    private String authString;
+
+    @Setup
+    public void setup() {
+        this.authHeader = new HMACAuthorizationHeader("Plexus",
+            "efdde334-fe7b-11e4-a322-1697f925ec7b", "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd", "2.0");
+        if (this.customHeaders) {
+            this.authHeader.setHeaders(Arrays.asList("X-Custom-Signer1", "X-Custom-Signer2"));
+        }
+        this.authHeader.setSignature("4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=");
+        this.authString = this.authHeader.toString();
+    }
+
+    @Benchmark
+    public HMACAuthorizationHeader parse() throws ParseException {
+        return HMACAuthorizationHeader.parse(this.authString);
+    }
+
+    @Benchmark
+    public HMACAuthorizationHeader legacySplit() {
+        return LegacyAuthorizationHeaderParser.getAuthorizationHeaderObject(this.authString);
+    }
+
+    @Benchmark
+    public String toStringHeader() {
+        return this.authHeader.toString();
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.acquia.http.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.acquia.http.FixedHMACClock;
+import com.acquia.http.HMACAlgorithmFactory;
+import com.acquia.http.HMACAuthorizationHeader;
+import com.acquia.http.HMACClock;
+import com.acquia.http.HMACFilter;
+import com.acquia.http.HMACMessageCreator;
+import com.acquia.http.SecretKeyException;
+
+/**
+ * End-to-end HMACFilter.doFilter: verification of a signed request and signing of the response
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HMACFilterBenchmark {
+
+    @Param({ "0", "1024" })
+    public int bodyLength;
+
+    private HMACFilter filter;
+
+    private MockHttpServletRequest request;
+
+    private FilterChain filterChain;
+
+    @Setup
+    public void setup() throws Exception {
+        final long timestamp = System.currentTimeMillis() / 1000L;
+        this.filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                if (BenchmarkFixtures.ACCESS_KEY.equals(accessKey)) {
+                    return BenchmarkFixtures.SECRET_KEY;
+                }
+                throw new SecretKeyException(SecretKeyException.NOT_FOUND);
+            }
+
+            @Override
+            protected HMACClock createClock() {
+                //the signed request must stay within tolerance however long the run is
+                return new FixedHMACClock(timestamp);
+            }
+        };
+        MockFilterConfig filterConfig = new MockFilterConfig();
+        filterConfig.addInitParameter(HMACFilter.FILTER_CONFIG_ALGORITHM, "SHA256");
+        //the same signed request is sent on every invocation; NonceStoreBenchmark covers replay checks
+        filterConfig.addInitParameter(HMACFilter.FILTER_CONFIG_NONCE_REPLAY_CHECK, "false");
+        this.filter.init(filterConfig);
+
+        //sign the request the way a client does
+        byte[] body = BenchmarkFixtures.createBody(this.bodyLength);
+        HMACAuthorizationHeader authHeader = BenchmarkFixtures.createAuthorizationHeader();
+        MockHttpServletRequest unsignedRequest = BenchmarkFixtures.createServletRequest(body,
+            authHeader, timestamp);
+        String signableRequestMessage = new HMACMessageCreator().createSignableRequestMessage(
+            unsignedRequest);
+        authHeader.setSignature(new HMACAlgorithmFactory().createAlgorithm("SHA256").encryptMessage(
+            BenchmarkFixtures.SECRET_KEY, signableRequestMessage));
+        this.request = BenchmarkFixtures.createServletRequest(body, authHeader, timestamp);
+
+        final byte[] responseBody = BenchmarkFixtures.createBody(this.bodyLength);
+        this.filterChain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException, ServletException {
+                response.getOutputStream().write(responseBody);
+            }
+        };
+    }
+
+    @Benchmark
+    public String doFilter() throws IOException, ServletException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        this.filter.doFilter(this.request, response, this.filterChain);
+        String serverSignature = response.getHeader(
+            HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256);
+        if (serverSignature == null) {
+            throw new IllegalStateException("Request was rejected: " + response.getErrorMessage());
+        }
+        return serverSignature;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.acquia.http.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.acquia.http.HMACAuthorizationHeader;
+import com.acquia.http.HMACMessageCreator;
+
+/**
+ * Creation of the signable request message from a servlet request and from an HttpRequest,
+ * both with a 1 KB body
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HMACMessageCreatorBenchmark {
+
+    /**
+     * Gives access to the HttpRequest variant
+     */
+    static class HttpRequestMessageCreator extends HMACMessageCreator {
+        @Override
+        public String createSignableRequestMessage(HttpRequest request,
+                HMACAuthorizationHeader authHeader) throws HttpException, IOException {
+            return super.createSignableRequestMessage(request, authHeader);
+        }
+    }
+
+    private HttpRequestMessageCreator messageCreator;
+
+    private HMACAuthorizationHeader authHeader;
+
+    private MockHttpServletRequest servletRequest;
+
+    private HttpRequest httpRequest;
+
+    @Setup
+    public void setup() {
+        byte[] body = BenchmarkFixtures.createBody(1024);
+        long timestamp = System.currentTimeMillis() / 1000L;
+        this.messageCreator = new HttpRequestMessageCreator();
+        this.authHeader = BenchmarkFixtures.createAuthorizationHeader();
+        this.servletRequest = BenchmarkFixtures.createServletRequest(body, this.authHeader,
+            timestamp);
+        this.httpRequest = BenchmarkFixtures.createHttpRequest(body, timestamp);
+    }
+
+    @Benchmark
+    public String servletRequest() throws IOException {
+        return this.messageCreator.createSignableRequestMessage(this.servletRequest);
+    }
+
+    @Benchmark
+    public String httpRequest() throws HttpException, IOException {
+        return this.messageCreator.createSignableRequestMessage(this.httpRequest, this.authHeader);
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.acquia.http.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.acquia.http.HMACAuthorizationHeader;
+
+/**
+ * The split-based HMACAuthorizationHeader.getAuthorizationHeaderObject of 1.0.0, kept as the baseline
+ * of HMACAuthorizationHeaderBenchmark
+ * 
+ * @author chris.nagy
+ *
+ */
+public class LegacyAuthorizationHeaderParser {
+
+    public static HMACAuthorizationHeader getAuthorizationHeaderObject(String authString) {
+        int indexSpace = authString.indexOf(" ");
+        String authContent = authString.substring(indexSpace + 1);
+        String[] authParams = authContent.split(",");
+
+        Map<String, String> theMap = new HashMap<String, String>();
+        for (String param : authParams) {
+            int indexDelimiter = param.indexOf("="); //first index of delimiter
+            String key = param.substring(0, indexDelimiter);
+            String val = param.substring(indexDelimiter + 1);
+            theMap.put(key.toLowerCase(), val.substring(1, val.length() - 1)); //remove "" from val
+        }
+
+        HMACAuthorizationHeader result = new HMACAuthorizationHeader(theMap.get("realm"),
+            theMap.get("id"), theMap.get("nonce"), theMap.get("version"));
+
+        //check headers
+        String headers = theMap.get("headers");
+        if (headers != null && headers.length() > 0) {
+            result.setHeaders(Arrays.asList(headers.split(
+                HMACAuthorizationHeader.DELIMITER_CUSTOM_SUBHEADER)));
+        }
+
+        //check signature
+        String signature = theMap.get("signature");
+        if (signature != null && signature.length() > 0) {
+            result.setSignature(signature);
+        }
+
+        if (result.isAuthorizationHeaderValid()) {
+            return result;
+        } else {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.acquia.http.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acquia.http.InMemoryNonceStore;
+import com.acquia.http.NonceStore;
+
+/**
+ * Inserts of new nonces into the in-memory replay detector from all cores
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class NonceStoreBenchmark {
+
+    private static final int NONCES_PER_THREAD = 1 << 16;
+
+    /**
+     * Nonces of one thread; a new timestamp is used each time they have all been sent,
+     * so every insert is a new nonce
+     */
+    @State(Scope.Thread)
+    public static class ThreadNonces {
+        String[] nonces = new String[NONCES_PER_THREAD];
+        int index = 0;
+        long timestamp = System.currentTimeMillis() / 1000L;
+
+        @Setup
+        public void setup() {
+            for (int i = 0; i < this.nonces.length; i++) {
+                this.nonces[i] = UUID.randomUUID().toString();
+            }
+        }
+
+        String next() {
+            if (this.index == this.nonces.length) {
+                this.index = 0;
+                this.timestamp += 60;
+            }
+            return this.nonces[this.index++];
+        }
+    }
+
+    private NonceStore nonceStore;
+
+    @Setup
+    public void setup() {
+        this.nonceStore = new InMemoryNonceStore(900);
+    }
+
+    @Benchmark
+    public boolean add(ThreadNonces threadNonces) {
+        return this.nonceStore.add(threadNonces.next(), threadNonces.timestamp);
+    }
+
+}
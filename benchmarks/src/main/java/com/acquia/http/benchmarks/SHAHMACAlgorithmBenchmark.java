@@ -0,0 +1,65 @@
+package com.acquia.http.benchmarks;
+
+import java.security.SignatureException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acquia.http.HMACAlgorithm;
+import com.acquia.http.HMACAlgorithmFactory;
+import com.acquia.http.HMACSigningKey;
+
+/**
+ * Encryption of a typical signable request message with each algorithm
+ * 
+ * @author chris.nagy
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SHAHMACAlgorithmBenchmark {
+
+    @Param({ "SHA1", "SHA256", "SHA384", "SHA512" })
+    public String algorithmName;
+
+    private HMACAlgorithm algorithm;
+
+    private HMACSigningKey signingKey;
+
+    private String message;
+
+    @Setup
+    public void setup() throws SignatureException {
+        this.algorithm = new HMACAlgorithmFactory().createAlgorithm(this.algorithmName);
+        this.signingKey = this.algorithm.createSigningKey(BenchmarkFixtures.SECRET_KEY);
+        this.message = "POST\nexample.acquia.com:3000\n/register\nlimit=10&order=desc\n"
+                + "id=efdde334-fe7b-11e4-a322-1697f925ec7b&nonce=64d02132-40bf-4fce-85bf-3f1bb1bfe7dd"
+                + "&realm=Plexus&version=2.0\n1449578521\napplication/json\n"
+                + "6paRNxUA7WawFxJpRp4cEixDjHq3jfIKX072k9slalo=";
+    }
+
+    @Benchmark
+    public String encryptMessage() throws SignatureException {
+        return this.algorithm.encryptMessage(BenchmarkFixtures.SECRET_KEY, this.message);
+    }
+
+    @Benchmark
+    public String encryptMessageWithSigningKey() throws SignatureException {
+        return this.algorithm.encryptMessage(this.signingKey, this.message);
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.acquia.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads and hashes a request body without blocking, as the container makes it available.
+ * 
+ * Once the whole body is read, the reader stores itself as the request attribute REQUEST_ATTRIBUTE
+ * and dispatches the request again, so it can be verified from the buffered body. Like
+ * CharRequestWrapper, a body longer than the spill threshold is written to a temporary file.
+ * 
+ * If the request times out or fails before the whole body is read, the temporary file is released
+ * and the request is completed; a timeout is answered with 408 Request Timeout.
+ * 
+ * @author chris.nagy
+ *
+ */
+class AsyncRequestBodyReader implements ReadListener {
+
+    private static Logger logger = LogManager.getLogger(AsyncRequestBodyReader.class);
+
+    /**
+     * Name of the request attribute that holds the reader once the body is read
+     */
+    static final String REQUEST_ATTRIBUTE = AsyncRequestBodyReader.class.getName();
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Helper class to release the body when the request times out or fails while it is read
+     * 
+     * @author chris.nagy
+     *
+     */
+    private class BodyAsyncListener implements AsyncListener {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            //nothing to do
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            String message = "Error: Request body was not received in time.";
+            logger.error(message);
+            AsyncRequestBodyReader.this.fail(HttpServletResponse.SC_REQUEST_TIMEOUT, message);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            logger.error("Fail to read request body", event.getThrowable());
+            AsyncRequestBodyReader.this.fail(0, null);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //nothing to do
+        }
+    }
+
+    private final AsyncContext asyncContext;
+
+    private final ServletInputStream inputStream;
+
+    private final long maxHeapLength;
+
+    private final MessageDigest digest;
+
+    /**
+     * The body read so far; or the chunk being written once the body is spilled
+     */
+    private byte[] buffer;
+
+    private int position = 0;
+
+    private File spillFile;
+
+    private OutputStream spillStream;
+
+    private long spillLength = 0;
+
+    /**
+     * The body once it has been read into memory; null if it has been spilled
+     */
+    private ByteBuffer body;
+
+    /**
+     * The temporary file of the body once it has been spilled
+     */
+    private FileChannel spillChannel;
+
+    private byte[] bodySha256;
+
+    /**
+     * Whether the request has been dispatched with the body, or completed without it
+     */
+    private volatile boolean isDone = false;
+
+    /**
+     * What the headers checked before the body was read have established
+     */
+    private HMACVerificationContext verificationContext;
+
+    /**
+     * Constructor
+     * 
+     * @param asyncContext; context of the request whose body is read
+     * @param spillThreshold; maximum number of bytes kept in memory, or CharRequestWrapper.NO_SPILL_THRESHOLD
+     * @throws IOException
+     */
+    AsyncRequestBodyReader(AsyncContext asyncContext, long spillThreshold) throws IOException {
+        this.asyncContext = asyncContext;
+        ServletRequest request = asyncContext.getRequest();
+        this.inputStream = request.getInputStream();
+        this.maxHeapLength = spillThreshold < 0 ? Integer.MAX_VALUE : Math.min(spillThreshold,
+            Integer.MAX_VALUE);
+        this.digest = CharRequestWrapper.createSha256Digest();
+
+        int contentLength = request.getContentLength();
+        this.buffer = new byte[CharRequestWrapper.getInitialBufferSize(contentLength,
+            this.maxHeapLength)];
+    }
+
+    /**
+     * Get the verification context established before the body was read
+     * 
+     * @return the context; or null if none has been set
+     */
+    HMACVerificationContext getVerificationContext() {
+        return this.verificationContext;
+    }
+
+    /**
+     * Set the verification context established before the body was read
+     * 
+     * @param verificationContext
+     */
+    void setVerificationContext(HMACVerificationContext verificationContext) {
+        this.verificationContext = verificationContext;
+    }
+
+    /**
+     * Start reading; the container calls back as the body arrives
+     */
+    void start() {
+        this.asyncContext.addListener(new BodyAsyncListener());
+        this.inputStream.setReadListener(this);
+    }
+
+    /**
+     * Get the reader stored in the request
+     * 
+     * @param request
+     * @return the reader; or null if the request has none
+     */
+    static AsyncRequestBodyReader getBodyReader(ServletRequest request) {
+        Object bodyReader = request.getAttribute(REQUEST_ATTRIBUTE);
+        if (bodyReader instanceof AsyncRequestBodyReader) {
+            return (AsyncRequestBodyReader) bodyReader;
+        }
+        return null;
+    }
+
+    /**
+     * Create a request wrapper around the body that has been read
+     * 
+     * @param request
+     * @return
+     */
+    CharRequestWrapper createRequestWrapper(HttpServletRequest request) {
+        if (this.spillChannel != null) {
+            return new CharRequestWrapper(request, this.spillChannel, this.spillLength,
+                this.bodySha256);
+        }
+        return new CharRequestWrapper(request, this.body, this.bodySha256);
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        if (this.isDone) {
+            return;
+        }
+        //read only while a read does not block; the container calls again when there is more
+        while (this.inputStream.isReady() && !this.inputStream.isFinished()) {
+            if (this.position == this.buffer.length) {
+                if (this.spillStream != null) {
+                    this.writeChunk();
+                } else if (this.buffer.length < this.maxHeapLength) {
+                    this.buffer = Arrays.copyOf(this.buffer, (int) Math.min(Math.max(
+                        this.buffer.length * 2L, DEFAULT_BUFFER_SIZE), this.maxHeapLength));
+                } else {
+                    this.startSpill();
+                }
+            }
+
+            int length = this.inputStream.read(this.buffer, this.position,
+                this.buffer.length - this.position);
+            if (length == -1) {
+                break;
+            }
+            this.digest.update(this.buffer, this.position, length);
+            this.position += length;
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        if (this.isDone) {
+            return;
+        }
+        if (this.spillStream != null) {
+            try {
+                this.writeChunk();
+                this.spillStream.close();
+                this.spillStream = null;
+                this.spillChannel = CharRequestWrapper.openSpillFile(this.spillFile);
+            } finally {
+                this.deleteSpill();
+            }
+        } else {
+            this.body = ByteBuffer.wrap(this.buffer, 0, this.position).slice();
+        }
+        this.buffer = null;
+        this.bodySha256 = this.digest.digest();
+
+        //the request wrapper created on dispatch closes the temporary file
+        synchronized (this) {
+            if (this.isDone) {
+                return;
+            }
+            this.isDone = true;
+        }
+        this.asyncContext.getRequest().setAttribute(REQUEST_ATTRIBUTE, this);
+        this.asyncContext.dispatch();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.error("Fail to read request body", t);
+        try {
+            this.fail(0, null);
+        } catch(IOException e) {
+            logger.warn("Fail to complete request", e);
+        }
+    }
+
+    /**
+     * Release the body and complete the request, unless it has already been dispatched or completed
+     * 
+     * @param status; status of the error sent to the client, or 0 to send none
+     * @param message; message of the error
+     * @throws IOException
+     */
+    private void fail(int status, String message) throws IOException {
+        synchronized (this) {
+            if (this.isDone) {
+                return;
+            }
+            this.isDone = true;
+        }
+        this.deleteSpill();
+        if (this.spillChannel != null) {
+            try {
+                this.spillChannel.close();
+            } catch(IOException e) {
+                logger.warn("Fail to close request body file", e);
+            }
+            this.spillChannel = null;
+        }
+        this.buffer = null;
+        this.body = null;
+
+        try {
+            ServletResponse response = this.asyncContext.getResponse();
+            if (status != 0 && response instanceof HttpServletResponse
+                    && !response.isCommitted()) {
+                ((HttpServletResponse) response).sendError(status, message);
+            }
+        } finally {
+            this.asyncContext.complete();
+        }
+    }
+
+    /**
+     * Move the body read so far into a temporary file; from now on the buffer only holds one chunk
+     * 
+     * @throws IOException
+     */
+    private void startSpill() throws IOException {
+        this.spillFile = CharRequestWrapper.createSpillFile();
+        this.spillStream = new FileOutputStream(this.spillFile);
+        this.writeChunk();
+        this.buffer = new byte[SPILL_BUFFER_SIZE];
+    }
+
+    /**
+     * Write the buffer to the temporary file
+     * 
+     * @throws IOException
+     */
+    private void writeChunk() throws IOException {
+        this.spillStream.write(this.buffer, 0, this.position);
+        this.spillLength += this.position;
+        this.position = 0;
+    }
+
+    private void deleteSpill() {
+        if (this.spillStream != null) {
+            try {
+                this.spillStream.close();
+            } catch(IOException e) {
+                logger.warn("Fail to close request body file", e);
+            }
+            this.spillStream = null;
+        }
+        if (this.spillFile != null) {
+            CharRequestWrapper.deleteSpillFile(this.spillFile);
+            this.spillFile = null;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.acquia.http;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a signed response body without blocking, as the client accepts it,
+ * and completes the request once everything is written.
+ * 
+ * @author chris.nagy
+ *
+ */
+class AsyncResponseWriter implements WriteListener {
+
+    private static Logger logger = LogManager.getLogger(AsyncResponseWriter.class);
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream outputStream;
+
+    private final byte[] body;
+
+    private int position = 0;
+
+    /**
+     * Constructor
+     * 
+     * @param asyncContext; context of the request that is responded to
+     * @param outputStream; output stream of the real response
+     * @param body; response body
+     */
+    AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream outputStream, byte[] body) {
+        this.asyncContext = asyncContext;
+        this.outputStream = outputStream;
+        this.body = body;
+    }
+
+    /**
+     * Start writing; the container calls back whenever the client can take more
+     */
+    void start() {
+        this.outputStream.setWriteListener(this);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (this.outputStream.isReady()) {
+            if (this.position == this.body.length) {
+                this.asyncContext.complete();
+                return;
+            }
+            int length = Math.min(CHUNK_SIZE, this.body.length - this.position);
+            this.outputStream.write(this.body, this.position, length);
+            this.position += length;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.error("Fail to write response body", t);
+        this.asyncContext.complete();
+    }
+
+}
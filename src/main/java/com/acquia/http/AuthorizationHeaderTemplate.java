@@ -0,0 +1,141 @@
+package com.acquia.http;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of the Authorization header of one client that are the same for every request: realm,
+ * id, version and custom header names, already serialized and URL-escaped.
+ * 
+ * HMACHttpRequestInterceptor creates one for its own credentials; the headers it creates from the
+ * template only add their nonce and signature to the precomputed parts.
+ * 
+ * @author chris.nagy
+ *
+ */
+final class AuthorizationHeaderTemplate {
+
+    private final String realm;
+    private final String id;
+    private final String version;
+    private final List<String> headers;
+
+    /**
+     * Authorization up to the value of nonce: acquia-http-hmac realm="...",id="...",nonce="
+     */
+    private final String authorizationPrefix;
+
+    /**
+     * Authorization after the value of nonce, up to the signature: ",version="..."[,headers="..."]
+     */
+    private final String authorizationSuffix;
+
+    /**
+     * Signable parameters up to the value of nonce: id=...&nonce=
+     */
+    private final String signablePrefix;
+
+    /**
+     * Signable parameters after the value of nonce: &realm=...&version=...
+     */
+    private final String signableSuffix;
+
+    /**
+     * Constructor
+     * 
+     * @param realm
+     * @param id
+     * @param version
+     * @param headers; custom header names, or null
+     * @throws UnsupportedEncodingException
+     */
+    AuthorizationHeaderTemplate(String realm, String id, String version, List<String> headers)
+            throws UnsupportedEncodingException {
+        this.realm = realm;
+        this.id = id;
+        this.version = version;
+        this.headers = headers == null ? null
+                : Collections.unmodifiableList(new ArrayList<String>(headers));
+
+        HMACAuthorizationHeader authHeader = new HMACAuthorizationHeader(realm, id, "", version,
+            this.headers, null);
+        String authorization = authHeader.getAuthorizationString().toString();
+        this.authorizationPrefix = HMACAuthorizationHeader.PROVIDER + " realm=\"" + realm
+                + "\",id=\"" + id + "\",nonce=\"";
+        this.authorizationSuffix = authorization.substring(this.authorizationPrefix.length());
+
+        this.signablePrefix = "id=" + HMACMessageCreator.escapeProper(id) + "&nonce=";
+        this.signableSuffix = "&realm=" + HMACMessageCreator.escapeProper(realm) + "&version="
+                + HMACMessageCreator.escapeProper(version);
+    }
+
+    /**
+     * Check if this is the template of the given client
+     * 
+     * @param realm
+     * @param id
+     * @param headers
+     * @return
+     */
+    boolean isFor(String realm, String id, List<String> headers) {
+        return this.realm.equals(realm) && this.id.equals(id) && (this.headers == null
+                ? headers == null || headers.isEmpty() : this.headers.equals(headers));
+    }
+
+    /**
+     * Create the Authorization header of a request; it gets its own, modifiable list of custom
+     * header names
+     * 
+     * @param nonce
+     * @return
+     */
+    HMACAuthorizationHeader createAuthorizationHeader(String nonce) {
+        HMACAuthorizationHeader result = new HMACAuthorizationHeader(this.realm, this.id, nonce,
+            this.version, this.headers == null ? null : new ArrayList<String>(this.headers),
+            /*signature*/null);
+        result.setTemplate(this);
+        return result;
+    }
+
+    /**
+     * Check if the given header still has the values of this template
+     * 
+     * @param authHeader
+     * @return
+     */
+    boolean isTemplateOf(HMACAuthorizationHeader authHeader) {
+        return this.realm == authHeader.getRealm() && this.id == authHeader.getId()
+                && this.version == authHeader.getVersion()
+                && (this.headers == null ? authHeader.getHeaders() == null
+                        : this.headers.equals(authHeader.getHeaders()));
+    }
+
+    /**
+     * Write the Authorization of a request
+     * 
+     * @param result
+     * @param nonce
+     * @param signature; omitted if null or length 0
+     */
+    void appendAuthorization(StringBuilder result, String nonce, String signature) {
+        result.append(this.authorizationPrefix).append(nonce).append(this.authorizationSuffix);
+        if (signature != null && signature.length() > 0) {
+            result.append(",signature=\"").append(signature).append("\"");
+        }
+    }
+
+    /**
+     * Write the Authorization parameters of the signable request message
+     * 
+     * @param result
+     * @param escapedNonce; URL-escaped nonce
+     * @throws IOException
+     */
+    void appendSignableParameters(Appendable result, String escapedNonce) throws IOException {
+        result.append(this.signablePrefix).append(escapedNonce).append(this.signableSuffix);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.acquia.http;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HMACClock whose time is read from the system clock by a background daemon thread, so that
+ * reading the time is a single volatile read.
+ * 
+ * The time lags the system clock by at most the tick period, which is negligible next to the
+ * timestamp tolerance. Once shut down, the clock reads the system clock on every call.
+ * 
+ * Whoever creates the clock must shut it down once it is no longer used: HMACFilter and
+ * HMACHttpServlet do so in destroy; otherwise the thread outlives a redeployed web application.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class CachedHMACClock implements HMACClock {
+
+    /**
+     * Default number of milliseconds between two reads of the system clock
+     */
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    private final ScheduledExecutorService ticker;
+
+    private volatile long currentUnixTime;
+
+    private volatile boolean isShutdown = false;
+
+    /**
+     * Constructor; starts the background thread
+     * 
+     * @param tickMillis; number of milliseconds between two reads of the system clock
+     */
+    public CachedHMACClock(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick period must be positive.");
+        }
+        this.currentUnixTime = System.currentTimeMillis() / 1000L;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hmac-clock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                CachedHMACClock.this.currentUnixTime = System.currentTimeMillis() / 1000L;
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long getCurrentUnixTime() {
+        if (this.isShutdown) {
+            return System.currentTimeMillis() / 1000L;
+        }
+        return this.currentUnixTime;
+    }
+
+    /**
+     * Check if the background thread has been stopped
+     * 
+     * @return
+     */
+    boolean isShutdown() {
+        return this.isShutdown;
+    }
+
+    /**
+     * Stop the background thread
+     */
+    public void shutdown() {
+        this.isShutdown = true;
+        this.ticker.shutdownNow();
+    }
+
+}
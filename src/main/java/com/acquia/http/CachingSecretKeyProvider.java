@@ -0,0 +1,279 @@
+package com.acquia.http;
+
+import java.security.SignatureException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SecretKeyProvider that keeps the secret keys looked up by another provider.
+ * 
+ * At most maximumSize access keys are kept; the oldest entry is evicted first. A secret key is kept
+ * for timeToLive; an access key that is not found (SecretKeyException.NOT_FOUND) is remembered for
+ * notFoundTimeToLive. Other failures are not kept. Concurrent lookups of the same access key wait for
+ * a single lookup by the loader. The signing key decoded from a secret key is kept with it.
+ * 
+ * With a maximumSize of 0 every secret key is looked up again, but the signing keys are still kept:
+ * those of the most recently used access keys are only decoded again if their secret key changes.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class CachingSecretKeyProvider implements SecretKeyProvider {
+
+    /**
+     * Number of access keys whose signing keys are kept, for each algorithm, when no secret key is kept
+     */
+    public static final int DEFAULT_SIGNING_KEY_CACHE_SIZE = 1024;
+
+    /**
+     * Signing key decoded for an algorithm
+     */
+    private static class SigningKeyEntry {
+        final HMACAlgorithm algorithm;
+        final HMACSigningKey signingKey;
+
+        SigningKeyEntry(HMACAlgorithm algorithm, HMACSigningKey signingKey) {
+            this.algorithm = algorithm;
+            this.signingKey = signingKey;
+        }
+    }
+
+    /**
+     * Lookup of one access key; loaded once, then valid until it expires
+     */
+    private static class Entry {
+        final String accessKey;
+        final FutureTask<String> lookup;
+        volatile boolean loaded = false;
+        volatile long expiresAt;
+        volatile SigningKeyEntry signingKeyEntry;
+
+        Entry(final String accessKey, final SecretKeyProvider loader) {
+            this.accessKey = accessKey;
+            this.lookup = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws SecretKeyException {
+                    return loader.getSecretKey(accessKey);
+                }
+            });
+        }
+
+        boolean isExpired(long now) {
+            return this.loaded && now - this.expiresAt >= 0;
+        }
+    }
+
+    private final SecretKeyProvider loader;
+
+    private final int maximumSize;
+
+    private final long timeToLiveNanos;
+
+    private final long notFoundTimeToLiveNanos;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Entries in the order they were added, for eviction; guarded by itself. Entries are only added
+     * and removed when a secret key is looked up or forgotten, and in constant time.
+     */
+    private final LinkedHashSet<Entry> insertionOrder = new LinkedHashSet<Entry>();
+
+    /**
+     * Signing keys of each algorithm, when no secret key is kept
+     */
+    private final ConcurrentMap<HMACAlgorithm, SigningKeyCache> signingKeyCaches = new ConcurrentHashMap<HMACAlgorithm, SigningKeyCache>();
+
+    /**
+     * Constructor
+     * 
+     * @param loader; provider that looks up the secret keys that are not kept
+     * @param maximumSize; maximum number of access keys kept; 0 to keep nothing
+     * @param timeToLive; how long a secret key is kept
+     * @param notFoundTimeToLive; how long an unknown access key is remembered
+     * @param unit; unit of timeToLive and notFoundTimeToLive
+     */
+    public CachingSecretKeyProvider(SecretKeyProvider loader, int maximumSize, long timeToLive,
+            long notFoundTimeToLive, TimeUnit unit) {
+        if (loader == null) {
+            throw new IllegalArgumentException("Loader must not be null.");
+        }
+        if (maximumSize < 0 || timeToLive < 0 || notFoundTimeToLive < 0) {
+            throw new IllegalArgumentException("Cache size and times must not be negative.");
+        }
+        this.loader = loader;
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.notFoundTimeToLiveNanos = unit.toNanos(notFoundTimeToLive);
+    }
+
+    @Override
+    public String getSecretKey(String accessKey) throws SecretKeyException {
+        if (this.maximumSize == 0) {
+            return this.loader.getSecretKey(accessKey);
+        }
+        return this.getSecretKey(this.getEntry(accessKey));
+    }
+
+    /**
+     * Returns the signing key of the secret key for the given access key;
+     * the signing key is only decoded again after the secret key is looked up again
+     * 
+     * @param accessKey
+     * @param algorithm; algorithm that creates the signing key
+     * @return
+     * @throws SecretKeyException if the access key is unknown or the secret key cannot be retrieved
+     * @throws SignatureException if the secret key cannot be decoded
+     */
+    public HMACSigningKey getSigningKey(String accessKey, HMACAlgorithm algorithm)
+            throws SecretKeyException, SignatureException {
+        if (this.maximumSize == 0) {
+            String secretKey = this.loader.getSecretKey(accessKey);
+            SigningKeyCache signingKeyCache = this.signingKeyCaches.get(algorithm);
+            if (signingKeyCache == null) {
+                signingKeyCache = new SigningKeyCache(algorithm, DEFAULT_SIGNING_KEY_CACHE_SIZE);
+                SigningKeyCache existingCache = this.signingKeyCaches.putIfAbsent(algorithm,
+                    signingKeyCache);
+                if (existingCache != null) {
+                    signingKeyCache = existingCache;
+                }
+            }
+            return signingKeyCache.getSigningKey(accessKey, secretKey);
+        }
+
+        Entry entry = this.getEntry(accessKey);
+        String secretKey = this.getSecretKey(entry);
+        SigningKeyEntry signingKeyEntry = entry.signingKeyEntry;
+        if (signingKeyEntry == null || signingKeyEntry.algorithm != algorithm) {
+            signingKeyEntry = new SigningKeyEntry(algorithm, algorithm.createSigningKey(secretKey));
+            entry.signingKeyEntry = signingKeyEntry;
+        }
+        return signingKeyEntry.signingKey;
+    }
+
+    /**
+     * Forget the secret key of the given access key
+     * 
+     * @param accessKey
+     */
+    public void invalidate(String accessKey) {
+        Entry entry = this.entries.remove(accessKey);
+        if (entry != null) {
+            synchronized (this.insertionOrder) {
+                this.insertionOrder.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Get the number of access keys kept
+     * 
+     * @return
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get the valid entry of the access key, adding a new one if there is none
+     * 
+     * @param accessKey
+     * @return
+     */
+    private Entry getEntry(String accessKey) {
+        while (true) {
+            Entry entry = this.entries.get(accessKey);
+            if (entry != null && !entry.isExpired(System.nanoTime())) {
+                return entry;
+            }
+
+            Entry newEntry = new Entry(accessKey, this.loader);
+            boolean isAdded = entry == null ? this.entries.putIfAbsent(accessKey, newEntry) == null
+                    : this.entries.replace(accessKey, entry, newEntry);
+            if (isAdded) {
+                synchronized (this.insertionOrder) {
+                    if (entry != null) {
+                        this.insertionOrder.remove(entry);
+                    }
+                    //unless another thread has already removed it again
+                    if (this.entries.get(accessKey) == newEntry) {
+                        this.insertionOrder.add(newEntry);
+                    }
+                    this.evict();
+                }
+                return newEntry;
+            }
+            //another thread added an entry first; use that one
+        }
+    }
+
+    /**
+     * Get the secret key of the entry, looking it up if no other thread does
+     * 
+     * @param entry
+     * @return
+     * @throws SecretKeyException
+     */
+    private String getSecretKey(Entry entry) throws SecretKeyException {
+        if (!entry.loaded) {
+            entry.lookup.run(); //does nothing if the lookup has already started
+        }
+
+        try {
+            String secretKey = entry.lookup.get();
+            this.setLoaded(entry, this.timeToLiveNanos);
+            return secretKey;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecretKeyException(SecretKeyException.CANNOT_RETRIEVE);
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SecretKeyException
+                    && SecretKeyException.NOT_FOUND.equals(cause.getMessage())) {
+                this.setLoaded(entry, this.notFoundTimeToLiveNanos);
+                throw new SecretKeyException(cause.getMessage());
+            }
+
+            //other failures may not last; let the next request look it up again
+            if (this.entries.remove(entry.accessKey, entry)) {
+                synchronized (this.insertionOrder) {
+                    this.insertionOrder.remove(entry);
+                }
+            }
+            if (cause instanceof SecretKeyException) {
+                throw new SecretKeyException(cause.getMessage());
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SecretKeyException(SecretKeyException.CANNOT_RETRIEVE);
+        }
+    }
+
+    private void setLoaded(Entry entry, long timeToLiveNanos) {
+        if (!entry.loaded) {
+            entry.expiresAt = System.nanoTime() + timeToLiveNanos;
+            entry.loaded = true;
+        }
+    }
+
+    /**
+     * Remove the oldest entries while there are too many; called while holding insertionOrder
+     */
+    private void evict() {
+        Iterator<Entry> oldest = this.insertionOrder.iterator();
+        while (this.insertionOrder.size() > this.maximumSize && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            oldest.remove();
+            this.entries.remove(entry.accessKey, entry);
+        }
+    }
+
+}
@@ -2,12 +2,22 @@ package com.acquia.http;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
@@ -15,13 +25,28 @@ import javax.servlet.http.HttpServletRequestWrapper;
 /**
  * The main class to allow modifications to request body
  * 
+ * The request body is read once into a single buffer, and its SHA-256 hash is calculated while it is read.
+ * The body can then be consumed again any number of times without being copied.
+ * A body longer than the spill threshold is kept in a temporary file instead of the heap, and read
+ * back through its FileChannel; close the wrapper to release the file once the request is done.
+ * 
  * @author aric.tatan
  *
  */
-public class CharRequestWrapper extends HttpServletRequestWrapper {
+public class CharRequestWrapper extends HttpServletRequestWrapper implements Closeable {
 
     public static final String ENCODING_UTF_8 = "UTF-8";
 
+    public static final String ALGORITHM_SHA_256 = "SHA-256";
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Largest first buffer; Content-Length is sent by the client, so a longer body is only given
+     * more memory as it actually arrives
+     */
+    static final int MAX_INITIAL_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Helper class to allow getting ServletInputStream
      * 
@@ -39,32 +64,463 @@ public class CharRequestWrapper extends HttpServletRequestWrapper {
         public int read() throws IOException {
             return bais.read();
         }
+
+        @Override
+        public boolean isFinished() {
+            return bais.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            notifyReadListener(this, readListener);
+        }
     }
 
-    private ByteArrayServletStream input;
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * Helper class to allow getting ServletInputStream from a ByteBuffer
+     * 
+     * @author aric.tatan
+     *
+     */
+    public static class ByteBufferServletStream extends ServletInputStream {
+        ByteBuffer buffer;
+
+        ByteBufferServletStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int length = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
 
+        @Override
+        public boolean isFinished() {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            notifyReadListener(this, readListener);
+        }
+    }
+
+    /**
+     * Helper class to allow getting ServletInputStream from a part of a FileChannel, read through
+     * one direct buffer; several streams can read the same channel
+     * 
+     * @author chris.nagy
+     *
+     */
+    public static class FileChannelServletStream extends ServletInputStream {
+        FileChannel channel;
+        long position;
+        long limit;
+        ByteBuffer buffer;
+
+        FileChannelServletStream(FileChannel channel, long length) {
+            this.channel = channel;
+            this.limit = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) {
+                return -1;
+            }
+            return this.buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.fill()) {
+                return -1;
+            }
+            int length = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long length = Math.max(0, Math.min(n, (long) this.available()));
+            long buffered = this.buffer == null ? 0 : Math.min(length, this.buffer.remaining());
+            if (buffered > 0) {
+                this.buffer.position(this.buffer.position() + (int) buffered);
+            }
+            this.position += length - buffered;
+            return length;
+        }
+
+        @Override
+        public int available() throws IOException {
+            long buffered = this.buffer == null ? 0 : this.buffer.remaining();
+            return (int) Math.min(this.limit - this.position + buffered, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return this.position >= this.limit
+                    && (this.buffer == null || !this.buffer.hasRemaining());
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            notifyReadListener(this, readListener);
+        }
+
+        /**
+         * Read the next part of the channel into the buffer if it is empty
+         * 
+         * @return false at the end of the body
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            if (this.buffer == null) {
+                this.buffer = ByteBuffer.allocateDirect(
+                    (int) Math.min(SPILL_BUFFER_SIZE, Math.max(this.limit, 1)));
+                this.buffer.limit(0);
+            }
+            while (!this.buffer.hasRemaining()) {
+                if (this.position >= this.limit) {
+                    return false;
+                }
+                this.buffer.clear();
+                if (this.limit - this.position < this.buffer.capacity()) {
+                    this.buffer.limit((int) (this.limit - this.position));
+                }
+                int length = this.channel.read(this.buffer, this.position);
+                if (length == -1) {
+                    throw new IOException("Request body file is shorter than the request body.");
+                }
+                this.position += length;
+                this.buffer.flip();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Spill threshold that keeps every request body in memory
+     */
+    public static final long NO_SPILL_THRESHOLD = -1;
+
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    static final String SPILL_FILE_PREFIX = "hmac-request-body-";
+    private static final String SPILL_FILE_SUFFIX = ".tmp";
+
+    private ServletInputStream input;
+
+    /**
+     * The request body in memory; position 0 and limit at the end of the body. Null if the body has
+     * been spilled.
+     */
+    private ByteBuffer body;
+
+    /**
+     * The temporary file of a spilled request body; null if the body is in memory
+     */
+    private FileChannel spillChannel;
+
+    private long bodyLength;
+
+    /**
+     * SHA-256 hash of the request body
+     */
+    private byte[] bodySha256;
+
+    /**
+     * Create a wrapper that keeps the whole request body in memory
+     * 
+     * @param request
+     * @throws IOException
+     */
     public CharRequestWrapper(HttpServletRequest request) throws IOException {
+        this(request, NO_SPILL_THRESHOLD);
+    }
+
+    /**
+     * Create a wrapper that keeps the request body in memory up to the given number of bytes;
+     * a longer body is written to a temporary file and read back through its FileChannel.
+     * 
+     * @param request
+     * @param spillThreshold; maximum number of bytes kept in memory, or NO_SPILL_THRESHOLD
+     * @throws IOException
+     */
+    public CharRequestWrapper(HttpServletRequest request, long spillThreshold) throws IOException {
         super(request);
+        MessageDigest digest = createSha256Digest();
         InputStream inputStream = request.getInputStream();
+        long maxHeapLength = spillThreshold < 0 ? Integer.MAX_VALUE : Math.min(spillThreshold,
+            Integer.MAX_VALUE);
+
+        int contentLength = request.getContentLength();
+        if (contentLength > maxHeapLength) {
+            //known up front to be too long for memory
+            this.spillBody(inputStream, new byte[0], 0, digest);
+        } else {
+            byte[] buffer = new byte[getInitialBufferSize(contentLength, maxHeapLength)];
+            int position = 0;
 
-        byte[] byteChunk = new byte[1024];
-        int length = -1;
+            while (this.spillChannel == null) {
+                if (position == buffer.length) {
+                    //buffer is full; check for the end of the body before growing it
+                    int nextByte = inputStream.read();
+                    if (nextByte == -1) {
+                        break;
+                    }
+                    if (position + 1 > maxHeapLength) {
+                        buffer = Arrays.copyOf(buffer, position + 1);
+                        buffer[position] = (byte) nextByte;
+                        digest.update(buffer, position, 1);
+                        this.spillBody(inputStream, buffer, position + 1, digest);
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(Math.max(buffer.length * 2L,
+                        DEFAULT_BUFFER_SIZE), maxHeapLength));
+                    buffer[position] = (byte) nextByte;
+                    digest.update(buffer, position, 1);
+                    position++;
+                }
+                int length = inputStream.read(buffer, position, buffer.length - position);
+                if (length == -1) {
+                    break;
+                }
+                digest.update(buffer, position, length);
+                position += length;
+            }
 
-        while ((length = inputStream.read(byteChunk)) != -1) {
-            baos.write(byteChunk, 0, length);
+            if (this.spillChannel == null) {
+                this.body = ByteBuffer.wrap(buffer, 0, position).slice();
+                this.bodyLength = position;
+            }
         }
-        baos.flush();
-        baos.close();
+        this.bodySha256 = digest.digest();
+        this.resetInputStream();
+    }
+
+    /**
+     * Get the size of the first buffer of a request body; never more than MAX_INITIAL_BUFFER_SIZE,
+     * whatever the client declared
+     * 
+     * @param contentLength; Content-Length of the request, or -1 if unknown
+     * @param maxHeapLength; maximum number of bytes kept in memory
+     * @return
+     */
+    static int getInitialBufferSize(long contentLength, long maxHeapLength) {
+        long result = contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_BUFFER_SIZE)
+                : DEFAULT_BUFFER_SIZE;
+        return (int) Math.min(result, maxHeapLength);
+    }
+
+    /**
+     * Create a wrapper around a request body that has already been read, e.g. by AsyncRequestBodyReader
+     * 
+     * @param request
+     * @param body; the request body
+     * @param bodySha256; SHA-256 hash of the request body
+     */
+    CharRequestWrapper(HttpServletRequest request, ByteBuffer body, byte[] bodySha256) {
+        super(request);
+        this.body = body;
+        this.bodyLength = body.remaining();
+        this.bodySha256 = bodySha256;
+        this.resetInputStream();
+    }
 
-        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-        this.input = new ByteArrayServletStream(bais);
+    /**
+     * Create a wrapper around a request body that has already been spilled, e.g. by AsyncRequestBodyReader
+     * 
+     * @param request
+     * @param spillChannel; the temporary file of the request body, closed with the wrapper
+     * @param bodyLength; length of the request body
+     * @param bodySha256; SHA-256 hash of the request body
+     */
+    CharRequestWrapper(HttpServletRequest request, FileChannel spillChannel, long bodyLength,
+            byte[] bodySha256) {
+        super(request);
+        this.spillChannel = spillChannel;
+        this.bodyLength = bodyLength;
+        this.bodySha256 = bodySha256;
+        this.resetInputStream();
+    }
+
+    /**
+     * Write the part of the body already read and the rest of the inputStream to a temporary file,
+     * and keep that file open as the body
+     * 
+     * @param inputStream; rest of the body
+     * @param head; part of the body already read and digested
+     * @param headLength
+     * @param digest
+     * @throws IOException if the body cannot be written
+     */
+    private void spillBody(InputStream inputStream, byte[] head, int headLength,
+            MessageDigest digest) throws IOException {
+        File spillFile = createSpillFile();
+        try {
+            long length = headLength;
+            OutputStream outputStream = new FileOutputStream(spillFile);
+            try {
+                outputStream.write(head, 0, headLength);
+                byte[] byteChunk = new byte[SPILL_BUFFER_SIZE];
+                int chunkLength = -1;
+                while ((chunkLength = inputStream.read(byteChunk)) != -1) {
+                    digest.update(byteChunk, 0, chunkLength);
+                    outputStream.write(byteChunk, 0, chunkLength);
+                    length += chunkLength;
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            this.spillChannel = openSpillFile(spillFile);
+            this.bodyLength = length;
+        } finally {
+            deleteSpillFile(spillFile);
+        }
+    }
+
+    /**
+     * Create a temporary file for a request body that is too long for memory
+     * 
+     * @return
+     * @throws IOException
+     */
+    static File createSpillFile() throws IOException {
+        return File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+    }
+
+    /**
+     * Open the request body written to a temporary file for reading
+     * 
+     * @param spillFile
+     * @return
+     * @throws IOException
+     */
+    static FileChannel openSpillFile(File spillFile) throws IOException {
+        return FileChannel.open(spillFile.toPath(), StandardOpenOption.READ);
+    }
 
+    /**
+     * Delete a temporary file of a request body
+     * 
+     * @param spillFile
+     */
+    static void deleteSpillFile(File spillFile) {
+        //an open file can be deleted right away on most platforms; otherwise delete it on exit
+        if (!spillFile.delete()) {
+            spillFile.deleteOnExit();
+        }
     }
 
     public void resetInputStream() {
-        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-        this.input = new ByteArrayServletStream(bais);
+        if (this.spillChannel != null) {
+            this.input = new FileChannelServletStream(this.spillChannel, this.bodyLength);
+        } else {
+            this.input = new ByteBufferServletStream(this.body.asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Get a read-only view of a request body kept in memory. It must not be used on a spilled body,
+     * which may not fit in a ByteBuffer; read that one with getInputStream.
+     * 
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if the body has been spilled to a temporary file
+     */
+    public ByteBuffer getBody() throws IOException {
+        if (this.spillChannel != null) {
+            throw new IllegalStateException("Request body is in a temporary file; use getInputStream.");
+        }
+        return this.body.asReadOnlyBuffer();
+    }
+
+    /**
+     * Check if the request body has been spilled to a temporary file
+     * 
+     * @return
+     */
+    public boolean isSpilled() {
+        return this.spillChannel != null;
+    }
+
+    /**
+     * Get the length of the request body
+     * 
+     * @return
+     */
+    public long getBodyLength() {
+        return this.bodyLength;
+    }
+
+    /**
+     * Release the temporary file of a spilled request body; the body cannot be read afterwards
+     * 
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.spillChannel != null) {
+            this.spillChannel.close();
+        }
+    }
+
+    /**
+     * Get the SHA-256 hash of the request body
+     * 
+     * @return
+     */
+    public byte[] getBodySha256() {
+        return this.bodySha256.clone();
     }
 
     @Override
@@ -78,4 +534,37 @@ public class CharRequestWrapper extends HttpServletRequestWrapper {
         return new BufferedReader(reader);
     }
 
+    /**
+     * Tell a listener about a body that is already in memory: all of it can be read right away
+     * 
+     * @param inputStream
+     * @param readListener
+     */
+    static void notifyReadListener(ServletInputStream inputStream, ReadListener readListener) {
+        try {
+            if (!inputStream.isFinished()) {
+                readListener.onDataAvailable();
+            }
+            if (inputStream.isFinished()) {
+                readListener.onAllDataRead();
+            }
+        } catch(IOException e) {
+            readListener.onError(e);
+        }
+    }
+
+    /**
+     * Create a SHA-256 MessageDigest
+     * 
+     * @return
+     * @throws IOException if SHA-256 is not supported
+     */
+    static MessageDigest createSha256Digest() throws IOException {
+        try {
+            return MessageDigest.getInstance(ALGORITHM_SHA_256);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("Fail to create " + ALGORITHM_SHA_256 + " digest", e);
+        }
+    }
+
 }
@@ -2,10 +2,13 @@ package com.acquia.http;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.security.SignatureException;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
@@ -13,6 +16,11 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * The main class to allow modifications to response body
  * http://stackoverflow.com/questions/14736328/looking-for-an-example-for-inserting-content-into-the-response-using-a-servlet-f
  * 
+ * The body is kept until the response validation header is set. When a message signer is given, the
+ * body bytes are also written into the signer as the application writes them, so the signature is
+ * ready as soon as the application is done. Characters written to getWriter are encoded with the
+ * character encoding of the response when getWriter is first called, as the container would.
+ * 
  * @author aric.tatan
  *
  */
@@ -36,36 +44,121 @@ public class CharResponseWrapper extends HttpServletResponseWrapper {
         public void write(int param) throws IOException {
             baos.write(param);
         }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            notifyWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * Helper class to write the body into the buffer and the message signer at the same time
+     * 
+     * @author chris.nagy
+     *
+     */
+    private static class SigningServletStream extends ServletOutputStream {
+        private ByteArrayOutputStream baos;
+        private HMACMessageSigner messageSigner;
+        private final byte[] singleByte = new byte[1];
+
+        SigningServletStream(ByteArrayOutputStream baos) {
+            this.baos = baos;
+        }
+
+        @Override
+        public void write(int param) throws IOException {
+            baos.write(param);
+            if (messageSigner != null) {
+                singleByte[0] = (byte) param;
+                messageSigner.update(singleByte, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            baos.write(b, off, len);
+            if (messageSigner != null) {
+                messageSigner.update(b, off, len);
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            notifyWriteListener(writeListener);
+        }
     }
 
     /**
      * Helper class to allow options to pick between getWriter or getStream
-     *  
+     * 
      * @author aric.tatan
      *
      */
     private static class ByteArrayPrintWriter {
         private ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        private PrintWriter pw = new PrintWriter(baos);
-        private ServletOutputStream sos = new ByteArrayServletStream(baos);
-
-        public PrintWriter getWriter() {
+        private SigningServletStream sos = new SigningServletStream(baos);
+        private PrintWriter pw;
+        private String characterEncoding = ENCODING_UTF_8;
+
+        /**
+         * Get the writer, creating it with the given character encoding on first use
+         * 
+         * @param characterEncoding
+         * @return
+         * @throws UnsupportedEncodingException
+         */
+        public PrintWriter getWriter(String characterEncoding) throws UnsupportedEncodingException {
+            if (pw == null) {
+                pw = new PrintWriter(new OutputStreamWriter(sos, characterEncoding));
+                this.characterEncoding = characterEncoding;
+            }
             return pw;
         }
 
+        public void flush() {
+            if (pw != null) {
+                pw.flush();
+            }
+        }
+
         public ServletOutputStream getStream() {
             return sos;
         }
 
+        public void setMessageSigner(HMACMessageSigner messageSigner) {
+            this.flush();
+            byte[] written = baos.toByteArray();
+            messageSigner.update(written, 0, written.length); //catch up on what is already written
+            sos.messageSigner = messageSigner;
+        }
+
+        public HMACMessageSigner getMessageSigner() {
+            this.flush();
+            return sos.messageSigner;
+        }
+
         public byte[] toByteArray() {
+            this.flush();
             return baos.toByteArray();
         }
 
         @Override
         public String toString() {
+            this.flush();
             String result = "";
             try {
-                result = baos.toString(ENCODING_UTF_8);
+                result = baos.toString(characterEncoding);
             } catch(UnsupportedEncodingException e) {
                 e.printStackTrace();
             }
@@ -84,6 +177,31 @@ public class CharResponseWrapper extends HttpServletResponseWrapper {
         return output.toByteArray();
     }
 
+    /**
+     * Write the body into the given message signer as it is written;
+     * whatever is already written is passed to the signer first
+     * 
+     * @param messageSigner; signer that already holds the beginning of the response message
+     */
+    public void setMessageSigner(HMACMessageSigner messageSigner) {
+        output.setMessageSigner(messageSigner);
+    }
+
+    /**
+     * Encrypt the response message written into the message signer
+     * 
+     * @return Base64 encoded HMAC of the response message
+     * @throws SignatureException if the message cannot be encrypted
+     * @throws IllegalStateException if no message signer is set
+     */
+    public String encryptMessage() throws SignatureException {
+        HMACMessageSigner messageSigner = output.getMessageSigner();
+        if (messageSigner == null) {
+            throw new IllegalStateException("No message signer is set.");
+        }
+        return messageSigner.encryptMessage();
+    }
+
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
         return output.getStream();
@@ -91,7 +209,14 @@ public class CharResponseWrapper extends HttpServletResponseWrapper {
 
     @Override
     public PrintWriter getWriter() throws IOException {
-        return output.getWriter();
+        String characterEncoding = this.getCharacterEncoding();
+        return output.getWriter(characterEncoding != null ? characterEncoding : ENCODING_UTF_8);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        //do not commit the real response before the response validation header is set
+        output.flush();
     }
 
     @Override
@@ -99,4 +224,17 @@ public class CharResponseWrapper extends HttpServletResponseWrapper {
         return output.toString();
     }
 
+    /**
+     * Tell a listener about a stream that is written to memory: it can always be written to
+     * 
+     * @param writeListener
+     */
+    static void notifyWriteListener(WriteListener writeListener) {
+        try {
+            writeListener.onWritePossible();
+        } catch(IOException e) {
+            writeListener.onError(e);
+        }
+    }
+
 }
@@ -0,0 +1,248 @@
+package com.acquia.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * A repeatable HttpEntity that knows the SHA-256 hash of its content.
+ * 
+ * The content of a byte array, String or file entity is hashed in place, since it can be written again
+ * without a copy; a file (FileEntity or PathHttpEntity) is read through its FileChannel into a direct
+ * buffer that each thread reuses, so its size does not matter and nothing is left mapped. Any other
+ * entity is written once into a buffer, which is hashed and then serves getContent and writeTo, so
+ * the wrapped entity does not need to be repeatable.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class DigestingHttpEntity extends HttpEntityWrapper {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Number of bytes of a file read at a time
+     */
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The direct buffer each thread reads files into
+     */
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Helper class to give access to the buffered content without copying it
+     * 
+     * @author chris.nagy
+     *
+     */
+    private static class ContentBuffer extends ByteArrayOutputStream {
+        ContentBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return this.buf;
+        }
+    }
+
+    /**
+     * Helper class to hash content as it is written, without keeping it
+     * 
+     * @author chris.nagy
+     *
+     */
+    private static class DigestingOutputStream extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestingOutputStream(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            this.digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.digest.update(b, off, len);
+        }
+    }
+
+    /**
+     * The buffered content; null if the wrapped entity is hashed in place
+     */
+    private final byte[] content;
+
+    private final int contentLength;
+
+    private final byte[] contentSha256;
+
+    /**
+     * Hash the content of the given entity, buffering it if it cannot be written again cheaply
+     * 
+     * @param entity
+     * @throws IOException if the content cannot be written
+     */
+    public DigestingHttpEntity(HttpEntity entity) throws IOException {
+        super(entity);
+        MessageDigest digest = CharRequestWrapper.createSha256Digest();
+        if (isHashedInPlace(entity)) {
+            FileChannel channel = openFileChannel(entity);
+            if (channel != null) {
+                try {
+                    updateDigest(digest, channel, READ_BUFFERS.get());
+                } finally {
+                    channel.close();
+                }
+            } else {
+                entity.writeTo(new DigestingOutputStream(digest));
+            }
+            this.content = null;
+            this.contentLength = -1;
+        } else {
+            long length = entity.getContentLength();
+            ContentBuffer buffer = new ContentBuffer(length > 0 && length < Integer.MAX_VALUE
+                    ? (int) length : DEFAULT_BUFFER_SIZE);
+            entity.writeTo(buffer);
+            this.content = buffer.getBuffer();
+            this.contentLength = buffer.size();
+            digest.update(this.content, 0, this.contentLength);
+        }
+        this.contentSha256 = digest.digest();
+    }
+
+    /**
+     * Check if the entity is hashed in place instead of being buffered
+     * 
+     * @param entity
+     * @return
+     */
+    static boolean isHashedInPlace(HttpEntity entity) {
+        return entity instanceof ByteArrayEntity || entity instanceof StringEntity
+                || entity instanceof FileEntity || entity instanceof PathHttpEntity;
+    }
+
+    /**
+     * Open the file of a file entity
+     * 
+     * @param entity
+     * @return channel of the file; or null if the entity is not read from a file
+     * @throws IOException
+     */
+    static FileChannel openFileChannel(HttpEntity entity) throws IOException {
+        if (entity instanceof PathHttpEntity) {
+            return FileChannel.open(((PathHttpEntity) entity).getPath(), StandardOpenOption.READ);
+        } else if (entity instanceof FileEntity) {
+            InputStream inputStream = entity.getContent();
+            if (inputStream instanceof FileInputStream) {
+                return ((FileInputStream) inputStream).getChannel(); //closing the channel closes the stream
+            }
+            inputStream.close();
+        }
+        return null;
+    }
+
+    /**
+     * Hash a whole file, reading it one buffer at a time
+     * 
+     * @param digest
+     * @param channel; channel of the file
+     * @param buffer; buffer the file is read into
+     * @throws IOException
+     */
+    static void updateDigest(MessageDigest digest, FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        long position = 0;
+        buffer.clear();
+        int length;
+        while ((length = channel.read(buffer, position)) != -1) {
+            position += length;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Get the SHA-256 hash of the content
+     * 
+     * @return
+     */
+    public byte[] getContentSha256() {
+        return this.contentSha256.clone();
+    }
+
+    /**
+     * Check if the content has been buffered
+     * 
+     * @return
+     */
+    public boolean isBuffered() {
+        return this.content != null;
+    }
+
+    /**
+     * Get the buffered content; not a copy if the entity had declared its exact content length
+     * 
+     * @return the content; or null if the content has not been buffered
+     */
+    byte[] getBufferedContent() {
+        if (this.content == null || this.content.length == this.contentLength) {
+            return this.content;
+        }
+        return Arrays.copyOf(this.content, this.contentLength);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return this.content == null ? super.isStreaming() : false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return this.content == null ? super.getContentLength() : this.contentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (this.content == null) {
+            return super.getContent();
+        }
+        return new ByteArrayInputStream(this.content, 0, this.contentLength);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (this.content == null) {
+            super.writeTo(outstream);
+        } else {
+            outstream.write(this.content, 0, this.contentLength);
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.acquia.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HMACClock that only moves when it is told to, so that tests and benchmarks control the time.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class FixedHMACClock implements HMACClock {
+
+    private final AtomicLong currentUnixTime;
+
+    /**
+     * Constructor
+     * 
+     * @param unixTime; the current time, in seconds since the epoch
+     */
+    public FixedHMACClock(long unixTime) {
+        this.currentUnixTime = new AtomicLong(unixTime);
+    }
+
+    @Override
+    public long getCurrentUnixTime() {
+        return this.currentUnixTime.get();
+    }
+
+    /**
+     * Set the current time
+     * 
+     * @param unixTime; seconds since the epoch
+     */
+    public void setCurrentUnixTime(long unixTime) {
+        this.currentUnixTime.set(unixTime);
+    }
+
+    /**
+     * Move the current time forward
+     * 
+     * @param seconds; number of seconds, negative to move it back
+     */
+    public void advance(long seconds) {
+        this.currentUnixTime.addAndGet(seconds);
+    }
+
+}
@@ -19,4 +19,56 @@ public interface HMACAlgorithm {
      * @throws SignatureException If there is an error or the system doesn't support the encryption method
      */
     String encryptMessage( String secretKey, String message ) throws SignatureException;
+
+    /**
+     * Encrypt the given message using the given signing key.
+     * 
+     * @param signingKey Signing Key created by this algorithm
+     * @param message Message
+     * @return One-way encrypted message
+     * @throws SignatureException If there is an error or the key was created for another algorithm
+     */
+    String encryptMessage( HMACSigningKey signingKey, String message ) throws SignatureException;
+
+    /**
+     * Decode the given secret key into a signing key for this algorithm.
+     * The result should be created once per access key and reused.
+     * 
+     * @param secretKey Secret Key
+     * @return Signing Key
+     * @throws SignatureException If the secret key is invalid or the system doesn't support the encryption method
+     */
+    HMACSigningKey createSigningKey( String secretKey ) throws SignatureException;
+
+    /**
+     * Create a signer that encrypts a message written piece by piece with the given signing key.
+     * 
+     * @param signingKey Signing Key created by this algorithm
+     * @return Message signer for a single message
+     * @throws SignatureException If there is an error or the key was created for another algorithm
+     */
+    HMACMessageSigner createMessageSigner( HMACSigningKey signingKey ) throws SignatureException;
+
+    /**
+     * Check the given signature against the message encrypted with the given signing key.
+     * The comparison takes the same time whatever the signature is.
+     * 
+     * @param signingKey Signing Key created by this algorithm
+     * @param message Message
+     * @param signature Base64 encoded signature presented for the message
+     * @return true if the signature is the encrypted message; false otherwise
+     * @throws SignatureException If there is an error or the key was created for another algorithm
+     */
+    boolean verifyMessage( HMACSigningKey signingKey, String message, String signature ) throws SignatureException;
+
+    /**
+     * Check the given signature against the message written into the given signer.
+     * The signer cannot be used afterwards.
+     * 
+     * @param signer Message signer created by this algorithm
+     * @param signature Base64 encoded signature presented for the message
+     * @return true if the signature is the encrypted message; false otherwise
+     * @throws SignatureException If there is an error
+     */
+    boolean verifyMessage( HMACMessageSigner signer, String signature ) throws SignatureException;
 }
@@ -1,9 +1,8 @@
 package com.acquia.http;
 
-import java.util.Arrays;
-import java.util.HashMap;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * This class specifies the content of Acquia HMAC Authorization header
@@ -29,50 +28,187 @@ public class HMACAuthorizationHeader {
     private String signature;
 
     /**
-     * This method converts an Authorization string into a key-value pair Map
+     * Precomputed parts of the header; set on the headers that HMACHttpRequestInterceptor creates
+     */
+    private AuthorizationHeaderTemplate template;
+
+    /**
+     * This method converts an Authorization string into an HMACAuthorizationHeader
      * 
      * The input format:
      * acquia-http-hmac realm="Example",id="client-id",nonce="random-uuid",version="2.0",headers="custom1;custom2",signature="Signature"
      * 
-     * The result of this call will be a Map in <key,value> pair of the parameters section (2nd token)
-     * This will discard the 1st token (i.e.: acquia-http-hmac will be discarded)
+     * The 1st token (i.e.: acquia-http-hmac) is discarded.
      * 
      * @param authString; in the format specified above
-     * @return
+     * @return the header; or null if the input is malformed or one or more required attributes are not set
      */
     public static HMACAuthorizationHeader getAuthorizationHeaderObject(String authString) {
-        int indexSpace = authString.indexOf(" ");
-        String authContent = authString.substring(indexSpace + 1);
-        String[] authParams = authContent.split(",");
-
-        Map<String, String> theMap = new HashMap<String, String>();
-        for (String param : authParams) {
-            int indexDelimiter = param.indexOf("="); //first index of delimiter
-            String key = param.substring(0, indexDelimiter);
-            String val = param.substring(indexDelimiter + 1);
-            theMap.put(key.toLowerCase(), val.substring(1, val.length() - 1)); //remove "" from val
+        if (authString == null) {
+            return null;
+        }
+        try {
+            return parse(authString);
+        } catch(ParseException e) {
+            return null;
         }
+    }
 
-        HMACAuthorizationHeader result = new HMACAuthorizationHeader(theMap.get("realm"),
-            theMap.get("id"), theMap.get("nonce"), theMap.get("version"));
+    /**
+     * This method parses an Authorization string in a single pass, without splitting it
+     * 
+     * Parameter names are case-insensitive and unknown parameters are ignored. Values are quoted
+     * strings, which may contain ',' and '='; '\' is not an escape character, so a value is read
+     * back exactly as toString writes it.
+     * 
+     * @param authString; in the format specified in getAuthorizationHeaderObject
+     * @return the header
+     * @throws ParseException if the input is malformed or one or more required attributes are not set;
+     *         the error offset is the position in authString where the problem was found
+     */
+    public static HMACAuthorizationHeader parse(CharSequence authString) throws ParseException {
+        HMACAuthorizationHeader result = new HMACAuthorizationHeader(null, null, null, null);
+        int length = authString.length();
+
+        //skip the provider
+        int position = 0;
+        while (position < length && authString.charAt(position) != ' ') {
+            position++;
+        }
+        position = position < length ? position + 1 : 0;
+
+        while (true) {
+            position = skipWhitespace(authString, position);
+            if (position == length) {
+                break;
+            }
 
-        //check headers
-        String headers = theMap.get("headers");
-        if (headers != null && headers.length() > 0) {
-            result.setHeaders(Arrays.asList(headers.split(DELIMITER_CUSTOM_SUBHEADER)));
+            //name
+            int nameStart = position;
+            while (position < length && isNameChar(authString.charAt(position))) {
+                position++;
+            }
+            int nameEnd = position;
+            if (nameStart == nameEnd) {
+                throw new ParseException("expected parameter name at position " + position,
+                    position);
+            }
+
+            position = skipWhitespace(authString, position);
+            if (position == length || authString.charAt(position) != '=') {
+                throw new ParseException("expected '=' at position " + position, position);
+            }
+            position = skipWhitespace(authString, position + 1);
+
+            //value
+            String value;
+            if (position < length && authString.charAt(position) == '"') {
+                int valueStart = ++position;
+                while (position < length && authString.charAt(position) != '"') {
+                    position++;
+                }
+                if (position >= length) {
+                    throw new ParseException("unterminated quoted value starting at position "
+                            + (valueStart - 1), valueStart - 1);
+                }
+                value = authString.subSequence(valueStart, position).toString();
+                position++; //closing quote
+            } else {
+                int valueStart = position;
+                while (position < length && isNameChar(authString.charAt(position))) {
+                    position++;
+                }
+                value = authString.subSequence(valueStart, position).toString();
+            }
+
+            result.setParameter(authString, nameStart, nameEnd, value);
+
+            position = skipWhitespace(authString, position);
+            if (position < length) {
+                if (authString.charAt(position) != ',') {
+                    throw new ParseException("expected ',' at position " + position, position);
+                }
+                position++;
+            }
         }
 
-        //check signature
-        String signature = theMap.get("signature");
-        if (signature != null && signature.length() > 0) {
-            result.setSignature(signature);
+        if (!result.isAuthorizationHeaderValid()) {
+            throw new ParseException("one or more required attributes are not set.", length);
         }
+        return result;
+    }
 
-        if (result.isAuthorizationHeaderValid()) {
-            return result;
-        } else {
-            return null;
+    /**
+     * Set the parameter whose name is authString[nameStart, nameEnd); unknown names are ignored
+     * 
+     * @param authString
+     * @param nameStart
+     * @param nameEnd
+     * @param value
+     */
+    private void setParameter(CharSequence authString, int nameStart, int nameEnd, String value) {
+        if (isName(authString, nameStart, nameEnd, "realm")) {
+            this.realm = value;
+        } else if (isName(authString, nameStart, nameEnd, "id")) {
+            this.id = value;
+        } else if (isName(authString, nameStart, nameEnd, "nonce")) {
+            this.nonce = value;
+        } else if (isName(authString, nameStart, nameEnd, "version")) {
+            this.version = value;
+        } else if (isName(authString, nameStart, nameEnd, "headers")) {
+            this.headers = splitHeaders(value);
+        } else if (isName(authString, nameStart, nameEnd, "signature")) {
+            this.signature = value.length() > 0 ? value : null;
+        }
+    }
+
+    /**
+     * Split custom header names delimited by DELIMITER_CUSTOM_SUBHEADER; empty names are skipped
+     * 
+     * @param value
+     * @return the names; or null if there is none
+     */
+    private static List<String> splitHeaders(String value) {
+        List<String> result = null;
+        int start = 0;
+        while (start <= value.length()) {
+            int end = value.indexOf(DELIMITER_CUSTOM_SUBHEADER, start);
+            if (end < 0) {
+                end = value.length();
+            }
+            if (end > start) {
+                if (result == null) {
+                    result = new ArrayList<String>();
+                }
+                result.add(value.substring(start, end));
+            }
+            start = end + 1;
         }
+        return result;
+    }
+
+    private static boolean isName(CharSequence authString, int nameStart, int nameEnd, String name) {
+        if (nameEnd - nameStart != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(authString.charAt(nameStart + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return c > ' ' && c < 0x7F && c != '=' && c != ',' && c != '"';
+    }
+
+    private static int skipWhitespace(CharSequence authString, int position) {
+        while (position < authString.length()
+                && (authString.charAt(position) == ' ' || authString.charAt(position) == '\t')) {
+            position++;
+        }
+        return position;
     }
 
     /**
@@ -228,6 +364,25 @@ public class HMACAuthorizationHeader {
         this.signature = signature;
     }
 
+    /**
+     * Get the precomputed parts of this Authorization, if they still have its values
+     * 
+     * @return the template; or null
+     */
+    AuthorizationHeaderTemplate getTemplate() {
+        AuthorizationHeaderTemplate result = this.template;
+        return result != null && result.isTemplateOf(this) ? result : null;
+    }
+
+    /**
+     * Set the precomputed parts of this Authorization
+     * 
+     * @param template
+     */
+    void setTemplate(AuthorizationHeaderTemplate template) {
+        this.template = template;
+    }
+
     @Override
     public String toString() {
         return this.getAuthorizationString().toString();
@@ -246,6 +401,12 @@ public class HMACAuthorizationHeader {
      */
     public StringBuilder getAuthorizationString() {
         StringBuilder authBuilder = new StringBuilder();
+        AuthorizationHeaderTemplate template = this.getTemplate();
+        if (template != null) {
+            template.appendAuthorization(authBuilder, this.nonce, this.signature);
+            return authBuilder;
+        }
+
         authBuilder.append(PROVIDER).append(" ");
         authBuilder.append("realm=\"").append(this.realm).append("\",");
         authBuilder.append("id=\"").append(this.id).append("\",");
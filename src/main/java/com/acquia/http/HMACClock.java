@@ -0,0 +1,21 @@
+package com.acquia.http;
+
+/**
+ * The HMACClock interface defines the source of the current time used to create and check
+ * X-Authorization-Timestamp.
+ * 
+ * SystemHMACClock reads the system clock on every call; CachedHMACClock reads a value that a
+ * background thread keeps up to date; FixedHMACClock is set by the caller, for tests and benchmarks.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface HMACClock {
+
+    /**
+     * Get the current unix time.
+     * 
+     * @return seconds since the epoch
+     */
+    long getCurrentUnixTime();
+}
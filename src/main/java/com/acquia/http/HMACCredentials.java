@@ -0,0 +1,62 @@
+package com.acquia.http;
+
+/**
+ * The realm, access key and secret key that a request is signed with.
+ * 
+ * Set an instance as the HMACHttpRequestInterceptor.CONTEXT_CREDENTIALS attribute of the HttpContext
+ * to sign that request for another client than the one the interceptor was created for.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACCredentials {
+
+    /**
+     * The Authorization provider
+     */
+    private final String realm;
+
+    /**
+     * The access key
+     */
+    private final String accessKey;
+
+    /**
+     * The secret key
+     */
+    private final String secretKey;
+
+    /**
+     * Constructor
+     * 
+     * @param realm; Authorization provider
+     * @param accessKey; access key
+     * @param secretKey; base64 encoded secret key
+     */
+    public HMACCredentials(String realm, String accessKey, String secretKey) {
+        if (accessKey == null || secretKey == null) {
+            throw new IllegalArgumentException("Access key and secret key must not be null.");
+        }
+        this.realm = realm;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    public String getRealm() {
+        return this.realm;
+    }
+
+    public String getAccessKey() {
+        return this.accessKey;
+    }
+
+    public String getSecretKey() {
+        return this.secretKey;
+    }
+
+    @Override
+    public String toString() {
+        return "HMACCredentials[" + this.realm + ", " + this.accessKey + "]"; //never print the secret key
+    }
+
+}
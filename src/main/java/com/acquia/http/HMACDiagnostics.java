@@ -0,0 +1,150 @@
+package com.acquia.http;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * What is known about one signed request when its response is checked: the messages that were
+ * signed and the status line of the response.
+ * 
+ * Nothing is kept on a request that succeeds, unless an instance has been set as the
+ * HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS attribute of its HttpContext; the interceptors then
+ * fill it in, which is how single requests are sampled. Otherwise a record is only put together, from
+ * the rest of the HttpContext, once the response fails to validate.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACDiagnostics {
+
+    private String httpVerb;
+
+    private String authorization;
+
+    private String xAuthorizationTimestamp;
+
+    private String signableRequestMessage;
+
+    private String signedRequestMessage;
+
+    private String signableResponseMessage;
+
+    private String statusLine;
+
+    /**
+     * Get the record of the request of the HTTP context: the sampled one if there is one; otherwise
+     * one made of the attributes set by HMACHttpRequestInterceptor
+     * 
+     * @param context
+     * @return
+     */
+    static HMACDiagnostics fromContext(HttpContext context) {
+        HMACDiagnostics result = (HMACDiagnostics) context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS);
+        if (result == null) {
+            result = new HMACDiagnostics();
+        }
+        if (result.httpVerb == null) {
+            result.httpVerb = (String) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_HTTP_VERB);
+        }
+        if (result.xAuthorizationTimestamp == null) {
+            result.xAuthorizationTimestamp = (String) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_X_AUTHORIZATION_TIMESTAMP);
+        }
+        if (result.signableRequestMessage == null) {
+            result.signableRequestMessage = (String) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_SIGNABLE_REQUEST_MESSAGE);
+        }
+        if (result.signedRequestMessage == null) {
+            result.signedRequestMessage = (String) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_SIGNED_REQUEST_MESSAGE);
+        }
+        HMACAuthorizationHeader authHeader = (HMACAuthorizationHeader) context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_AUTH_HEADER);
+        if (authHeader != null) {
+            if (result.authorization == null) {
+                result.authorization = authHeader.toString();
+            }
+            if (result.signedRequestMessage == null) {
+                result.signedRequestMessage = authHeader.getSignature();
+            }
+        }
+        return result;
+    }
+
+    public String getHttpVerb() {
+        return this.httpVerb;
+    }
+
+    public void setHttpVerb(String httpVerb) {
+        this.httpVerb = httpVerb;
+    }
+
+    public String getAuthorization() {
+        return this.authorization;
+    }
+
+    public void setAuthorization(String authorization) {
+        this.authorization = authorization;
+    }
+
+    public String getXAuthorizationTimestamp() {
+        return this.xAuthorizationTimestamp;
+    }
+
+    public void setXAuthorizationTimestamp(String xAuthorizationTimestamp) {
+        this.xAuthorizationTimestamp = xAuthorizationTimestamp;
+    }
+
+    public String getSignableRequestMessage() {
+        return this.signableRequestMessage;
+    }
+
+    public void setSignableRequestMessage(String signableRequestMessage) {
+        this.signableRequestMessage = signableRequestMessage;
+    }
+
+    public String getSignedRequestMessage() {
+        return this.signedRequestMessage;
+    }
+
+    public void setSignedRequestMessage(String signedRequestMessage) {
+        this.signedRequestMessage = signedRequestMessage;
+    }
+
+    public String getSignableResponseMessage() {
+        return this.signableResponseMessage;
+    }
+
+    public void setSignableResponseMessage(String signableResponseMessage) {
+        this.signableResponseMessage = signableResponseMessage;
+    }
+
+    public String getStatusLine() {
+        return this.statusLine;
+    }
+
+    public void setStatusLine(String statusLine) {
+        this.statusLine = statusLine;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        this.append(result, "HTTP Verb", this.httpVerb);
+        this.append(result, "Authorization", this.authorization);
+        this.append(result, "X-Authorization-Timestamp", this.xAuthorizationTimestamp);
+        this.append(result, "Interceptor Signable Request Message", this.signableRequestMessage);
+        this.append(result, "Interceptor Signed Request Message", this.signedRequestMessage);
+        this.append(result, "Signable Response Message", this.signableResponseMessage);
+        this.append(result, "Server Response Status Line", this.statusLine);
+        return result.toString();
+    }
+
+    private void append(StringBuilder result, String name, String value) {
+        if (value != null) {
+            result.append("\n---- ").append(name).append(":\n").append(value);
+        }
+    }
+
+}
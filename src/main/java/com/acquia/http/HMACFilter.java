@@ -1,11 +1,13 @@
 package com.acquia.http;
 
 import java.io.IOException;
-import java.security.SignatureException;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -17,6 +19,12 @@ import org.apache.logging.log4j.Logger;
  * Abstract Filter that can validate HTTP requests by the HMAC Authorization header.
  * This will also append server validation response header.
  * 
+ * With the "async" config parameter, the filter reads the request body and writes the response body
+ * without blocking a container thread (Servlet 3.1). The body is read as it arrives, then the request
+ * is dispatched again and verified from the buffered body; the filter must therefore be mapped with
+ * async-supported and the ASYNC dispatcher. The rest of the chain must produce its response before it
+ * returns. Requests that do not support async processing are verified the blocking way.
+ * 
  * @author chris.nagy
  *
  */
@@ -27,18 +35,124 @@ public abstract class HMACFilter implements Filter {
     /**
      * The config parameter that defines the name of the algorithm used to create the HMAC.
      */
-    public static final String FILTER_CONFIG_ALGORITHM = "algorithm";
+    public static final String FILTER_CONFIG_ALGORITHM = HMACRequestVerifier.CONFIG_ALGORITHM;
+
+    /**
+     * The config parameter that defines the number of bytes of a request body kept in memory;
+     * a longer body is buffered in a temporary file. By default the whole body is kept in memory.
+     */
+    public static final String FILTER_CONFIG_SPILL_THRESHOLD = HMACRequestVerifier.CONFIG_SPILL_THRESHOLD;
+
+    /**
+     * The config parameter that defines the number of access keys whose secret keys are cached;
+     * by default secret keys are not cached.
+     */
+    public static final String FILTER_CONFIG_SECRET_KEY_CACHE_SIZE = HMACRequestVerifier.CONFIG_SECRET_KEY_CACHE_SIZE;
+
+    /**
+     * The config parameter that defines the number of seconds a secret key is cached.
+     */
+    public static final String FILTER_CONFIG_SECRET_KEY_CACHE_TTL = HMACRequestVerifier.CONFIG_SECRET_KEY_CACHE_TTL;
 
     /**
-     * The Algorithm used to create the HMAC.
+     * The config parameter that defines the number of seconds an unknown access key is cached.
      */
-    HMACAlgorithm algorithm;
+    public static final String FILTER_CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL = HMACRequestVerifier.CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL;
+
+    /**
+     * The config parameter that defines whether a request whose nonce has already been seen is
+     * rejected; "false" by default.
+     */
+    public static final String FILTER_CONFIG_NONCE_REPLAY_CHECK = HMACRequestVerifier.CONFIG_NONCE_REPLAY_CHECK;
+
+    /**
+     * The config parameter that defines whether request and response bodies are transferred
+     * without blocking; "false" by default.
+     */
+    public static final String FILTER_CONFIG_ASYNC = "async";
+
+    /**
+     * The config parameter that defines the number of milliseconds an async request may take to
+     * send its body before it is answered with 408 Request Timeout; by default the timeout of the
+     * container.
+     */
+    public static final String FILTER_CONFIG_ASYNC_TIMEOUT = "asyncTimeout";
+
+    /**
+     * The config parameter that defines whether verification metrics are published as an MXBean named
+     * after the filter; "false" by default.
+     */
+    public static final String FILTER_CONFIG_JMX_METRICS = HMACRequestVerifier.CONFIG_JMX_METRICS;
+
+    /**
+     * The config parameter that defines the tolerance of X-Authorization-Timestamp, in seconds;
+     * 900 by default.
+     */
+    public static final String FILTER_CONFIG_TIMESTAMP_TOLERANCE = HMACRequestVerifier.CONFIG_TIMESTAMP_TOLERANCE;
+
+    /**
+     * The config parameter that defines the number of milliseconds between two reads of the system
+     * clock by a background thread, which the filter stops in destroy; by default the system clock is
+     * read for every request.
+     */
+    public static final String FILTER_CONFIG_CLOCK_TICK_MILLIS = HMACRequestVerifier.CONFIG_CLOCK_TICK_MILLIS;
+
+    /**
+     * The verification shared with HMACHttpServlet; created by init.
+     */
+    HMACRequestVerifier verifier;
+
+    /**
+     * Whether request and response bodies are transferred without blocking.
+     */
+    boolean async = false;
+
+    /**
+     * The number of milliseconds an async request may take to send its body; 0 for the timeout of
+     * the container.
+     */
+    long asyncTimeout = 0;
 
     @Override
-    public void init(FilterConfig config) throws ServletException {
-        HMACAlgorithmFactory algorithmFactory = new HMACAlgorithmFactory();
-        String algorithmName = config.getInitParameter(FILTER_CONFIG_ALGORITHM);
-        this.algorithm = algorithmFactory.createAlgorithm(algorithmName);
+    public void init(final FilterConfig config) throws ServletException {
+        this.verifier = new HMACRequestVerifier(logger) {
+            @Override
+            String getInitParameter(String name) {
+                return config.getInitParameter(name);
+            }
+
+            @Override
+            SecretKeyProvider createSecretKeyLoader() {
+                return HMACFilter.this.createSecretKeyLoader();
+            }
+
+            @Override
+            HMACClock createClock() {
+                return HMACFilter.this.createClock();
+            }
+
+            @Override
+            HMACMetrics createMetrics() throws ServletException {
+                return HMACFilter.this.createMetrics(config);
+            }
+
+            @Override
+            NonceStore createNonceStore() {
+                return HMACFilter.this.createNonceStore();
+            }
+
+            @Override
+            int compareTimestampWithinTolerance(long unixTimestamp) {
+                return HMACFilter.this.compareTimestampWithinTolerance(unixTimestamp);
+            }
+        };
+        this.verifier.init();
+        this.async = this.verifier.getBooleanInitParameter(FILTER_CONFIG_ASYNC);
+        this.asyncTimeout = this.verifier.getLongInitParameter(FILTER_CONFIG_ASYNC_TIMEOUT, 0);
+        if (this.asyncTimeout < 0) {
+            throw new ServletException("Invalid " + FILTER_CONFIG_ASYNC_TIMEOUT + ": "
+                    + this.asyncTimeout);
+        }
     }
 
     @Override
@@ -47,80 +161,45 @@ public abstract class HMACFilter implements Filter {
         if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
             HttpServletRequest httpRequest = (HttpServletRequest) request;
             HttpServletResponse httpResponse = (HttpServletResponse) response;
-            CharRequestWrapper wrappedRequest = new CharRequestWrapper(httpRequest);
-            CharResponseWrapper wrappedResponse = new CharResponseWrapper(httpResponse);
-
-            //check timestamp
-            String xAuthorizationTimestamp = wrappedRequest.getHeader(
-                HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP);
-            if (xAuthorizationTimestamp != null) {
-                int timestampStatus = this.compareTimestampWithinTolerance(
-                    Long.parseLong(xAuthorizationTimestamp));
-                if (timestampStatus > 0) {
-                    String message = "Error: X-Authorization-Timestamp is too far in the future.";
-                    logger.error(message);
-                    wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                    return;
-                } else if (timestampStatus < 0) {
-                    String message = "Error: X-Authorization-Timestamp is too far in the past.";
-                    logger.error(message);
-                    wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                    return;
-                }
-            } else {
-                String message = "Error: X-Authorization-Timestamp is required.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return;
+            HMACVerificationContext context = null;
+            CharRequestWrapper wrappedRequest = null;
+            boolean isAsync = false;
+            AsyncRequestBodyReader bodyReader = AsyncRequestBodyReader.getBodyReader(httpRequest);
+            if (bodyReader != null) {
+                //dispatched again once the body has been read; the headers have already been checked
+                httpRequest.removeAttribute(AsyncRequestBodyReader.REQUEST_ATTRIBUTE);
+                context = bodyReader.getVerificationContext();
+                wrappedRequest = bodyReader.createRequestWrapper(httpRequest);
+                isAsync = true;
             }
 
-            //check authorization
-            String authorization = wrappedRequest.getHeader(
-                HMACMessageCreator.PARAMETER_AUTHORIZATION);
-            if (authorization != null) {
-                HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
-                    authorization);
-                if (authHeader == null) {
-                    String message = "Error: Invalid authHeader; one or more required attributes are not set.";
-                    logger.error(message);
-                    wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
+            //check the headers first, so a request that cannot pass is rejected before its body is read
+            if (context == null) {
+                context = this.verifier.checkRequestHeaders(httpRequest, httpResponse);
+                if (context == null) {
                     return;
                 }
+            }
 
-                String accessKey = authHeader.getId();
-                String nonce = authHeader.getNonce();
-                String signature = authHeader.getSignature();
-
-                String secretKey = null;
-                try {
-                    secretKey = getSecretKey(accessKey);
-                } catch(SecretKeyException skE) {
-                    String message = "Error: " + skE.getMessage();
-                    logger.error(message, skE);
-                    wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
+            if (wrappedRequest == null) {
+                if (this.async && httpRequest.isAsyncSupported()
+                        && httpRequest.getDispatcherType() == DispatcherType.REQUEST) {
+                    //read the body as it arrives instead of holding this thread
+                    AsyncContext asyncContext = httpRequest.startAsync();
+                    if (this.asyncTimeout > 0) {
+                        asyncContext.setTimeout(this.asyncTimeout);
+                    }
+                    bodyReader = new AsyncRequestBodyReader(asyncContext,
+                        this.verifier.spillThreshold);
+                    bodyReader.setVerificationContext(context);
+                    bodyReader.start();
                     return;
                 }
-
-                //check request validity
-                HMACMessageCreator messageCreator = new HMACMessageCreator();
-                String signableRequestMessage = messageCreator.createSignableRequestMessage(
-                    wrappedRequest);
-                logger.trace("signableRequestMessage:\n" + signableRequestMessage);
-                String signedRequestMessage = "";
-                try {
-                    signedRequestMessage = this.algorithm.encryptMessage(secretKey,
-                        signableRequestMessage);
-                    logger.trace("signedRequestMessage:\n" + signedRequestMessage);
-                } catch(SignatureException e) {
-                    String message = "Fail to sign request message";
-                    logger.error(message, e);
-                    throw new IOException(message, e);
-                }
-
-                if (signature.compareTo(signedRequestMessage) != 0) {
-                    String message = "Error: Invalid authentication token.";
-                    logger.error(message);
-                    wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
+                wrappedRequest = this.verifier.readRequestBody(httpRequest);
+            }
+            try {
+                CharResponseWrapper wrappedResponse = new CharResponseWrapper(httpResponse);
+                if (!this.verifier.verifyRequest(wrappedRequest, wrappedResponse, context)) {
                     return;
                 }
 
@@ -131,54 +210,101 @@ public abstract class HMACFilter implements Filter {
                 chain.doFilter(wrappedRequest, wrappedResponse);
 
                 //set response validation header
-                String responseContent = wrappedResponse.toString();
-                String signableResponseMessage = messageCreator.createSignableResponseMessage(nonce,
-                    xAuthorizationTimestamp, responseContent);
-                logger.trace("signableResponseMessage:\n" + signableResponseMessage);
-                String signedResponseMessage = "";
-                try {
-                    signedResponseMessage = this.algorithm.encryptMessage(secretKey,
-                        signableResponseMessage);
-                    logger.trace("signedResponseMessage:\n" + signedResponseMessage);
-                } catch(SignatureException e) {
-                    String message = "Fail to sign response message";
-                    logger.error(message, e);
-                    throw new IOException(message, e);
+                this.verifier.signResponse(wrappedResponse, context);
+                //write back the response to the REAL HttpServletResponse
+                if (isAsync) {
+                    AsyncContext asyncContext = httpRequest.startAsync();
+                    ServletOutputStream outputStream = httpResponse.getOutputStream();
+                    new AsyncResponseWriter(asyncContext, outputStream,
+                        wrappedResponse.getByteArray()).start();
+                } else {
+                    httpResponse.getOutputStream().write(wrappedResponse.getByteArray());
                 }
-                wrappedResponse.setHeader(
-                    HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
-                    signedResponseMessage);
-                httpResponse.getOutputStream().write(wrappedResponse.getByteArray()); //write back the response to the REAL HttpServletResponse
-            } else {
-                String message = "Error: Authorization is required.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return;
+            } finally {
+                //release the temporary file of a spilled body
+                wrappedRequest.close();
             }
         }
     }
 
     @Override
     public void destroy() {
-
+        if (this.verifier != null) {
+            this.verifier.destroy();
+        }
     }
 
     /**
-     * Check if timestamp is within tolerance (900 seconds)
+     * Check if timestamp is within tolerance (FILTER_CONFIG_TIMESTAMP_TOLERANCE; 900 seconds by default)
      * 
      * @param unixTimestamp
      * @return non-zero if timestamp is outside tolerance (positive if in the future; negative in the past); otherwise return zero
      */
     protected int compareTimestampWithinTolerance(long unixTimestamp) {
-        long tolerance = 900;
-        long unixCurrent = System.currentTimeMillis() / 1000L;
-        if (unixTimestamp > unixCurrent + tolerance) {
-            return 1;
-        } else if (unixTimestamp < unixCurrent - tolerance) {
-            return -1;
-        } else {
-            return 0;
+        return Timestamps.compareWithinTolerance(this.verifier.clock, unixTimestamp,
+            this.getTimestampTolerance());
+    }
+
+    /**
+     * Get the tolerance of X-Authorization-Timestamp, in seconds; the nonce store remembers nonces
+     * for that long. A subclass that widens the window of compareTimestampWithinTolerance must
+     * override this as well, otherwise requests older than the nonce store are rejected as replays.
+     * 
+     * @return
+     */
+    protected long getTimestampTolerance() {
+        return this.verifier.timestampTolerance;
+    }
+
+    /**
+     * Create the source of the current time; by default a CachedHMACClock if FILTER_CONFIG_CLOCK_TICK_MILLIS
+     * is set, and the system clock otherwise. A CachedHMACClock is shut down by destroy.
+     * 
+     * @return
+     */
+    protected HMACClock createClock() {
+        if (this.verifier.clockTickMillis > 0) {
+            return new CachedHMACClock(this.verifier.clockTickMillis);
         }
+        return SystemHMACClock.INSTANCE;
+    }
+
+    /**
+     * Create the measurements of verification; by default they are published as an MXBean if
+     * FILTER_CONFIG_JMX_METRICS is set, and not taken otherwise
+     * 
+     * @param config
+     * @return
+     * @throws ServletException if the MXBean cannot be registered
+     */
+    protected HMACMetrics createMetrics(FilterConfig config) throws ServletException {
+        return HMACRequestVerifier.createMetrics(config.getInitParameter(FILTER_CONFIG_JMX_METRICS),
+            "HMACFilter", config.getFilterName());
+    }
+
+    /**
+     * Create the store of the nonces already seen; by default nonces are kept in memory,
+     * which only detects replays on this node
+     * 
+     * @return
+     */
+    protected NonceStore createNonceStore() {
+        return new InMemoryNonceStore(this.getTimestampTolerance());
+    }
+
+    /**
+     * Create the provider that looks up the secret keys that are not cached;
+     * by default secret keys are looked up by getSecretKey
+     * 
+     * @return
+     */
+    protected SecretKeyProvider createSecretKeyLoader() {
+        return new SecretKeyProvider() {
+            @Override
+            public String getSecretKey(String accessKey) throws SecretKeyException {
+                return HMACFilter.this.getSecretKey(accessKey);
+            }
+        };
     }
 
     /**
@@ -0,0 +1,276 @@
+package com.acquia.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An HttpAsyncResponseConsumer for HttpAsyncClient that checks the X-Server-Authorization-HMAC-SHA256
+ * response header while the response is consumed by another consumer.
+ * 
+ * The response body is added to the HMAC as the content decoder delivers it, so the body is never
+ * copied and no thread waits for it. The request must have been signed by HMACHttpRequestInterceptor
+ * (added to the HttpAsyncClient) with the given HttpContext; the response is checked with the signing
+ * key the request was signed with when the HttpContext has one. HMACHttpResponseInterceptor cannot be
+ * used with HttpAsyncClient: its interceptors run before the response body has arrived.
+ * 
+ * An invalid response fails the request with an HttpException.
+ * 
+ * @author chris.nagy
+ *
+ * @param <T> result of the consumer
+ */
+public class HMACHttpAsyncResponseConsumer<T> implements HttpAsyncResponseConsumer<T> {
+
+    private static Logger logger = LogManager.getLogger(HMACHttpAsyncResponseConsumer.class);
+
+    /**
+     * Helper class to add the content read by the consumer to the message signer
+     * 
+     * @author chris.nagy
+     *
+     */
+    private static class SigningContentDecoder implements ContentDecoder {
+        private final ContentDecoder decoder;
+        private final HMACMessageSigner messageSigner;
+
+        SigningContentDecoder(ContentDecoder decoder, HMACMessageSigner messageSigner) {
+            this.decoder = decoder;
+            this.messageSigner = messageSigner;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int position = dst.position();
+            int length = this.decoder.read(dst);
+            if (length > 0) {
+                ByteBuffer content = dst.duplicate();
+                content.limit(position + length);
+                content.position(position);
+                this.messageSigner.update(content);
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return this.decoder.isCompleted();
+        }
+    }
+
+    private final HttpAsyncResponseConsumer<T> consumer;
+
+    private final HttpContext context;
+
+    private final HMACAlgorithm algorithm;
+
+    /**
+     * The signing key used when the HTTP context has none; may be null
+     */
+    private final HMACSigningKey signingKey;
+
+    /**
+     * Signer of the response message; null if the response is not checked
+     */
+    private HMACMessageSigner messageSigner;
+
+    private String serverSignature;
+
+    private volatile Exception exception;
+
+    /**
+     * Constructor
+     * 
+     * @param consumer; consumer of the response
+     * @param context; HTTP context of the request
+     * @param secretKey; secret key used to encrypt the message
+     * @param algorithmName; for example: SHA256
+     * @throws SignatureException if the secret key is invalid
+     */
+    public HMACHttpAsyncResponseConsumer(HttpAsyncResponseConsumer<T> consumer,
+            HttpContext context, String secretKey, String algorithmName) throws SignatureException {
+        this(consumer, context, new HMACAlgorithmFactory().createAlgorithm(algorithmName),
+            secretKey);
+    }
+
+    /**
+     * Constructor for a signing key that is shared by many requests
+     * 
+     * @param consumer; consumer of the response
+     * @param context; HTTP context of the request
+     * @param algorithm; algorithm used to create the HMAC
+     * @param signingKey; signing key created by the algorithm
+     */
+    public HMACHttpAsyncResponseConsumer(HttpAsyncResponseConsumer<T> consumer,
+            HttpContext context, HMACAlgorithm algorithm, HMACSigningKey signingKey) {
+        this.consumer = consumer;
+        this.context = context;
+        this.algorithm = algorithm;
+        this.signingKey = signingKey;
+    }
+
+    /**
+     * Constructor for an HMACHttpRequestInterceptor that signs with the HMACCredentials of each
+     * HttpContext; the response is checked with the signing key the request was signed with
+     * 
+     * @param consumer; consumer of the response
+     * @param context; HTTP context of the request
+     * @param algorithmName; for example: SHA256
+     */
+    public HMACHttpAsyncResponseConsumer(HttpAsyncResponseConsumer<T> consumer,
+            HttpContext context, String algorithmName) {
+        this(consumer, context, new HMACAlgorithmFactory().createAlgorithm(algorithmName),
+            (HMACSigningKey) null);
+    }
+
+    private HMACHttpAsyncResponseConsumer(HttpAsyncResponseConsumer<T> consumer,
+            HttpContext context, HMACAlgorithm algorithm, String secretKey)
+            throws SignatureException {
+        this(consumer, context, algorithm, algorithm.createSigningKey(secretKey));
+    }
+
+    @Override
+    public void responseReceived(HttpResponse response) throws IOException, HttpException {
+        //get httpVerb
+        String httpVerb = (String) this.context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_HTTP_VERB);
+        if (httpVerb == null) {
+            String message = "Error: No httpVerb in the HTTP context.";
+            logger.error(message);
+            throw new HttpException(message);
+        }
+
+        //upon HEAD method, server will not append server validation header
+        if (!httpVerb.equals("HEAD")) {
+            //get server response signature
+            Header serverAuthResponseHeader = response.getFirstHeader(
+                HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256);
+            if (serverAuthResponseHeader == null) {
+                String message = "Error: Server failed to provide "
+                        + HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256
+                        + ", response validation header; status line: "
+                        + response.getStatusLine();
+                logger.error(message);
+                throw new HttpException(message);
+            }
+            this.serverSignature = serverAuthResponseHeader.getValue();
+
+            //get nonce and xAuthorizationTimestamp of when request was made
+            HMACAuthorizationHeader authHeader = (HMACAuthorizationHeader) this.context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_AUTH_HEADER);
+            if (authHeader == null) {
+                String message = "Error: No authHeader in the HTTP context.";
+                logger.error(message);
+                throw new HttpException(message);
+            }
+            String xAuthorizationTimestamp = (String) this.context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_X_AUTHORIZATION_TIMESTAMP);
+            if (xAuthorizationTimestamp == null) {
+                String message = "Error: No xAuthorizationTimestamp in the HTTP context.";
+                logger.error(message);
+                throw new HttpException(message);
+            }
+
+            //get the signing key the request was signed with, if it was not this one
+            HMACSigningKey responseSigningKey = (HMACSigningKey) this.context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY);
+            if (responseSigningKey == null) {
+                responseSigningKey = this.signingKey;
+            }
+            if (responseSigningKey == null) {
+                String message = "Error: No signingKey in the HTTP context.";
+                logger.error(message);
+                throw new HttpException(message);
+            }
+
+            //start the response message; the body is added as it arrives
+            try {
+                this.messageSigner = this.algorithm.createMessageSigner(responseSigningKey);
+                new HMACMessageCreator().appendSignableResponseMessagePrefix(authHeader.getNonce(),
+                    xAuthorizationTimestamp, this.messageSigner);
+            } catch(SignatureException e) {
+                String message = "Fail to sign response message";
+                logger.error(message);
+                throw new IOException(message, e);
+            }
+        }
+
+        this.consumer.responseReceived(response);
+    }
+
+    @Override
+    public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        if (this.messageSigner != null) {
+            decoder = new SigningContentDecoder(decoder, this.messageSigner);
+        }
+        this.consumer.consumeContent(decoder, ioctrl);
+    }
+
+    @Override
+    public void responseCompleted(HttpContext context) {
+        if (this.messageSigner != null) {
+            //check response validity
+            boolean isValidSignature = false;
+            try {
+                isValidSignature = this.algorithm.verifyMessage(this.messageSigner,
+                    this.serverSignature);
+            } catch(SignatureException e) {
+                logger.error("Fail to sign response message");
+                this.failed(new IOException("Fail to sign response message", e));
+                return;
+            } finally {
+                this.messageSigner = null;
+            }
+
+            if (!isValidSignature) {
+                String message = "Error: Invalid server response validation.";
+                logger.error(message);
+                this.failed(new HttpException(message));
+                return;
+            }
+        }
+        this.consumer.responseCompleted(context);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+        this.exception = ex;
+        this.consumer.failed(ex);
+    }
+
+    @Override
+    public Exception getException() {
+        Exception result = this.exception;
+        return result != null ? result : this.consumer.getException();
+    }
+
+    @Override
+    public T getResult() {
+        return this.exception != null ? null : this.consumer.getResult();
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.exception != null || this.consumer.isDone();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.consumer.close();
+    }
+
+    @Override
+    public boolean cancel() {
+        return this.consumer.cancel();
+    }
+
+}
@@ -1,15 +1,14 @@
 package com.acquia.http;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.Header;
@@ -25,6 +24,20 @@ import org.apache.logging.log4j.Logger;
 /**
  * An HttpRequestInterceptor that adds the Authorization header that contains the HMAC.
  * 
+ * The interceptor can also be added to HttpAsyncClient; its responses are then checked by
+ * HMACHttpAsyncResponseConsumer instead of HMACHttpResponseInterceptor.
+ * 
+ * One interceptor can sign for many clients: a request whose HttpContext holds HMACCredentials
+ * (CONTEXT_CREDENTIALS) is signed with them instead of the credentials of the interceptor. The signing
+ * keys of the most recently used access keys are kept, so signing for a busy client never decodes its
+ * secret key or initializes a Mac again.
+ * 
+ * processAll signs a batch of requests at once, sharing the time, signing key and message builder; it
+ * can split the batch across a ForkJoinPool.
+ * 
+ * Nonces come from a NonceGenerator; by default each thread draws them from its own SecureRandom, so
+ * client threads do not wait for each other as they do on UUID.randomUUID.
+ * 
  * @author chris.nagy
  *
  */
@@ -35,12 +48,29 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
     public static final String CONTEXT_HTTP_VERB = "httpVerb";
     public static final String CONTEXT_AUTH_HEADER = "authHeader";
     public static final String CONTEXT_X_AUTHORIZATION_TIMESTAMP = "xAuthorizationTimestamp";
+    public static final String CONTEXT_CREDENTIALS = "hmacCredentials";
+    public static final String CONTEXT_SIGNING_KEY = "signingKey";
+    public static final String CONTEXT_DIAGNOSTICS = "hmacDiagnostics";
 
+    /**
+     * Only set when the request is sampled through CONTEXT_DIAGNOSTICS or trace logging is on, since
+     * the message is otherwise never built as a String
+     */
     public static final String CONTEXT_SIGNABLE_REQUEST_MESSAGE = "signableRequestMessage";
     public static final String CONTEXT_SIGNED_REQUEST_MESSAGE = "signedRequestMessage";
 
     public static final String VERSION = "2.0";
 
+    /**
+     * Default number of access keys whose signing keys are kept for requests with CONTEXT_CREDENTIALS
+     */
+    public static final int DEFAULT_SIGNING_KEY_CACHE_SIZE = 256;
+
+    /**
+     * Number of requests that processAll signs as one part of a batch in a ForkJoinPool
+     */
+    public static final int BATCH_SPLIT_SIZE = 64;
+
     /**
      * The Authorization provider
      */
@@ -64,6 +94,38 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
      */
     protected HMACAlgorithm algorithm;
 
+    /**
+     * The decoded secret key and the secret key it was decoded from; created on first use, and again
+     * if the secret key changes
+     */
+    private volatile SigningKeyCache.Entry signingKey;
+
+    /**
+     * The signing keys of the credentials found in the HTTP context
+     */
+    private final SigningKeyCache signingKeyCache;
+
+    /**
+     * The source of X-Authorization-Timestamp
+     */
+    private HMACClock clock = SystemHMACClock.INSTANCE;
+
+    /**
+     * The measurements of signing
+     */
+    private HMACMetrics metrics = NoopHMACMetrics.INSTANCE;
+
+    /**
+     * The escaped and serialized parts of the Authorization header of the credentials of this
+     * interceptor
+     */
+    private volatile AuthorizationHeaderTemplate template;
+
+    /**
+     * The source of the nonces of the Authorization header
+     */
+    private NonceGenerator nonceGenerator = SecureRandomNonceGenerator.getSharedGenerator();
+
     /**
      * Create an HMACHttpRequestInterceptor with the given provider, access key and secret key. Use
      * the algorithm with the given name to create the HMAC.
@@ -75,14 +137,32 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
      */
     public HMACHttpRequestInterceptor(String realm, String accessKey, String secretKey,
             String algorithmName) {
+        this(realm, accessKey, secretKey, algorithmName, DEFAULT_SIGNING_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * Create an HMACHttpRequestInterceptor that signs every request with the HMACCredentials of its
+     * HttpContext (CONTEXT_CREDENTIALS). Use the algorithm with the given name to create the HMAC.
+     * 
+     * @param algorithmName Name of Algorithm
+     * @param signingKeyCacheSize Maximum number of access keys whose signing keys are kept
+     */
+    public HMACHttpRequestInterceptor(String algorithmName, int signingKeyCacheSize) {
+        this(null, null, null, algorithmName, signingKeyCacheSize);
+    }
+
+    private HMACHttpRequestInterceptor(String realm, String accessKey, String secretKey,
+            String algorithmName, int signingKeyCacheSize) {
         this.realm = realm;
         this.accessKey = accessKey;
         this.secretKey = secretKey;
 
         HMACAlgorithmFactory algorithmFactory = new HMACAlgorithmFactory();
         this.algorithm = algorithmFactory.createAlgorithm(algorithmName);
+        this.signingKeyCache = new SigningKeyCache(this.algorithm, signingKeyCacheSize);
 
         this.customHeaders = new ArrayList<String>();
+        this.template = this.createTemplate();
     }
 
     /**
@@ -92,6 +172,7 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
      */
     public void setCustomHeaders(String[] customHeaders) {
         this.customHeaders = new ArrayList<String>(Arrays.asList(customHeaders));
+        this.template = this.createTemplate();
     }
 
     /** 
@@ -106,7 +187,109 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
     @Override
     public void process(HttpRequest request, HttpContext context)
             throws HttpException, IOException {
-        HMACAuthorizationHeader authHeader = this.createHMACAuthorizationHeader();
+        //use the credentials of the HTTP context if there are any
+        HMACCredentials credentials = this.getCredentials(request, context);
+        HMACAuthorizationHeader authHeader = credentials == null
+                ? this.createHMACAuthorizationHeader()
+                : this.createHMACAuthorizationHeader(credentials);
+        this.sign(request, context, credentials, authHeader, null);
+    }
+
+    /**
+     * Sign many requests in the calling thread, as process would sign each of them
+     * 
+     * The time is read once, and the signing key and message builder are shared by the whole batch.
+     * 
+     * @param requests; requests to sign
+     * @param contexts; HTTP context of each request, at the same index; to be passed to execute
+     * @throws HttpException
+     * @throws IOException
+     */
+    public void processAll(List<? extends HttpRequest> requests,
+            List<? extends HttpContext> contexts) throws HttpException, IOException {
+        this.checkBatch(requests, contexts);
+        this.sign(requests, contexts, 0, requests.size());
+    }
+
+    /**
+     * Sign many requests in the given pool, as process would sign each of them; the batch is split
+     * into parts of BATCH_SPLIT_SIZE requests that are signed as processAll signs a batch
+     * 
+     * @param requests; requests to sign
+     * @param contexts; HTTP context of each request, at the same index; to be passed to execute
+     * @param pool; pool that signs the parts of the batch
+     * @throws HttpException
+     * @throws IOException
+     */
+    public void processAll(List<? extends HttpRequest> requests,
+            List<? extends HttpContext> contexts, ForkJoinPool pool)
+            throws HttpException, IOException {
+        this.checkBatch(requests, contexts);
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool must not be null.");
+        }
+        if (requests.size() <= BATCH_SPLIT_SIZE) {
+            this.sign(requests, contexts, 0, requests.size());
+            return;
+        }
+
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        pool.invoke(new SigningTask(requests, contexts, 0, requests.size(), failure));
+        Exception e = failure.get();
+        if (e instanceof HttpException) {
+            throw (HttpException) e;
+        } else if (e != null) {
+            throw (IOException) e;
+        }
+    }
+
+    private void checkBatch(List<? extends HttpRequest> requests,
+            List<? extends HttpContext> contexts) {
+        if (requests == null || contexts == null) {
+            throw new IllegalArgumentException("Requests and contexts must not be null.");
+        }
+        if (requests.size() != contexts.size()) {
+            throw new IllegalArgumentException("There must be one context for each request.");
+        }
+    }
+
+    /**
+     * Sign the requests from index from to index to (exclusive) as one batch
+     * 
+     * @param requests
+     * @param contexts
+     * @param from
+     * @param to
+     * @throws HttpException
+     * @throws IOException
+     */
+    private void sign(List<? extends HttpRequest> requests, List<? extends HttpContext> contexts,
+            int from, int to) throws HttpException, IOException {
+        Batch batch = new Batch(Long.toString(this.getCurrentUnixTime()));
+        for (int i = from; i < to; i++) {
+            HttpRequest request = requests.get(i);
+            HttpContext context = contexts.get(i);
+            HMACCredentials credentials = this.getCredentials(request, context);
+            HMACAuthorizationHeader authHeader = credentials == null
+                    ? this.createHMACAuthorizationHeader()
+                    : this.createHMACAuthorizationHeader(credentials);
+            this.sign(request, context, credentials, authHeader, batch);
+        }
+    }
+
+    /**
+     * Sign one request
+     * 
+     * @param request
+     * @param context
+     * @param credentials; credentials of the HTTP context, or null
+     * @param authHeader; Authorization header without signature
+     * @param batch; what is shared with the other requests of a batch, or null
+     * @throws HttpException
+     * @throws IOException
+     */
+    private void sign(HttpRequest request, HttpContext context, HMACCredentials credentials,
+            HMACAuthorizationHeader authHeader, Batch batch) throws HttpException, IOException {
         if (authHeader == null) {
             String message = "Error: Invalid authHeader; one or more required attributes are not set.";
             logger.error(message);
@@ -116,18 +299,22 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
         //add X-Authorization-Timestamp if not set
         Header xAuthorizationTimestampHeaderHeader = request.getFirstHeader(
             HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP);
+        String xAuthorizationTimestamp;
         if (xAuthorizationTimestampHeaderHeader == null) {
-            long unixTime = this.getCurrentUnixTime();
+            xAuthorizationTimestamp = batch != null ? batch.xAuthorizationTimestamp
+                    : Long.toString(this.getCurrentUnixTime());
             request.setHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP,
-                Long.toString(unixTime));
+                xAuthorizationTimestamp);
+        } else {
+            xAuthorizationTimestamp = xAuthorizationTimestampHeaderHeader.getValue();
         }
 
         //check content length
         Header contentLengthHeader = request.getFirstHeader(
             HMACMessageCreator.PARAMETER_CONTENT_LENGTH);
-        int contentLength = 0;
+        long contentLength = 0;
         if (contentLengthHeader != null) {
-            contentLength = Integer.parseInt(contentLengthHeader.getValue());
+            contentLength = Long.parseLong(contentLengthHeader.getValue());
         }
         if (contentLength > 0) {
             //add X-Authorization-Content-SHA256 if not set
@@ -135,81 +322,54 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
                 HMACMessageCreator.PARAMETER_X_AUTHORIZATION_CONTENT_SHA256);
             if (xAuthorizationContentSha256Header == null) {
                 if (request instanceof HttpEntityEnclosingRequest) {
-                    final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
                     if (entity != null) {
-                        //request body can only be consumed once - so copy this somewhere
-                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        entity.writeTo(baos);
-                        baos.flush();
-                        baos.close();
-                        String bodyHash = this.getBase64Sha256String(baos.toByteArray());
+                        //request body can only be consumed once - hash it in place or buffer it once
+                        long bodyStartTime = System.nanoTime();
+                        DigestingHttpEntity digestingEntity = new DigestingHttpEntity(entity);
+                        this.metrics.recordStage(HMACMetrics.Stage.BODY_HASH,
+                            System.nanoTime() - bodyStartTime);
+                        this.metrics.recordBodySize(digestingEntity.getContentLength());
+                        String bodyHash = this.getBase64ContentSha256(
+                            digestingEntity.getContentSha256());
                         request.setHeader(
                             HMACMessageCreator.PARAMETER_X_AUTHORIZATION_CONTENT_SHA256, bodyHash);
 
                         //set the entity again so it is ready for further consumption
-                        ((HttpEntityEnclosingRequest) request).setEntity(new HttpEntity() {
-                            @Override
-                            public boolean isRepeatable() {
-                                return entity.isRepeatable();
-                            }
-
-                            @Override
-                            public boolean isChunked() {
-                                return entity.isChunked();
-                            }
-
-                            @Override
-                            public long getContentLength() {
-                                return entity.getContentLength();
-                            }
-
-                            @Override
-                            public Header getContentType() {
-                                return entity.getContentType();
-                            }
-
-                            @Override
-                            public Header getContentEncoding() {
-                                return entity.getContentEncoding();
-                            }
-
-                            @Override
-                            public InputStream getContent()
-                                    throws IOException, IllegalStateException {
-                                return new ByteArrayInputStream(baos.toByteArray());
-                            }
-
-                            @Override
-                            public void writeTo(OutputStream outstream) throws IOException {
-                                entity.writeTo(outstream);
-                            }
-
-                            @Override
-                            public boolean isStreaming() {
-                                return entity.isStreaming();
-                            }
-
-                            @SuppressWarnings("deprecation")
-                            @Override
-                            public void consumeContent() throws IOException {
-                                entity.consumeContent();
-                            }
-                        });
+                        ((HttpEntityEnclosingRequest) request).setEntity(digestingEntity);
                     }
                 }
             }
         }
 
-        //create signature
-        HMACMessageCreator messageCreator = new HMACMessageCreator();
-        String signableRequestMessage = messageCreator.createSignableRequestMessage(request,
-            authHeader);
-        logger.trace("signableRequestMessage:\n" + signableRequestMessage);
+        //create signature; the message is only built as a String when it is logged or sampled
+        HMACDiagnostics diagnostics = (HMACDiagnostics) context.getAttribute(CONTEXT_DIAGNOSTICS);
+        HMACMessageCreator messageCreator = batch != null ? batch.messageCreator
+                : new HMACMessageCreator();
+        String signableRequestMessage = null;
+        if (diagnostics != null || logger.isTraceEnabled()) {
+            StringBuilder messageBuilder = batch != null ? batch.messageBuilder
+                    : new StringBuilder();
+            messageBuilder.setLength(0);
+            messageCreator.appendSignableRequestMessage(request, authHeader, messageBuilder);
+            signableRequestMessage = messageBuilder.toString();
+            logger.trace("signableRequestMessage:\n{}", signableRequestMessage);
+        }
         String signedRequestMessage = "";
+        HMACSigningKey requestSigningKey = null;
+        long macStartTime = System.nanoTime();
         try {
-            signedRequestMessage = this.algorithm.encryptMessage(this.secretKey,
-                signableRequestMessage);
-            logger.trace("signedRequestMessage:\n" + signedRequestMessage);
+            requestSigningKey = batch != null ? batch.getSigningKey(credentials)
+                    : this.getSigningKey(credentials);
+            HMACMessageSigner signer = this.algorithm.createMessageSigner(requestSigningKey);
+            if (signableRequestMessage != null) {
+                signer.append(signableRequestMessage);
+            } else {
+                messageCreator.appendSignableRequestMessage(request, authHeader, signer);
+            }
+            signedRequestMessage = signer.encryptMessage();
+            this.metrics.recordStage(HMACMetrics.Stage.MAC_COMPUTE, System.nanoTime() - macStartTime);
+            logger.trace("signedRequestMessage:\n{}", signedRequestMessage);
         } catch(SignatureException e) {
             String message = "Fail to sign request message";
             logger.error(message);
@@ -218,16 +378,35 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
 
         authHeader.setSignature(signedRequestMessage);
         //add Authorization with encrypted signature
-        request.setHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION, authHeader.toString());
+        String authorization = authHeader.toString();
+        request.setHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION, authorization);
 
         //set context for response interceptor
-        context.setAttribute(CONTEXT_HTTP_VERB, request.getRequestLine().getMethod().toUpperCase());
+        String httpVerb = request.getRequestLine().getMethod().toUpperCase();
+        context.setAttribute(CONTEXT_HTTP_VERB, httpVerb);
         context.setAttribute(CONTEXT_AUTH_HEADER, authHeader);
-        context.setAttribute(CONTEXT_X_AUTHORIZATION_TIMESTAMP, request.getFirstHeader(
-            HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP).getValue()); //this header is guaranteed to exist
-
-        context.setAttribute(CONTEXT_SIGNABLE_REQUEST_MESSAGE, signableRequestMessage);
+        context.setAttribute(CONTEXT_X_AUTHORIZATION_TIMESTAMP, xAuthorizationTimestamp);
+        //a reused context must not keep the values of the previous request
+        if (credentials != null) {
+            context.setAttribute(CONTEXT_SIGNING_KEY, requestSigningKey);
+        } else {
+            context.removeAttribute(CONTEXT_SIGNING_KEY);
+        }
         context.setAttribute(CONTEXT_SIGNED_REQUEST_MESSAGE, signedRequestMessage);
+        if (signableRequestMessage != null) {
+            context.setAttribute(CONTEXT_SIGNABLE_REQUEST_MESSAGE, signableRequestMessage);
+        } else {
+            context.removeAttribute(CONTEXT_SIGNABLE_REQUEST_MESSAGE);
+        }
+
+        //keep the messages only for the requests that are sampled
+        if (diagnostics != null) {
+            diagnostics.setHttpVerb(httpVerb);
+            diagnostics.setAuthorization(authorization);
+            diagnostics.setXAuthorizationTimestamp(xAuthorizationTimestamp);
+            diagnostics.setSignableRequestMessage(signableRequestMessage);
+            diagnostics.setSignedRequestMessage(signedRequestMessage);
+        }
     }
 
     /**
@@ -236,8 +415,39 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
      * @return
      */
     protected HMACAuthorizationHeader createHMACAuthorizationHeader() {
-        HMACAuthorizationHeader result = new HMACAuthorizationHeader(this.realm, this.accessKey,
-            UUID.randomUUID().toString(), VERSION, this.customHeaders, /*signature*/null);
+        AuthorizationHeaderTemplate currentTemplate = this.template;
+        if (currentTemplate == null
+                || !currentTemplate.isFor(this.realm, this.accessKey, this.customHeaders)) {
+            //credentials or custom headers were changed by a subclass
+            currentTemplate = this.createTemplate();
+            this.template = currentTemplate;
+        }
+        if (currentTemplate == null) {
+            return this.createHMACAuthorizationHeader(this.realm, this.accessKey);
+        }
+        HMACAuthorizationHeader result = currentTemplate.createAuthorizationHeader(
+            this.nonceGenerator.createNonce());
+        if (result.isAuthorizationHeaderValid()) {
+            return result;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Helper method to create createHMACAuthorizationHeader for the credentials of the HTTP context
+     * 
+     * @param credentials
+     * @return
+     */
+    protected HMACAuthorizationHeader createHMACAuthorizationHeader(HMACCredentials credentials) {
+        return this.createHMACAuthorizationHeader(credentials.getRealm(),
+            credentials.getAccessKey());
+    }
+
+    private HMACAuthorizationHeader createHMACAuthorizationHeader(String realm, String accessKey) {
+        HMACAuthorizationHeader result = new HMACAuthorizationHeader(realm, accessKey,
+            this.nonceGenerator.createNonce(), VERSION, this.customHeaders, /*signature*/null);
         if (result.isAuthorizationHeaderValid()) {
             return result;
         } else {
@@ -245,13 +455,79 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
         }
     }
 
+    /**
+     * Create the template of the Authorization header of the credentials of this interceptor
+     * 
+     * @return the template; or null if the interceptor has no credentials of its own
+     */
+    private AuthorizationHeaderTemplate createTemplate() {
+        if (this.realm == null || this.realm.length() == 0 || this.accessKey == null
+                || this.accessKey.length() == 0) {
+            return null;
+        }
+        try {
+            return new AuthorizationHeaderTemplate(this.realm, this.accessKey, VERSION,
+                this.customHeaders);
+        } catch(UnsupportedEncodingException e) {
+            return null; //UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Get the credentials to sign the request with; override to pick them from the route of the request
+     * 
+     * @param request
+     * @param context
+     * @return the credentials of the HTTP context; or null to use the credentials of this interceptor
+     */
+    protected HMACCredentials getCredentials(HttpRequest request, HttpContext context) {
+        return (HMACCredentials) context.getAttribute(CONTEXT_CREDENTIALS);
+    }
+
+    /**
+     * Sets the source of X-Authorization-Timestamp; by default the system clock. A CachedHMACClock set
+     * here must be shut down by the caller once the interceptor is no longer used.
+     * 
+     * @param clock
+     */
+    public void setClock(HMACClock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("Clock must not be null.");
+        }
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the source of the nonces of the Authorization header; by default the generator shared with
+     * the other interceptors, which keeps a SecureRandom for each thread.
+     * 
+     * @param nonceGenerator
+     */
+    public void setNonceGenerator(NonceGenerator nonceGenerator) {
+        if (nonceGenerator == null) {
+            throw new IllegalArgumentException("Nonce generator must not be null.");
+        }
+        this.nonceGenerator = nonceGenerator;
+    }
+
+    /**
+     * Sets the measurements of signing; by default none are taken.
+     * 
+     * @param metrics
+     */
+    public void setMetrics(HMACMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics must not be null.");
+        }
+        this.metrics = metrics;
+    }
+
     /**
      * get current unix timestamp in seconds
      * @return
      */
     protected long getCurrentUnixTime() {
-        long unixTime = System.currentTimeMillis() / 1000L;
-        return unixTime;
+        return this.clock.getCurrentUnixTime();
     }
 
     /**
@@ -260,11 +536,134 @@ public class HMACHttpRequestInterceptor implements HttpRequestInterceptor {
      * @param inputStreamBytes
      * @return
      * @throws IOException
+     * @deprecated no longer called: the request body is hashed while it is read, without being
+     *             copied into an array; override getBase64ContentSha256 to change the encoded hash
      */
+    @Deprecated
     protected String getBase64Sha256String(byte[] inputStreamBytes) throws IOException {
         byte[] encBody = DigestUtils.sha256(inputStreamBytes);
         String bodyHash = Base64.encodeBase64String(encBody);
         return bodyHash;
     }
 
+    /**
+     * Get the X-Authorization-Content-SHA256 of a request body; called for every body
+     * 
+     * @param contentSha256; SHA-256 of the request body
+     * @return base64 encoded SHA-256
+     * @throws IOException
+     */
+    protected String getBase64ContentSha256(byte[] contentSha256) throws IOException {
+        return Base64.encodeBase64String(contentSha256);
+    }
+
+    /**
+     * Get the signing key for the credentials of the HTTP context, or for the secret key
+     * 
+     * @param credentials; credentials of the HTTP context, or null
+     * @return
+     * @throws SignatureException if the secret key is invalid
+     */
+    private HMACSigningKey getSigningKey(HMACCredentials credentials) throws SignatureException {
+        return credentials == null ? this.getSigningKey()
+                : this.signingKeyCache.getSigningKey(credentials);
+    }
+
+    /**
+     * Get the signing key for the secret key, decoding it only once as long as the secret key
+     * does not change
+     * 
+     * @return
+     * @throws SignatureException if the secret key is invalid
+     */
+    protected HMACSigningKey getSigningKey() throws SignatureException {
+        String secretKey = this.secretKey;
+        SigningKeyCache.Entry entry = this.signingKey;
+        if (entry == null || !entry.secretKey.equals(secretKey)) {
+            entry = new SigningKeyCache.Entry(secretKey,
+                this.algorithm.createSigningKey(secretKey));
+            this.signingKey = entry;
+        }
+        return entry.signingKey;
+    }
+
+    /**
+     * What the requests of a batch share
+     */
+    private class Batch {
+
+        final String xAuthorizationTimestamp;
+
+        final HMACMessageCreator messageCreator = new HMACMessageCreator();
+
+        final StringBuilder messageBuilder = new StringBuilder();
+
+        /**
+         * The signing key of the previous request, so consecutive requests of one client do not
+         * look up their key again
+         */
+        private HMACCredentials lastCredentials;
+        private HMACSigningKey lastSigningKey;
+
+        Batch(String xAuthorizationTimestamp) {
+            this.xAuthorizationTimestamp = xAuthorizationTimestamp;
+        }
+
+        HMACSigningKey getSigningKey(HMACCredentials credentials) throws SignatureException {
+            if (this.lastSigningKey == null || credentials != this.lastCredentials) {
+                this.lastSigningKey = HMACHttpRequestInterceptor.this.getSigningKey(credentials);
+                this.lastCredentials = credentials;
+            }
+            return this.lastSigningKey;
+        }
+    }
+
+    /**
+     * Signs a part of a batch, or splits it in two
+     */
+    private class SigningTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends HttpRequest> requests;
+        private final List<? extends HttpContext> contexts;
+        private final int from;
+        private final int to;
+
+        /**
+         * The first exception thrown by any part of the batch
+         */
+        private final AtomicReference<Exception> failure;
+
+        SigningTask(List<? extends HttpRequest> requests, List<? extends HttpContext> contexts,
+                int from, int to, AtomicReference<Exception> failure) {
+            this.requests = requests;
+            this.contexts = contexts;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.failure.get() != null) {
+                return;
+            }
+            if (this.to - this.from <= BATCH_SPLIT_SIZE) {
+                try {
+                    HMACHttpRequestInterceptor.this.sign(this.requests, this.contexts, this.from,
+                        this.to);
+                } catch(HttpException e) {
+                    this.failure.compareAndSet(null, e);
+                } catch(IOException e) {
+                    this.failure.compareAndSet(null, e);
+                }
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new SigningTask(this.requests, this.contexts, this.from, middle, this.failure),
+                new SigningTask(this.requests, this.contexts, middle, this.to, this.failure));
+        }
+    }
+
 }
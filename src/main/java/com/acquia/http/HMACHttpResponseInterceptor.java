@@ -1,9 +1,6 @@
 package com.acquia.http;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SignatureException;
 import org.apache.http.Header;
@@ -11,13 +8,18 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * An HttpResponseInterceptor that adds X-Server-Authorization-HMAC-SHA256 response header that contains the encrypted response
  * 
+ * By default the response body is buffered and checked before the application gets it; see
+ * setDeferredVerification to check large bodies while they are read instead.
+ * 
  * @author aric.tatan
  *
  */
@@ -35,6 +37,22 @@ public class HMACHttpResponseInterceptor implements HttpResponseInterceptor {
      */
     protected HMACAlgorithm algorithm;
 
+    /**
+     * The decoded secret key and the secret key it was decoded from; created on first use, and again
+     * if the secret key changes
+     */
+    private volatile SigningKeyCache.Entry signingKey;
+
+    /**
+     * Whether the response body is verified while the application reads it
+     */
+    private boolean deferredVerification = false;
+
+    /**
+     * The measurements of response verification
+     */
+    private HMACMetrics metrics = NoopHMACMetrics.INSTANCE;
+
     /**
      * Constructor
      * 
@@ -48,6 +66,16 @@ public class HMACHttpResponseInterceptor implements HttpResponseInterceptor {
         this.algorithm = algorithmFactory.createAlgorithm(algorithmName);
     }
 
+    /**
+     * Constructor for an HMACHttpRequestInterceptor that signs with the HMACCredentials of each
+     * HttpContext; the response is checked with the signing key the request was signed with
+     * 
+     * @param algorithmName; for example: SHA256
+     */
+    public HMACHttpResponseInterceptor(String algorithmName) {
+        this(null, algorithmName);
+    }
+
     @Override
     public void process(HttpResponse response, HttpContext context)
             throws HttpException, IOException {
@@ -66,20 +94,14 @@ public class HMACHttpResponseInterceptor implements HttpResponseInterceptor {
             Header serverAuthResponseHeader = response.getFirstHeader(
                 HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256);
             if (serverAuthResponseHeader == null) {
-                StringBuffer statusBuffer = new StringBuffer("Error: Server failed to provide "
+                //the details of the request are only put together now that it has failed
+                HMACDiagnostics diagnostics = HMACDiagnostics.fromContext(context);
+                diagnostics.setStatusLine(response.getStatusLine().toString());
+                String message = "Error: Server failed to provide "
                         + HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256
-                        + ", response validation header.");
-                statusBuffer.append("\n---- Interceptor Signable Request Message:\n").append(
-                    (String) context.getAttribute(
-                        HMACHttpRequestInterceptor.CONTEXT_SIGNABLE_REQUEST_MESSAGE));
-                statusBuffer.append("\n---- Interceptor Signed Request Message:\n").append(
-                    (String) context.getAttribute(
-                        HMACHttpRequestInterceptor.CONTEXT_SIGNED_REQUEST_MESSAGE));
-                statusBuffer.append("\n---- Server Response Status Line:\n").append(
-                    response.getStatusLine().toString());
-
-                String message = statusBuffer.toString();
+                        + ", response validation header." + diagnostics;
                 logger.error(message);
+                this.metrics.recordRejection(HMACMetrics.Rejection.RESPONSE_SIGNATURE_MISSING);
                 throw new HttpException(message);
             }
             String serverSignature = serverAuthResponseHeader.getValue();
@@ -103,89 +125,144 @@ public class HMACHttpResponseInterceptor implements HttpResponseInterceptor {
                 throw new HttpException(message);
             }
 
-            //get server response body
-            String responseContent = "";
-            final HttpEntity entity = response.getEntity();
-            if (entity != null && entity.getContentLength() > 0) {
-                //response body can only be consumed once - so copy this somewhere
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                entity.writeTo(baos);
-                baos.flush();
-                baos.close();
-                responseContent = baos.toString(HMACMessageCreator.ENCODING_UTF_8);
-
-                //set the entity again so it is ready for further consumption
-                response.setEntity(new HttpEntity() {
-                    @Override
-                    public boolean isRepeatable() {
-                        return entity.isRepeatable();
-                    }
-
-                    @Override
-                    public boolean isChunked() {
-                        return entity.isChunked();
-                    }
-
-                    @Override
-                    public long getContentLength() {
-                        return entity.getContentLength();
-                    }
-
-                    @Override
-                    public Header getContentType() {
-                        return entity.getContentType();
-                    }
-
-                    @Override
-                    public Header getContentEncoding() {
-                        return entity.getContentEncoding();
-                    }
+            //get the signing key the request was signed with, if it was not this one
+            HMACSigningKey responseSigningKey = (HMACSigningKey) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY);
+            if (responseSigningKey == null && this.secretKey == null) {
+                String message = "Error: No signingKey in the HTTP context.";
+                logger.error(message);
+                throw new HttpException(message);
+            }
 
-                    @Override
-                    public InputStream getContent() throws IOException, IllegalStateException {
-                        return new ByteArrayInputStream(baos.toByteArray());
-                    }
+            //start the response message; the body is added after it
+            HMACMessageCreator messageCreator = new HMACMessageCreator();
+            HMACMessageSigner messageSigner = null;
+            try {
+                messageSigner = this.algorithm.createMessageSigner(
+                    responseSigningKey != null ? responseSigningKey : this.getSigningKey());
+            } catch(SignatureException e) {
+                String message = "Fail to sign response message";
+                logger.error(message);
+                throw new IOException(message, e);
+            }
+            messageCreator.appendSignableResponseMessagePrefix(nonce, xAuthorizationTimestamp,
+                messageSigner);
 
-                    @Override
-                    public void writeTo(OutputStream outstream) throws IOException {
-                        entity.writeTo(outstream);
-                    }
+            long macStartTime = System.nanoTime();
+            HttpEntity entity = response.getEntity();
+            if (entity != null && entity.getContentLength() != 0) {
+                if (this.deferredVerification) {
+                    //the body is checked once the application has read all of it
+                    response.setEntity(new HMACVerifyingHttpEntity(entity, this.algorithm,
+                        messageSigner, serverSignature));
+                    return;
+                }
 
+                //response body can only be consumed once - so buffer it, then set the entity again so it is ready for further consumption
+                BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(entity);
+                response.setEntity(bufferedEntity);
+                final HMACMessageSigner bodySigner = messageSigner;
+                bufferedEntity.writeTo(new OutputStream() {
                     @Override
-                    public boolean isStreaming() {
-                        return entity.isStreaming();
+                    public void write(int b) {
+                        bodySigner.update(new byte[] { (byte) b }, 0, 1);
                     }
 
-                    @SuppressWarnings("deprecation")
                     @Override
-                    public void consumeContent() throws IOException {
-                        entity.consumeContent();
+                    public void write(byte[] b, int off, int len) {
+                        bodySigner.update(b, off, len);
                     }
                 });
+                HMACDiagnostics diagnostics = (HMACDiagnostics) context.getAttribute(
+                    HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS);
+                if (diagnostics != null || logger.isTraceEnabled()) {
+                    String signableResponseMessage = messageCreator.createSignableResponseMessage(
+                        nonce, xAuthorizationTimestamp, EntityUtils.toString(bufferedEntity,
+                            HMACMessageCreator.ENCODING_UTF_8));
+                    logger.trace("signableResponseMessage:\n{}", signableResponseMessage);
+                    if (diagnostics != null) {
+                        diagnostics.setSignableResponseMessage(signableResponseMessage);
+                    }
+                }
             }
 
             //check response validity
-            HMACMessageCreator messageCreator = new HMACMessageCreator();
-            String signableResponseMessage = messageCreator.createSignableResponseMessage(nonce,
-                xAuthorizationTimestamp, responseContent);
-            logger.trace("signableResponseMessage:\n" + signableResponseMessage);
-            String signedResponseMessage = "";
+            boolean isValidSignature = false;
             try {
-                signedResponseMessage = this.algorithm.encryptMessage(this.secretKey,
-                    signableResponseMessage);
-                logger.trace("signedResponseMessage:\n" + signedResponseMessage);
+                isValidSignature = this.algorithm.verifyMessage(messageSigner, serverSignature);
+                this.metrics.recordStage(HMACMetrics.Stage.MAC_COMPUTE,
+                    System.nanoTime() - macStartTime);
             } catch(SignatureException e) {
                 String message = "Fail to sign response message";
                 logger.error(message);
                 throw new IOException(message, e);
             }
 
-            if (serverSignature.compareTo(signedResponseMessage) != 0) {
-                String message = "Error: Invalid server response validation.";
+            if (!isValidSignature) {
+                String message = HMACVerificationException.INVALID_SIGNATURE;
                 logger.error(message);
+                if (logger.isDebugEnabled()) {
+                    HMACDiagnostics diagnostics = HMACDiagnostics.fromContext(context);
+                    diagnostics.setStatusLine(response.getStatusLine().toString());
+                    logger.debug("Invalid response:{}", diagnostics);
+                }
+                this.metrics.recordRejection(HMACMetrics.Rejection.BAD_SIGNATURE);
                 throw new HttpException(message);
             }
         }
     }
 
+    /**
+     * Check if the response body is verified while the application reads it
+     * 
+     * @return
+     */
+    public boolean isDeferredVerification() {
+        return this.deferredVerification;
+    }
+
+    /**
+     * Verify the response body while the application reads it, instead of buffering it in the interceptor.
+     * 
+     * The body is not copied, so responses of any size are checked in constant memory; but the
+     * application gets the body before it is verified, and the read that reaches its end throws
+     * HMACVerificationException if the response is invalid. The body must be read to its end.
+     * 
+     * @param deferredVerification
+     */
+    public void setDeferredVerification(boolean deferredVerification) {
+        this.deferredVerification = deferredVerification;
+    }
+
+    /**
+     * Sets the measurements of response verification; by default none are taken. Responses
+     * verified while they are read (setDeferredVerification) are not measured.
+     * 
+     * @param metrics
+     */
+    public void setMetrics(HMACMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics must not be null.");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the signing key for the secret key, decoding it only once as long as the secret key
+     * does not change
+     * 
+     * @return
+     * @throws SignatureException if the secret key is invalid
+     */
+    protected HMACSigningKey getSigningKey() throws SignatureException {
+        String secretKey = this.secretKey;
+        SigningKeyCache.Entry entry = this.signingKey;
+        if (entry == null || !entry.secretKey.equals(secretKey)) {
+            entry = new SigningKeyCache.Entry(secretKey,
+                this.algorithm.createSigningKey(secretKey));
+            this.signingKey = entry;
+        }
+        return entry.signingKey;
+    }
+
 }
@@ -1,7 +1,6 @@
 package com.acquia.http;
 
 import java.io.IOException;
-import java.security.SignatureException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -26,155 +25,194 @@ public abstract class HMACHttpServlet extends HttpServlet {
     /**
      * The config parameter that defines the name of the algorithm used the encrypt the message.
      */
-    public static final String SERVLET_CONFIG_ALGORITHM = "algorithm";
+    public static final String SERVLET_CONFIG_ALGORITHM = HMACRequestVerifier.CONFIG_ALGORITHM;
 
     /**
-     * The Algorithm used to create the HMAC.
+     * The config parameter that defines the number of bytes of a request body kept in memory;
+     * a longer body is buffered in a temporary file. By default the whole body is kept in memory.
      */
-    HMACAlgorithm algorithm;
+    public static final String SERVLET_CONFIG_SPILL_THRESHOLD = HMACRequestVerifier.CONFIG_SPILL_THRESHOLD;
 
-    @Override
-    public void init(ServletConfig config) throws ServletException {
-        super.init(config);
-        HMACAlgorithmFactory algorithmFactory = new HMACAlgorithmFactory();
-        String algorithmName = config.getInitParameter(SERVLET_CONFIG_ALGORITHM);
-        this.algorithm = algorithmFactory.createAlgorithm(algorithmName);
-    }
+    /**
+     * The config parameter that defines the number of access keys whose secret keys are cached;
+     * by default secret keys are not cached.
+     */
+    public static final String SERVLET_CONFIG_SECRET_KEY_CACHE_SIZE = HMACRequestVerifier.CONFIG_SECRET_KEY_CACHE_SIZE;
 
-    @Override
-    public void service(ServletRequest request, ServletResponse response)
-            throws ServletException, IOException {
-        if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
-            HttpServletRequest httpRequest = (HttpServletRequest) request;
-            HttpServletResponse httpResponse = (HttpServletResponse) response;
-            CharRequestWrapper wrappedRequest = new CharRequestWrapper(httpRequest);
-            CharResponseWrapper wrappedResponse = new CharResponseWrapper(httpResponse);
+    /**
+     * The config parameter that defines the number of seconds a secret key is cached.
+     */
+    public static final String SERVLET_CONFIG_SECRET_KEY_CACHE_TTL = HMACRequestVerifier.CONFIG_SECRET_KEY_CACHE_TTL;
 
-            //upon entry
-            boolean isAuthorized = this.validateRequestAuthorization(wrappedRequest,
-                wrappedResponse);
+    /**
+     * The config parameter that defines the number of seconds an unknown access key is cached.
+     */
+    public static final String SERVLET_CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL = HMACRequestVerifier.CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL;
 
-            if (isAuthorized) {
-                //reset input stream so it is ready to be consumed again
-                wrappedRequest.resetInputStream();
+    /**
+     * The config parameter that defines whether a request whose nonce has already been seen is
+     * rejected; "false" by default.
+     */
+    public static final String SERVLET_CONFIG_NONCE_REPLAY_CHECK = HMACRequestVerifier.CONFIG_NONCE_REPLAY_CHECK;
 
-                //do service
-                this.doHmacService(wrappedRequest, wrappedResponse);
+    /**
+     * The config parameter that defines whether verification metrics are published as an MXBean named
+     * after the servlet; "false" by default.
+     */
+    public static final String SERVLET_CONFIG_JMX_METRICS = HMACRequestVerifier.CONFIG_JMX_METRICS;
 
-                //upon exit
-                this.appendServerResponseValidation(wrappedRequest, wrappedResponse, httpResponse);
-            }
-        } else {
-            super.service(request, response);
-        }
-    }
+    /**
+     * The config parameter that defines the tolerance of X-Authorization-Timestamp, in seconds;
+     * 900 by default.
+     */
+    public static final String SERVLET_CONFIG_TIMESTAMP_TOLERANCE = HMACRequestVerifier.CONFIG_TIMESTAMP_TOLERANCE;
 
     /**
-     * Helper method to validate request authorization
-     * @param wrappedRequest
-     * @param wrappedResponse
-     * @return true if signature is correct; false otherwise
-     * @throws IOException
+     * The config parameter that defines the number of milliseconds between two reads of the system
+     * clock by a background thread, which the servlet stops in destroy; by default the system clock is
+     * read for every request.
+     */
+    public static final String SERVLET_CONFIG_CLOCK_TICK_MILLIS = HMACRequestVerifier.CONFIG_CLOCK_TICK_MILLIS;
+
+    /**
+     * The verification shared with HMACFilter; created by init.
      */
-    private boolean validateRequestAuthorization(CharRequestWrapper wrappedRequest,
-            CharResponseWrapper wrappedResponse) throws IOException {
-        //check timestamp
-        String xAuthorizationTimestamp = wrappedRequest.getHeader(
-            HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP);
-        if (xAuthorizationTimestamp != null) {
-            int timestampStatus = this.compareTimestampWithinTolerance(
-                Long.parseLong(xAuthorizationTimestamp));
-            if (timestampStatus > 0) {
-                String message = "Error: X-Authorization-Timestamp is too far in the future.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return false;
-            } else if (timestampStatus < 0) {
-                String message = "Error: X-Authorization-Timestamp is too far in the past.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return false;
+    HMACRequestVerifier verifier;
+
+    @Override
+    public void init(final ServletConfig config) throws ServletException {
+        super.init(config);
+        this.verifier = new HMACRequestVerifier(logger) {
+            @Override
+            String getInitParameter(String name) {
+                return config.getInitParameter(name);
             }
-        } else {
-            String message = "Error: X-Authorization-Timestamp is required.";
-            logger.error(message);
-            wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-            return false;
-        }
 
-        //check authorization
-        String authorization = wrappedRequest.getHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION);
-        if (authorization != null) {
-            HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
-                authorization);
-            if (authHeader == null) {
-                String message = "Error: Invalid authHeader; one or more required attributes are not set.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return false;
+            @Override
+            SecretKeyProvider createSecretKeyLoader() {
+                return HMACHttpServlet.this.createSecretKeyLoader();
             }
 
-            String accessKey = authHeader.getId();
-            String signature = authHeader.getSignature();
+            @Override
+            HMACClock createClock() {
+                return HMACHttpServlet.this.createClock();
+            }
 
-            String secretKey = null;
-            try {
-                secretKey = getSecretKey(accessKey);
-            } catch(SecretKeyException skE) {
-                String message = "Error: " + skE.getMessage();
-                logger.error(message + "\n" + skE.getStackTrace());
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return false;
+            @Override
+            HMACMetrics createMetrics() throws ServletException {
+                return HMACHttpServlet.this.createMetrics(config);
             }
 
-            //check request validity
-            HMACMessageCreator messageCreator = new HMACMessageCreator();
-            String signableRequestMessage = messageCreator.createSignableRequestMessage(
-                wrappedRequest);
-            logger.trace("signableRequestMessage:\n" + signableRequestMessage);
-            String signedRequestMessage = "";
-            try {
-                signedRequestMessage = this.algorithm.encryptMessage(secretKey,
-                    signableRequestMessage);
-                logger.trace("signedRequestMessage:\n" + signedRequestMessage);
-            } catch(SignatureException e) {
-                String message = "Fail to sign request message";
-                logger.error(message);
-                throw new IOException(message, e);
+            @Override
+            NonceStore createNonceStore() {
+                return HMACHttpServlet.this.createNonceStore();
+            }
+
+            @Override
+            int compareTimestampWithinTolerance(long unixTimestamp) {
+                return HMACHttpServlet.this.compareTimestampWithinTolerance(unixTimestamp);
+            }
+        };
+        this.verifier.init();
+    }
+
+    @Override
+    public void service(ServletRequest request, ServletResponse response)
+            throws ServletException, IOException {
+        if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
+            HttpServletRequest httpRequest = (HttpServletRequest) request;
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+            //check the headers first, so a request that cannot pass is rejected before its body is read
+            HMACVerificationContext context = this.verifier.checkRequestHeaders(httpRequest,
+                httpResponse);
+            if (context == null) {
+                return;
             }
 
-            if (signature.compareTo(signedRequestMessage) != 0) {
-                String message = "Error: Invalid authentication token.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return false;
+            CharRequestWrapper wrappedRequest = this.verifier.readRequestBody(httpRequest);
+            try {
+                CharResponseWrapper wrappedResponse = new CharResponseWrapper(httpResponse);
+
+                //upon entry
+                boolean isAuthorized = this.verifier.verifyRequest(wrappedRequest,
+                    wrappedResponse, context);
+
+                if (isAuthorized) {
+                    //reset input stream so it is ready to be consumed again
+                    wrappedRequest.resetInputStream();
+
+                    //do service
+                    this.doHmacService(wrappedRequest, wrappedResponse);
+
+                    //upon exit
+                    this.verifier.signResponse(wrappedResponse, context);
+                    httpResponse.getOutputStream().write(wrappedResponse.getByteArray()); //write back the response to the REAL HttpServletResponse
+                }
+            } finally {
+                //release the temporary file of a spilled body
+                wrappedRequest.close();
             }
         } else {
-            String message = "Error: Authorization is required.";
-            logger.error(message);
-            wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-            return false;
+            super.service(request, response);
         }
+    }
 
-        return true;
+    @Override
+    public void destroy() {
+        if (this.verifier != null) {
+            this.verifier.destroy();
+        }
+        super.destroy();
     }
 
     /**
-     * Check if timestamp is within tolerance (900 seconds)
+     * Check if timestamp is within tolerance (SERVLET_CONFIG_TIMESTAMP_TOLERANCE; 900 seconds by default)
      * 
      * @param unixTimestamp
      * @return non-zero if timestamp is outside tolerance (positive if in the future; negative in the past); otherwise return zero
      */
     protected int compareTimestampWithinTolerance(long unixTimestamp) {
-        long tolerance = 900;
-        long unixCurrent = System.currentTimeMillis() / 1000L;
-        if (unixTimestamp > unixCurrent + tolerance) {
-            return 1;
-        } else if (unixTimestamp < unixCurrent - tolerance) {
-            return -1;
-        } else {
-            return 0;
+        return Timestamps.compareWithinTolerance(this.verifier.clock, unixTimestamp,
+            this.getTimestampTolerance());
+    }
+
+    /**
+     * Get the tolerance of X-Authorization-Timestamp, in seconds; the nonce store remembers nonces
+     * for that long. A subclass that widens the window of compareTimestampWithinTolerance must
+     * override this as well, otherwise requests older than the nonce store are rejected as replays.
+     * 
+     * @return
+     */
+    protected long getTimestampTolerance() {
+        return this.verifier.timestampTolerance;
+    }
+
+    /**
+     * Create the source of the current time; by default a CachedHMACClock if SERVLET_CONFIG_CLOCK_TICK_MILLIS
+     * is set, and the system clock otherwise. A CachedHMACClock is shut down by destroy.
+     * 
+     * @return
+     */
+    protected HMACClock createClock() {
+        if (this.verifier.clockTickMillis > 0) {
+            return new CachedHMACClock(this.verifier.clockTickMillis);
         }
+        return SystemHMACClock.INSTANCE;
+    }
+
+    /**
+     * Create the measurements of verification; by default they are published as an MXBean if
+     * SERVLET_CONFIG_JMX_METRICS is set, and not taken otherwise
+     * 
+     * @param config
+     * @return
+     * @throws ServletException if the MXBean cannot be registered
+     */
+    protected HMACMetrics createMetrics(ServletConfig config) throws ServletException {
+        return HMACRequestVerifier.createMetrics(
+            config.getInitParameter(SERVLET_CONFIG_JMX_METRICS), "HMACHttpServlet",
+            config.getServletName());
     }
 
     /**
@@ -191,65 +229,28 @@ public abstract class HMACHttpServlet extends HttpServlet {
     }
 
     /**
-     * Helper method to append server response validation
+     * Create the store of the nonces already seen; by default nonces are kept in memory,
+     * which only detects replays on this node
      * 
-     * @param wrappedRequest
-     * @param wrappedResponse
-     * @param httpResponse
-     * @throws IOException
+     * @return
      */
-    private void appendServerResponseValidation(CharRequestWrapper wrappedRequest,
-            CharResponseWrapper wrappedResponse, HttpServletResponse httpResponse)
-            throws IOException {
-        String xAuthorizationTimestamp = wrappedRequest.getHeader(
-            HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP);
-        String authorization = wrappedRequest.getHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION);
-        if (authorization != null) {
-            HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
-                authorization);
-            if (authHeader == null) {
-                String message = "Error: Authorization is invalid.";
-                logger.error(message);
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return;
-            }
-
-            String accessKey = authHeader.getId();
-            String nonce = authHeader.getNonce();
-
-            String secretKey = null;
-            try {
-                secretKey = getSecretKey(accessKey);
-            } catch(SecretKeyException skE) {
-                String message = "Error: " + skE.getMessage();
-                logger.error(message + "\n" + skE.getStackTrace());
-                wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-                return;
-            }
+    protected NonceStore createNonceStore() {
+        return new InMemoryNonceStore(this.getTimestampTolerance());
+    }
 
-            //set response validation header
-            HMACMessageCreator messageCreator = new HMACMessageCreator();
-            String responseContent = wrappedResponse.toString();
-            String signableResponseMessage = messageCreator.createSignableResponseMessage(nonce,
-                xAuthorizationTimestamp, responseContent);
-            String signedResponseMessage = "";
-            try {
-                signedResponseMessage = this.algorithm.encryptMessage(secretKey,
-                    signableResponseMessage);
-            } catch(SignatureException e) {
-                String message = "Fail to sign response message";
-                logger.error(message);
-                throw new IOException(message, e);
+    /**
+     * Create the provider that looks up the secret keys that are not cached;
+     * by default secret keys are looked up by getSecretKey
+     * 
+     * @return
+     */
+    protected SecretKeyProvider createSecretKeyLoader() {
+        return new SecretKeyProvider() {
+            @Override
+            public String getSecretKey(String accessKey) throws SecretKeyException {
+                return HMACHttpServlet.this.getSecretKey(accessKey);
             }
-            wrappedResponse.setHeader(
-                HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
-                signedResponseMessage);
-            httpResponse.getOutputStream().write(wrappedResponse.getByteArray()); //write back the response to the REAL HttpServletResponse
-        } else {
-            String message = "Error: Authorization is required.";
-            logger.error(message);
-            wrappedResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
-        }
+        };
     }
 
     /**
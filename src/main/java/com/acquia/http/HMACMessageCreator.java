@@ -1,6 +1,5 @@
 package com.acquia.http;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -60,6 +59,65 @@ public class HMACMessageCreator {
      * @throws IOException if bodyHash cannot be created
      */
     public String createSignableRequestMessage(HttpServletRequest request) throws IOException {
+        StringBuilder result = new StringBuilder();
+        this.appendSignableRequestMessage(request, result);
+        return result.toString();
+    }
+
+    /**
+     * Create request signature message from HTTP request and its verification context
+     * 
+     * @param request HTTP request
+     * @param context verification context of the request
+     * @return The message to be encrypted
+     * @throws IOException if bodyHash cannot be created
+     */
+    public String createSignableRequestMessage(HttpServletRequest request,
+            HMACVerificationContext context) throws IOException {
+        StringBuilder result = new StringBuilder();
+        this.appendSignableRequestMessage(request, context, result);
+        return result.toString();
+    }
+
+    /**
+     * Write request signature message from HTTP request into the given message;
+     * use an HMACMessageSigner to encrypt the message without building it as a String
+     * 
+     * The Authorization header is only parsed if the request holds no HMACVerificationContext.
+     * 
+     * @param request HTTP request
+     * @param result where the message to be encrypted is written
+     * @throws IOException if bodyHash cannot be created
+     */
+    public void appendSignableRequestMessage(HttpServletRequest request, Appendable result)
+            throws IOException {
+        HMACVerificationContext context = HMACVerificationContext.getVerificationContext(request);
+        if (context == null) {
+            String authorization = request.getHeader(PARAMETER_AUTHORIZATION);
+            HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
+                authorization);
+            if (authHeader == null) {
+                String message = "Error: Invalid authHeader; one or more required attributes are not set.";
+                logger.error(message);
+                throw new IOException(message);
+            }
+            context = new HMACVerificationContext(authHeader,
+                request.getHeader(PARAMETER_X_AUTHORIZATION_TIMESTAMP));
+        }
+        this.appendSignableRequestMessage(request, context, result);
+    }
+
+    /**
+     * Write request signature message from HTTP request and its verification context
+     * into the given message
+     * 
+     * @param request HTTP request
+     * @param context verification context of the request
+     * @param result where the message to be encrypted is written
+     * @throws IOException if bodyHash cannot be created
+     */
+    public void appendSignableRequestMessage(HttpServletRequest request,
+            HMACVerificationContext context, Appendable result) throws IOException {
         String httpVerb = request.getMethod().toUpperCase();
 
         String host = request.getHeader(PARAMETER_HOST);
@@ -71,33 +129,32 @@ public class HMACMessageCreator {
              path = replacedPath;
         }
         String queryParameters = request.getQueryString();
-        logger.trace("Query string received: " + queryParameters);
+        logger.trace("Query string received: {}", queryParameters);
         if (queryParameters == null) {
             queryParameters = "";
         }
 
-        String authorization = request.getHeader(PARAMETER_AUTHORIZATION);
-        HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
-            authorization);
-        if (authHeader == null) {
-            String message = "Error: Invalid authHeader; one or more required attributes are not set.";
-            logger.error(message);
-            throw new IOException(message);
-        }
-
+        HMACAuthorizationHeader authHeader = context.getAuthorizationHeader();
         Map<String, String> authorizationCustomHeaderParameterMap = this.getCustomHeaderMap(
             authHeader, request);
 
-        String xAuthorizationTimestamp = request.getHeader(PARAMETER_X_AUTHORIZATION_TIMESTAMP);
+        String xAuthorizationTimestamp = context.getXAuthorizationTimestamp();
         int contentLength = request.getContentLength();
         String contentType = request.getContentType();
         String xAuthorizationContentSha256 = request.getHeader(
             PARAMETER_X_AUTHORIZATION_CONTENT_SHA256);
         InputStream requestBody = request.getInputStream();
+        byte[] requestBodySha256 = context.getBodySha256();
+        if (requestBodySha256 == null && request instanceof CharRequestWrapper) {
+            //body was already hashed while it was buffered
+            requestBodySha256 = ((CharRequestWrapper) request).getBodySha256();
+            context.setBodySha256(requestBodySha256);
+        }
 
-        return this.createSignableRequestMessage(httpVerb, host, path, queryParameters, authHeader,
-            authorizationCustomHeaderParameterMap, xAuthorizationTimestamp, contentLength,
-            contentType, xAuthorizationContentSha256, requestBody);
+        this.appendSignableRequestMessage(result, httpVerb, host, path, queryParameters,
+            authHeader, authorizationCustomHeaderParameterMap, xAuthorizationTimestamp,
+            contentLength, contentType, xAuthorizationContentSha256, requestBody,
+            requestBodySha256);
     }
 
     String getFirstHost(String host){
@@ -146,6 +203,23 @@ public class HMACMessageCreator {
      */
     protected String createSignableRequestMessage(HttpRequest request,
             HMACAuthorizationHeader authHeader) throws HttpException, IOException {
+        StringBuilder result = new StringBuilder();
+        this.appendSignableRequestMessage(request, authHeader, result);
+        return result.toString();
+    }
+
+    /**
+     * Write request signature message from HTTP request into the given message
+     * 
+     * @param request; HTTP request
+     * @param authHeader; specify authHeader
+     * @param result; where the message to be encrypted is written
+     * @throws HttpException
+     * @throws IOException if bodyHash cannot be created
+     */
+    protected void appendSignableRequestMessage(HttpRequest request,
+            HMACAuthorizationHeader authHeader, Appendable result)
+            throws HttpException, IOException {
         String httpVerb = request.getRequestLine().getMethod().toUpperCase();
 
         String host = request.getFirstHeader(PARAMETER_HOST).getValue();
@@ -183,9 +257,9 @@ public class HMACMessageCreator {
 
         //optional content length
         Header contentLengthHeader = request.getFirstHeader(PARAMETER_CONTENT_LENGTH);
-        int contentLength = 0;
+        long contentLength = 0;
         if (contentLengthHeader != null) {
-            contentLength = Integer.parseInt(contentLengthHeader.getValue());
+            contentLength = Long.parseLong(contentLengthHeader.getValue());
         }
 
         //optional content type
@@ -205,20 +279,27 @@ public class HMACMessageCreator {
 
         //optional request body
         InputStream requestBody = null;
+        byte[] requestBodySha256 = null;
         if (request instanceof HttpEntityEnclosingRequest) {
             HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
             if (entity != null) {
-                requestBody = entity.getContent();
+                if (entity instanceof DigestingHttpEntity) {
+                    //already hashed; do not read the body again
+                    requestBodySha256 = ((DigestingHttpEntity) entity).getContentSha256();
+                } else {
+                    requestBody = entity.getContent();
+                }
                 //if contentLength is still 0, try setting it from entity
                 if (contentLength == 0) {
-                    contentLength = (int) entity.getContentLength();
+                    contentLength = entity.getContentLength();
                 }
             }
         }
 
-        return this.createSignableRequestMessage(httpVerb, host, path, queryParameters, authHeader,
-            authorizationCustomHeaderParameterMap, xAuthorizationTimestamp, contentLength,
-            contentType, xAuthorizationContentSha256, requestBody);
+        this.appendSignableRequestMessage(result, httpVerb, host, path, queryParameters,
+            authHeader, authorizationCustomHeaderParameterMap, xAuthorizationTimestamp,
+            contentLength, contentType, xAuthorizationContentSha256, requestBody,
+            requestBodySha256);
     }
 
     /**
@@ -250,8 +331,9 @@ public class HMACMessageCreator {
     }
 
     /**
-     * Helper method to create request signature message from HTTP request attributes
+     * Helper method to write request signature message from HTTP request attributes
      * 
+     * @param result; where the message is written
      * @param httpVerb; HTTP request method (GET, POST, etc)
      * @param host; HTTP "Host" request header field (including any port number)
      * @param path; HTTP request path with leading slash '/'
@@ -263,16 +345,15 @@ public class HMACMessageCreator {
      * @param contentType; value of Content-Type header
      * @param xAuthorizationContentSha256; encrypted body hash for request body
      * @param requestBody; request body
-     * @return The message to be encrypted
+     * @param requestBodySha256; SHA-256 of request body if already known, otherwise null
      * @throws IOException if bodyHash cannot be created
      */
-    private String createSignableRequestMessage(String httpVerb, String host, String path,
-            String queryParameters, HMACAuthorizationHeader authHeader,
+    private void appendSignableRequestMessage(Appendable result, String httpVerb, String host,
+            String path, String queryParameters, HMACAuthorizationHeader authHeader,
             Map<String, String> authorizationCustomHeaderParameterMap,
-            String xAuthorizationTimestamp, int contentLength, String contentType,
-            String xAuthorizationContentSha256, InputStream requestBody) throws IOException {
-
-        StringBuilder result = new StringBuilder();
+            String xAuthorizationTimestamp, long contentLength, String contentType,
+            String xAuthorizationContentSha256, InputStream requestBody, byte[] requestBodySha256)
+            throws IOException {
 
         //adding request URI information
         result.append(httpVerb.toUpperCase()).append("\n");
@@ -281,10 +362,15 @@ public class HMACMessageCreator {
         result.append(queryParameters).append("\n");
 
         //adding Authorization header parameters
-        result.append("id=").append(this.escapeProper(authHeader.getId()));
-        result.append("&nonce=").append(this.escapeProper(authHeader.getNonce()));
-        result.append("&realm=").append(this.escapeProper(authHeader.getRealm()));
-        result.append("&version=").append(this.escapeProper(authHeader.getVersion()));
+        AuthorizationHeaderTemplate template = authHeader.getTemplate();
+        if (template != null) {
+            template.appendSignableParameters(result, escapeProper(authHeader.getNonce()));
+        } else {
+            result.append("id=").append(escapeProper(authHeader.getId()));
+            result.append("&nonce=").append(escapeProper(authHeader.getNonce()));
+            result.append("&realm=").append(escapeProper(authHeader.getRealm()));
+            result.append("&version=").append(escapeProper(authHeader.getVersion()));
+        }
         result.append("\n");
 
         //adding Authorization custom header parameters
@@ -300,8 +386,10 @@ public class HMACMessageCreator {
         result.append(xAuthorizationTimestamp);
 
         //adding more if needed
-        if (this.isPassingRequestBody(contentLength, xAuthorizationContentSha256, requestBody)) {
-            if (this.isValidRequestBody(xAuthorizationContentSha256, requestBody)) {
+        if (this.isPassingRequestBody(contentLength, xAuthorizationContentSha256, requestBody,
+            requestBodySha256)) {
+            if (this.isValidRequestBody(xAuthorizationContentSha256, requestBody,
+                requestBodySha256)) {
                 result.append("\n").append(contentType.toLowerCase());
                 result.append("\n").append(xAuthorizationContentSha256);
             } else {
@@ -310,18 +398,26 @@ public class HMACMessageCreator {
                 throw new IOException(message);
             }
         }
-        return result.toString();
     }
 
     /**
-     * Escape String with UTF-8 encoding
+     * Escape String with UTF-8 encoding; a String that has nothing to escape, such as a UUID, is
+     * returned as it is
      * 
      * @param theString
      * @return
      * @throws UnsupportedEncodingException
      */
-    private String escapeProper(String theString) throws UnsupportedEncodingException {
-        return URLEncoder.encode(theString, ENCODING_UTF_8).replace("+", "%20");
+    static String escapeProper(String theString) throws UnsupportedEncodingException {
+        for (int i = 0; i < theString.length(); i++) {
+            char c = theString.charAt(i);
+            boolean isUnreserved = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '*';
+            if (!isUnreserved) {
+                return URLEncoder.encode(theString, ENCODING_UTF_8).replace("+", "%20");
+            }
+        }
+        return theString;
     }
 
     /**
@@ -330,77 +426,78 @@ public class HMACMessageCreator {
      * @param contentLength
      * @param xAuthorizationContentSha256
      * @param requestBody
+     * @param requestBodySha256; SHA-256 of requestBody if already known, otherwise null
      * @return
      */
-    private boolean isPassingRequestBody(int contentLength, String xAuthorizationContentSha256,
-            InputStream requestBody) {
+    private boolean isPassingRequestBody(long contentLength, String xAuthorizationContentSha256,
+            InputStream requestBody, byte[] requestBodySha256) {
         if (contentLength <= 0 || xAuthorizationContentSha256 == null
-                || xAuthorizationContentSha256.length() <= 0 || requestBody == null) {
+                || xAuthorizationContentSha256.length() <= 0
+                || (requestBody == null && requestBodySha256 == null)) {
             return false;
         }
         return true;
     }
 
+    /**
+     * Check if the hash of the request body matches X-Authorization-Content-SHA256, so that a
+     * tampered body is rejected before the HMAC is computed
+     * 
+     * @param request
+     * @param requestBodySha256; SHA-256 of the request body
+     * @return false if the body is part of the signable message and its hash does not match; true otherwise
+     * @throws IOException
+     */
+    boolean isMatchingRequestBody(HttpServletRequest request, byte[] requestBodySha256)
+            throws IOException {
+        String xAuthorizationContentSha256 = request.getHeader(
+            PARAMETER_X_AUTHORIZATION_CONTENT_SHA256);
+        if (!this.isPassingRequestBody(request.getContentLength(), xAuthorizationContentSha256,
+            null, requestBodySha256)) {
+            return true;
+        }
+        return this.isValidRequestBody(xAuthorizationContentSha256, null, requestBodySha256);
+    }
+
     /**
      * Method to help check if requestBody has the same hash as specified
      * 
      * @param xAuthorizationContentSha256
      * @param requestBody
+     * @param requestBodySha256; SHA-256 of requestBody if already known, otherwise null
      * @return
      * @throws IOException 
      */
-    private boolean isValidRequestBody(String xAuthorizationContentSha256, InputStream requestBody)
-            throws IOException {
+    private boolean isValidRequestBody(String xAuthorizationContentSha256, InputStream requestBody,
+            byte[] requestBodySha256) throws IOException {
         if (xAuthorizationContentSha256 == null || xAuthorizationContentSha256.length() <= 0
-                || requestBody == null) {
+                || (requestBody == null && requestBodySha256 == null)) {
             return false;
         }
 
         //calculate and check body hash
-        String bodyHash = this.getBase64Sha256String(requestBody); //v2 specification requires base64 encoded SHA-256
+        String bodyHash; //v2 specification requires base64 encoded SHA-256
+        if (requestBodySha256 != null) {
+            bodyHash = Base64.encodeBase64String(requestBodySha256);
+        } else {
+            bodyHash = this.getBase64Sha256String(requestBody);
+        }
         return bodyHash.equals(xAuthorizationContentSha256);
     }
 
     /**
-     * Get base64 encoded SHA-256 of an inputStream
+     * Get base64 encoded SHA-256 of an inputStream; the stream is hashed while it is read
      * 
      * @param inputStream
      * @return
      * @throws IOException
      */
     private String getBase64Sha256String(InputStream inputStream) throws IOException {
-        byte[] inputStreamBytes = this.convertInputStreamIntoByteArrayOutputStream(
-            inputStream).toByteArray();
-        byte[] encBody = DigestUtils.sha256(inputStreamBytes);
+        byte[] encBody = DigestUtils.sha256(inputStream);
         String bodyHash = Base64.encodeBase64String(encBody);
         return bodyHash;
     }
 
-    /**
-     * Convert InputStream into byte[]
-     * 
-     * @param inputStream
-     * @return
-     * @throws IOException 
-     */
-    private ByteArrayOutputStream convertInputStreamIntoByteArrayOutputStream(
-            InputStream inputStream) throws IOException {
-        if (inputStream == null) {
-            return null;
-        }
-
-        byte[] byteChunk = new byte[1024];
-        int length = -1;
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while ((length = inputStream.read(byteChunk)) != -1) {
-            baos.write(byteChunk, 0, length);
-        }
-        baos.flush();
-        baos.close();
-        return baos;
-    }
-
     /**
      * Create response signature message from HTTP response attributes
      * 
@@ -416,10 +513,27 @@ public class HMACMessageCreator {
         }
 
         StringBuilder result = new StringBuilder();
-        result.append(nonce).append("\n");
-        result.append(xAuthorizationTimestamp).append("\n");
+        try {
+            this.appendSignableResponseMessagePrefix(nonce, xAuthorizationTimestamp, result);
+        } catch(IOException e) {
+            throw new IllegalStateException(e); //StringBuilder does not throw IOException
+        }
         result.append(responseContent);
         return result.toString();
     }
 
+    /**
+     * Append the part of the response signature message that comes before the response content
+     * 
+     * @param nonce
+     * @param xAuthorizationTimestamp
+     * @param result; destination of the message; the response content is appended afterwards
+     * @throws IOException if the destination cannot be written
+     */
+    public void appendSignableResponseMessagePrefix(String nonce, String xAuthorizationTimestamp,
+            Appendable result) throws IOException {
+        result.append(nonce).append("\n");
+        result.append(xAuthorizationTimestamp).append("\n");
+    }
+
 }
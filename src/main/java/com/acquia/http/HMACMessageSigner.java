@@ -0,0 +1,244 @@
+package com.acquia.http;
+
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+
+import javax.crypto.Mac;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Encrypts a message that is written piece by piece, without building the message as a String first.
+ * 
+ * Characters are encoded as UTF-8 straight into the Mac, so the result is the same as encrypting the
+ * whole UTF-8 encoded message at once. A signer is meant for a single message and a single thread;
+ * the Mac it uses is given back to the signing key once the message is encrypted.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACMessageSigner implements Appendable {
+
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * Replacement of malformed surrogates, same as String.getBytes
+     */
+    private static final byte REPLACEMENT = (byte) '?';
+
+    private final HMACSigningKey signingKey;
+
+    private Mac mac;
+
+    /**
+     * Buffer of encoded characters not yet passed to the Mac
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength = 0;
+
+    /**
+     * High surrogate waiting for its low surrogate, or 0
+     */
+    private char pendingHighSurrogate = 0;
+
+    /**
+     * Constructor; use HMACAlgorithm.createMessageSigner to create a signer
+     * 
+     * @param signingKey; signing key used to encrypt the message
+     * @throws SignatureException if no Mac can be created for the key
+     */
+    HMACMessageSigner(HMACSigningKey signingKey) throws SignatureException {
+        this.signingKey = signingKey;
+        this.mac = signingKey.borrowMac();
+    }
+
+    @Override
+    public HMACMessageSigner append(CharSequence csq) {
+        if (csq == null) {
+            csq = "null";
+        }
+        return this.append(csq, 0, csq.length());
+    }
+
+    @Override
+    public HMACMessageSigner append(CharSequence csq, int start, int end) {
+        if (csq == null) {
+            csq = "null";
+        }
+        for (int i = start; i < end; i++) {
+            this.encode(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public HMACMessageSigner append(char c) {
+        this.encode(c);
+        return this;
+    }
+
+    /**
+     * Add raw bytes to the message
+     * 
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        this.flushPendingSurrogate();
+        this.flushBuffer();
+        this.getMac().update(bytes, offset, length);
+    }
+
+    /**
+     * Add the remaining bytes of a buffer to the message; the buffer position moves to its limit
+     * 
+     * @param input
+     */
+    public void update(ByteBuffer input) {
+        this.flushPendingSurrogate();
+        this.flushBuffer();
+        this.getMac().update(input);
+    }
+
+    /**
+     * Encrypt the message written so far; the signer cannot be used afterwards
+     * 
+     * @return Base64 encoded HMAC of the message
+     * @throws SignatureException if the message cannot be encrypted
+     */
+    public String encryptMessage() throws SignatureException {
+        return Base64.encodeBase64String(this.doFinal());
+    }
+
+    /**
+     * Finish the message and give the Mac back to the signing key
+     * 
+     * @return raw HMAC of the message
+     * @throws SignatureException if the message cannot be encrypted
+     */
+    byte[] doFinal() throws SignatureException {
+        Mac mac = this.getMac();
+        byte[] result;
+        try {
+            this.flushPendingSurrogate();
+            this.flushBuffer();
+            result = mac.doFinal(); //doFinal resets the Mac to its initialized state
+        } catch(Exception e) {
+            this.mac = null;
+            throw new SignatureException("Failed to generate HMAC : " + e.getMessage());
+        }
+        this.mac = null;
+        this.signingKey.releaseMac(mac);
+        return result;
+    }
+
+    /**
+     * Finish the message into the given buffer and give the Mac back to the signing key
+     * 
+     * @param output; buffer of at least getMacLength() bytes
+     * @throws SignatureException if the message cannot be encrypted
+     */
+    void doFinal(byte[] output) throws SignatureException {
+        Mac mac = this.getMac();
+        try {
+            this.flushPendingSurrogate();
+            this.flushBuffer();
+            mac.doFinal(output, 0);
+        } catch(Exception e) {
+            this.mac = null;
+            throw new SignatureException("Failed to generate HMAC : " + e.getMessage());
+        }
+        this.mac = null;
+        this.signingKey.releaseMac(mac);
+    }
+
+    /**
+     * Get the algorithm of the signing key
+     * 
+     * @return
+     */
+    String getAlgorithm() {
+        return this.signingKey.getAlgorithm();
+    }
+
+    /**
+     * Get the length of the HMAC in bytes
+     * 
+     * @return
+     */
+    int getMacLength() {
+        return this.getMac().getMacLength();
+    }
+
+    private Mac getMac() {
+        if (this.mac == null) {
+            throw new IllegalStateException("Message has already been encrypted.");
+        }
+        return this.mac;
+    }
+
+    /**
+     * Encode a character as UTF-8 into the buffer
+     * 
+     * @param c
+     */
+    private void encode(char c) {
+        if (this.pendingHighSurrogate != 0) {
+            char high = this.pendingHighSurrogate;
+            this.pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                this.ensureBuffer(4);
+                this.buffer[this.bufferLength++] = (byte) (0xF0 | (codePoint >> 18));
+                this.buffer[this.bufferLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                this.buffer[this.bufferLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                this.buffer[this.bufferLength++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            this.ensureBuffer(1);
+            this.buffer[this.bufferLength++] = REPLACEMENT;
+        }
+
+        if (c < 0x80) {
+            this.ensureBuffer(1);
+            this.buffer[this.bufferLength++] = (byte) c;
+        } else if (c < 0x800) {
+            this.ensureBuffer(2);
+            this.buffer[this.bufferLength++] = (byte) (0xC0 | (c >> 6));
+            this.buffer[this.bufferLength++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            this.pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            this.ensureBuffer(1);
+            this.buffer[this.bufferLength++] = REPLACEMENT;
+        } else {
+            this.ensureBuffer(3);
+            this.buffer[this.bufferLength++] = (byte) (0xE0 | (c >> 12));
+            this.buffer[this.bufferLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            this.buffer[this.bufferLength++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void flushPendingSurrogate() {
+        if (this.pendingHighSurrogate != 0) {
+            this.pendingHighSurrogate = 0;
+            this.ensureBuffer(1);
+            this.buffer[this.bufferLength++] = REPLACEMENT;
+        }
+    }
+
+    private void ensureBuffer(int length) {
+        if (this.bufferLength + length > BUFFER_SIZE) {
+            this.flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        if (this.bufferLength > 0) {
+            this.getMac().update(this.buffer, 0, this.bufferLength);
+            this.bufferLength = 0;
+        }
+    }
+
+}
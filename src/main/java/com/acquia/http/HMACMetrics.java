@@ -0,0 +1,80 @@
+package com.acquia.http;
+
+/**
+ * The HMACMetrics interface defines the measurements taken by HMACFilter, HMACHttpServlet and the
+ * HTTP client interceptors: how long each stage of signing or verification takes, why requests and
+ * responses are rejected, and how large the request bodies are.
+ * 
+ * Implementations must be thread-safe and cheap, since they are called on every request.
+ * NoopHMACMetrics is used by default; JmxHMACMetrics publishes the measurements as an MXBean.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface HMACMetrics {
+
+    /**
+     * Stages of signing or verifying a message
+     */
+    enum Stage {
+        /**
+         * Parsing X-Authorization-Timestamp and the Authorization header
+         */
+        HEADER_PARSE,
+        /**
+         * Looking up the secret key of the access key
+         */
+        KEY_LOOKUP,
+        /**
+         * Reading and hashing the request body
+         */
+        BODY_HASH,
+        /**
+         * Computing the HMAC of the request, or of the response on the client
+         */
+        MAC_COMPUTE,
+        /**
+         * Computing the HMAC of the response on the server
+         */
+        RESPONSE_SIGNING
+    }
+
+    /**
+     * Reasons for rejecting a request or a response
+     */
+    enum Rejection {
+        TIMESTAMP_MISSING,
+        TIMESTAMP_INVALID,
+        TIMESTAMP_PAST,
+        TIMESTAMP_FUTURE,
+        AUTHORIZATION_MISSING,
+        INVALID_HEADER,
+        UNKNOWN_KEY,
+        BODY_HASH_MISMATCH,
+        BAD_SIGNATURE,
+        NONCE_REPLAYED,
+        RESPONSE_SIGNATURE_MISSING
+    }
+
+    /**
+     * Record the time taken by a stage.
+     * 
+     * @param stage
+     * @param nanos Duration, in nanoseconds
+     */
+    void recordStage( Stage stage, long nanos );
+
+    /**
+     * Record a rejected request or response.
+     * 
+     * @param rejection
+     */
+    void recordRejection( Rejection rejection );
+
+    /**
+     * Record the size of a request body that has been hashed.
+     * 
+     * @param bytes
+     */
+    void recordBodySize( long bytes );
+}
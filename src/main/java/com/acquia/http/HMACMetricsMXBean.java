@@ -0,0 +1,60 @@
+package com.acquia.http;
+
+import java.util.Map;
+
+/**
+ * The management interface of JmxHMACMetrics. Maps are keyed by the names of HMACMetrics.Stage,
+ * HMACMetrics.Rejection, or by the upper bound of a body size bucket.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface HMACMetricsMXBean {
+
+    /**
+     * Get the number of times each stage has been recorded.
+     * 
+     * @return
+     */
+    Map<String, Long> getStageCounts();
+
+    /**
+     * Get the total time spent in each stage, in nanoseconds.
+     * 
+     * @return
+     */
+    Map<String, Long> getStageTotalNanos();
+
+    /**
+     * Get the longest time spent in each stage, in nanoseconds.
+     * 
+     * @return
+     */
+    Map<String, Long> getStageMaxNanos();
+
+    /**
+     * Get the number of rejections for each reason.
+     * 
+     * @return
+     */
+    Map<String, Long> getRejectionCounts();
+
+    /**
+     * Get the number of request bodies whose size is at most each bucket bound, and above the previous one.
+     * 
+     * @return
+     */
+    Map<String, Long> getBodySizeHistogram();
+
+    /**
+     * Get the total size of the request bodies, in bytes.
+     * 
+     * @return
+     */
+    long getBodySizeTotal();
+
+    /**
+     * Set every measurement back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,469 @@
+package com.acquia.http;
+
+import java.io.IOException;
+import java.security.SignatureException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The verification of signed requests shared by HMACFilter and HMACHttpServlet: the configuration
+ * read from their init-params, the checks that only need the request headers, the checks of the
+ * request body and signature, and the signature of the response.
+ * 
+ * Each filter or servlet creates one in init, and implements its hooks with its own protected
+ * methods, so subclasses keep overriding those.
+ * 
+ * @author chris.nagy
+ *
+ */
+abstract class HMACRequestVerifier {
+
+    static final String CONFIG_ALGORITHM = "algorithm";
+    static final String CONFIG_SPILL_THRESHOLD = "spillThreshold";
+    static final String CONFIG_SECRET_KEY_CACHE_SIZE = "secretKeyCacheSize";
+    static final String CONFIG_SECRET_KEY_CACHE_TTL = "secretKeyCacheTtl";
+    static final String CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL = "secretKeyNotFoundCacheTtl";
+    static final String CONFIG_NONCE_REPLAY_CHECK = "nonceReplayCheck";
+    static final String CONFIG_JMX_METRICS = "jmxMetrics";
+    static final String CONFIG_TIMESTAMP_TOLERANCE = "timestampTolerance";
+    static final String CONFIG_CLOCK_TICK_MILLIS = "clockTickMillis";
+
+    private static final long DEFAULT_SECRET_KEY_CACHE_TTL = 300;
+    private static final long DEFAULT_SECRET_KEY_NOT_FOUND_CACHE_TTL = 60;
+
+    /**
+     * The logger of the filter or servlet
+     */
+    private final Logger logger;
+
+    /**
+     * The Algorithm used to create the HMAC.
+     */
+    HMACAlgorithm algorithm;
+
+    /**
+     * The number of bytes of a request body kept in memory.
+     */
+    long spillThreshold = CharRequestWrapper.NO_SPILL_THRESHOLD;
+
+    /**
+     * The provider of secret keys, backed by the secret key loader.
+     */
+    CachingSecretKeyProvider secretKeyProvider;
+
+    /**
+     * The store of the nonces already seen; null if replays are not checked.
+     */
+    NonceStore nonceStore;
+
+    /**
+     * The source of the current time.
+     */
+    HMACClock clock;
+
+    /**
+     * The number of milliseconds between two reads of the system clock by a CachedHMACClock; 0 if
+     * the system clock is read on every call.
+     */
+    long clockTickMillis = 0;
+
+    /**
+     * The tolerance of X-Authorization-Timestamp, in seconds.
+     */
+    long timestampTolerance = Timestamps.DEFAULT_TOLERANCE;
+
+    /**
+     * The measurements of verification.
+     */
+    HMACMetrics metrics = NoopHMACMetrics.INSTANCE;
+
+    /**
+     * Constructor
+     * 
+     * @param logger; logger of the filter or servlet
+     */
+    HMACRequestVerifier(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Read the configuration from the init-params, and create what it needs through the hooks
+     * 
+     * @throws ServletException if the configuration is invalid
+     */
+    void init() throws ServletException {
+        HMACAlgorithmFactory algorithmFactory = new HMACAlgorithmFactory();
+        this.algorithm = algorithmFactory.createAlgorithm(this.getInitParameter(CONFIG_ALGORITHM));
+
+        this.spillThreshold = this.getLongInitParameter(CONFIG_SPILL_THRESHOLD,
+            CharRequestWrapper.NO_SPILL_THRESHOLD);
+
+        long secretKeyCacheSize = this.getLongInitParameter(CONFIG_SECRET_KEY_CACHE_SIZE, 0);
+        long secretKeyCacheTtl = this.getLongInitParameter(CONFIG_SECRET_KEY_CACHE_TTL,
+            DEFAULT_SECRET_KEY_CACHE_TTL);
+        long secretKeyNotFoundCacheTtl = this.getLongInitParameter(
+            CONFIG_SECRET_KEY_NOT_FOUND_CACHE_TTL, DEFAULT_SECRET_KEY_NOT_FOUND_CACHE_TTL);
+        try {
+            this.secretKeyProvider = new CachingSecretKeyProvider(this.createSecretKeyLoader(),
+                (int) Math.min(secretKeyCacheSize, Integer.MAX_VALUE), secretKeyCacheTtl,
+                secretKeyNotFoundCacheTtl, TimeUnit.SECONDS);
+        } catch(IllegalArgumentException e) {
+            throw new ServletException("Invalid secret key cache configuration", e);
+        }
+
+        this.clockTickMillis = this.getLongInitParameter(CONFIG_CLOCK_TICK_MILLIS, 0);
+        if (this.clockTickMillis < 0) {
+            throw new ServletException("Invalid " + CONFIG_CLOCK_TICK_MILLIS + ": "
+                    + this.clockTickMillis);
+        }
+        this.clock = this.createClock();
+        this.metrics = this.createMetrics();
+        this.timestampTolerance = this.getLongInitParameter(CONFIG_TIMESTAMP_TOLERANCE,
+            Timestamps.DEFAULT_TOLERANCE);
+        if (this.timestampTolerance < 0) {
+            throw new ServletException("Invalid " + CONFIG_TIMESTAMP_TOLERANCE + ": "
+                    + this.timestampTolerance);
+        }
+
+        if (this.getBooleanInitParameter(CONFIG_NONCE_REPLAY_CHECK)) {
+            this.nonceStore = this.createNonceStore();
+        }
+    }
+
+    /**
+     * Release what init has registered or started
+     */
+    void destroy() {
+        if (this.clock instanceof CachedHMACClock) {
+            ((CachedHMACClock) this.clock).shutdown();
+        }
+        if (this.metrics instanceof JmxHMACMetrics) {
+            ((JmxHMACMetrics) this.metrics).unregister();
+        }
+    }
+
+    /**
+     * Run the checks that only need the request headers: timestamp, Authorization header and access
+     * key. The request body is not read.
+     * 
+     * @param httpRequest
+     * @param httpResponse
+     * @return the verification context, without the body hash; or null if the request has been rejected
+     * @throws IOException
+     */
+    HMACVerificationContext checkRequestHeaders(HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) throws IOException {
+        //check timestamp
+        long startTime = System.nanoTime();
+        String xAuthorizationTimestamp = httpRequest.getHeader(
+            HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP);
+        if (xAuthorizationTimestamp == null) {
+            this.reject(httpResponse, HMACMetrics.Rejection.TIMESTAMP_MISSING,
+                "Error: X-Authorization-Timestamp is required.");
+            return null;
+        }
+        long unixTimestamp = Timestamps.parseUnixTimestamp(xAuthorizationTimestamp);
+        if (unixTimestamp == Timestamps.INVALID_TIMESTAMP) {
+            this.reject(httpResponse, HMACMetrics.Rejection.TIMESTAMP_INVALID,
+                "Error: X-Authorization-Timestamp is invalid.");
+            return null;
+        }
+        int timestampStatus = this.compareTimestampWithinTolerance(unixTimestamp);
+        if (timestampStatus > 0) {
+            this.reject(httpResponse, HMACMetrics.Rejection.TIMESTAMP_FUTURE,
+                "Error: X-Authorization-Timestamp is too far in the future.");
+            return null;
+        } else if (timestampStatus < 0) {
+            this.reject(httpResponse, HMACMetrics.Rejection.TIMESTAMP_PAST,
+                "Error: X-Authorization-Timestamp is too far in the past.");
+            return null;
+        }
+
+        //check authorization
+        String authorization = httpRequest.getHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION);
+        if (authorization == null) {
+            this.reject(httpResponse, HMACMetrics.Rejection.AUTHORIZATION_MISSING,
+                "Error: Authorization is required.");
+            return null;
+        }
+        HMACAuthorizationHeader authHeader = null;
+        try {
+            authHeader = HMACAuthorizationHeader.parse(authorization);
+        } catch(ParseException e) {
+            this.reject(httpResponse, HMACMetrics.Rejection.INVALID_HEADER,
+                "Error: Invalid authHeader; " + e.getMessage());
+            return null;
+        }
+        HMACVerificationContext context = new HMACVerificationContext(authHeader,
+            xAuthorizationTimestamp);
+        long headerParsedTime = System.nanoTime();
+        this.metrics.recordStage(HMACMetrics.Stage.HEADER_PARSE, headerParsedTime - startTime);
+
+        //check access key
+        try {
+            context.setSigningKey(this.secretKeyProvider.getSigningKey(context.getAccessKey(),
+                this.algorithm));
+            this.metrics.recordStage(HMACMetrics.Stage.KEY_LOOKUP,
+                System.nanoTime() - headerParsedTime);
+        } catch(SecretKeyException skE) {
+            this.metrics.recordRejection(HMACMetrics.Rejection.UNKNOWN_KEY);
+            String message = "Error: " + skE.getMessage();
+            this.logger.error(message, skE);
+            httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
+            return null;
+        } catch(SignatureException e) {
+            String message = "Fail to sign request message";
+            this.logger.error(message, e);
+            throw new IOException(message, e);
+        }
+        return context;
+    }
+
+    /**
+     * Read the request body, blocking until all of it has arrived
+     * 
+     * @param httpRequest
+     * @return
+     * @throws IOException
+     */
+    CharRequestWrapper readRequestBody(HttpServletRequest httpRequest) throws IOException {
+        long bodyStartTime = System.nanoTime();
+        CharRequestWrapper result = new CharRequestWrapper(httpRequest, this.spillThreshold);
+        this.metrics.recordStage(HMACMetrics.Stage.BODY_HASH, System.nanoTime() - bodyStartTime);
+        return result;
+    }
+
+    /**
+     * Check the request body, signature and nonce once the headers have been checked, and start the
+     * response message
+     * 
+     * @param wrappedRequest
+     * @param wrappedResponse
+     * @param context; verification context returned by checkRequestHeaders
+     * @return true if the request is valid; false if it has been rejected
+     * @throws IOException
+     */
+    boolean verifyRequest(CharRequestWrapper wrappedRequest, CharResponseWrapper wrappedResponse,
+            HMACVerificationContext context) throws IOException {
+        this.metrics.recordBodySize(wrappedRequest.getBodyLength());
+        context.setBodySha256(wrappedRequest.getBodySha256());
+        context.setVerificationContext(wrappedRequest); //available to the rest of the pipeline
+
+        String xAuthorizationTimestamp = context.getXAuthorizationTimestamp();
+        String signature = context.getSignature();
+        HMACSigningKey signingKey = context.getSigningKey();
+
+        //check the body hash before computing the HMAC
+        HMACMessageCreator messageCreator = new HMACMessageCreator();
+        if (!messageCreator.isMatchingRequestBody(wrappedRequest, context.getBodySha256())) {
+            this.reject(wrappedResponse, HMACMetrics.Rejection.BODY_HASH_MISMATCH,
+                "Error: Request body does not have the same hash as X-Authorization-Content-Sha256 header.");
+            return false;
+        }
+
+        //check request validity
+        boolean isValidSignature = false;
+        long macStartTime = System.nanoTime();
+        try {
+            if (this.logger.isTraceEnabled()) {
+                String signableRequestMessage = messageCreator.createSignableRequestMessage(
+                    wrappedRequest, context);
+                this.logger.trace("signableRequestMessage:\n{}", signableRequestMessage);
+                this.logger.trace("signedRequestMessage:\n{}",
+                    this.algorithm.encryptMessage(signingKey, signableRequestMessage));
+                isValidSignature = this.algorithm.verifyMessage(signingKey,
+                    signableRequestMessage, signature);
+            } else {
+                //write the message straight into the Mac, without building it as a String
+                HMACMessageSigner signer = this.algorithm.createMessageSigner(signingKey);
+                messageCreator.appendSignableRequestMessage(wrappedRequest, context, signer);
+                isValidSignature = this.algorithm.verifyMessage(signer, signature);
+            }
+        } catch(SignatureException e) {
+            String message = "Fail to sign request message";
+            this.logger.error(message, e);
+            throw new IOException(message, e);
+        }
+
+        this.metrics.recordStage(HMACMetrics.Stage.MAC_COMPUTE, System.nanoTime() - macStartTime);
+
+        if (!isValidSignature) {
+            if (this.logger.isDebugEnabled()) {
+                //only put together once the request has failed
+                this.logger.debug("signableRequestMessage:\n{}",
+                    messageCreator.createSignableRequestMessage(wrappedRequest, context));
+            }
+            this.reject(wrappedResponse, HMACMetrics.Rejection.BAD_SIGNATURE,
+                "Error: Invalid authentication token.");
+            return false;
+        }
+
+        //check replay; only once the signature is known to be valid, so nonces cannot be burnt by others
+        if (this.nonceStore != null && !this.nonceStore.add(context.getNonce(),
+            Timestamps.parseUnixTimestamp(xAuthorizationTimestamp))) {
+            this.reject(wrappedResponse, HMACMetrics.Rejection.NONCE_REPLAYED,
+                "Error: Nonce has already been used.");
+            return false;
+        }
+
+        //start the response message; the body is added as it is written
+        try {
+            HMACMessageSigner responseSigner = this.algorithm.createMessageSigner(signingKey);
+            messageCreator.appendSignableResponseMessagePrefix(context.getNonce(),
+                xAuthorizationTimestamp, responseSigner);
+            wrappedResponse.setMessageSigner(responseSigner);
+        } catch(SignatureException e) {
+            String message = "Fail to sign response message";
+            this.logger.error(message, e);
+            throw new IOException(message, e);
+        }
+        return true;
+    }
+
+    /**
+     * Set the response validation header once the response has been written
+     * 
+     * @param wrappedResponse; response with the message signer set by verifyRequest
+     * @param context
+     * @throws IOException
+     */
+    void signResponse(CharResponseWrapper wrappedResponse, HMACVerificationContext context)
+            throws IOException {
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("signableResponseMessage:\n{}",
+                new HMACMessageCreator().createSignableResponseMessage(context.getNonce(),
+                    context.getXAuthorizationTimestamp(), wrappedResponse.toString()));
+        }
+        String signedResponseMessage = "";
+        long signingStartTime = System.nanoTime();
+        try {
+            signedResponseMessage = wrappedResponse.encryptMessage();
+            this.metrics.recordStage(HMACMetrics.Stage.RESPONSE_SIGNING,
+                System.nanoTime() - signingStartTime);
+            this.logger.trace("signedResponseMessage:\n{}", signedResponseMessage);
+        } catch(SignatureException e) {
+            String message = "Fail to sign response message";
+            this.logger.error(message, e);
+            throw new IOException(message, e);
+        }
+        wrappedResponse.setHeader(HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
+            signedResponseMessage);
+    }
+
+    /**
+     * Create the measurements published as an MXBean if CONFIG_JMX_METRICS is set
+     * 
+     * @param jmxMetrics; value of CONFIG_JMX_METRICS, or null
+     * @param type; HMACFilter or HMACHttpServlet
+     * @param name; name of the filter or servlet
+     * @return
+     * @throws ServletException if the MXBean cannot be registered
+     */
+    static HMACMetrics createMetrics(String jmxMetrics, String type, String name)
+            throws ServletException {
+        if (jmxMetrics != null && Boolean.parseBoolean(jmxMetrics.trim())) {
+            try {
+                return JmxHMACMetrics.register(type, name);
+            } catch(IllegalStateException e) {
+                throw new ServletException("Invalid metrics configuration", e);
+            }
+        }
+        return NoopHMACMetrics.INSTANCE;
+    }
+
+    /**
+     * Read a boolean config parameter; false unless it is "true"
+     * 
+     * @param name
+     * @return
+     */
+    boolean getBooleanInitParameter(String name) {
+        String value = this.getInitParameter(name);
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Read a numeric config parameter
+     * 
+     * @param name
+     * @param defaultValue; value if the parameter is not set
+     * @return
+     * @throws ServletException if the parameter is not a number
+     */
+    long getLongInitParameter(String name, long defaultValue) throws ServletException {
+        String value = this.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException e) {
+            throw new ServletException("Invalid " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Reject a request with 401 and count the rejection
+     * 
+     * @param httpResponse
+     * @param rejection
+     * @param message
+     * @throws IOException
+     */
+    private void reject(HttpServletResponse httpResponse, HMACMetrics.Rejection rejection,
+            String message) throws IOException {
+        this.logger.error(message);
+        this.metrics.recordRejection(rejection);
+        httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, message);
+    }
+
+    /**
+     * Get an init-param of the filter or servlet
+     * 
+     * @param name
+     * @return the value; or null if it is not set
+     */
+    abstract String getInitParameter(String name);
+
+    /**
+     * Create the provider that looks up the secret keys that are not cached
+     * 
+     * @return
+     */
+    abstract SecretKeyProvider createSecretKeyLoader();
+
+    /**
+     * Create the source of the current time
+     * 
+     * @return
+     */
+    abstract HMACClock createClock();
+
+    /**
+     * Create the measurements of verification
+     * 
+     * @return
+     * @throws ServletException
+     */
+    abstract HMACMetrics createMetrics() throws ServletException;
+
+    /**
+     * Create the store of the nonces already seen; only called if replays are checked
+     * 
+     * @return
+     */
+    abstract NonceStore createNonceStore();
+
+    /**
+     * Check if timestamp is within tolerance
+     * 
+     * @param unixTimestamp
+     * @return non-zero if timestamp is outside tolerance (positive if in the future; negative in the past); otherwise return zero
+     */
+    abstract int compareTimestampWithinTolerance(long unixTimestamp);
+
+}
@@ -0,0 +1,190 @@
+package com.acquia.http;
+
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A decoded secret key, ready to be used by an HMACAlgorithm.
+ * 
+ * The key is decoded once and keeps a pool of Mac instances that are already initialized with it,
+ * so signing with this key never repeats the Base64 decoding or the Mac initialization.
+ * Create one per access key and reuse it for every request and response signature of that key.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACSigningKey {
+
+    /**
+     * Maximum number of idle initialized Mac instances kept by a key
+     */
+    static final int MAX_IDLE_MACS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * The name of the algorithm. See Java Cryptography Architecture Reference Guide for valid names.
+     */
+    private final String algorithm;
+
+    /**
+     * The decoded secret key
+     */
+    private final byte[] key;
+
+    /**
+     * The prepared key specification
+     */
+    private final SecretKeySpec keySpec;
+
+    /**
+     * Initialized Mac that is never handed out; it is only cloned when the pool is empty
+     */
+    private final Mac template;
+
+    private final Queue<Mac> idleMacs = new ConcurrentLinkedQueue<Mac>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Create a signing key from a base64 encoded secret key
+     * 
+     * @param algorithm; name of the Mac algorithm, for example: HmacSHA256
+     * @param secretKey; base64 encoded secret key
+     * @throws SignatureException if the algorithm is not supported or the key is invalid
+     */
+    public HMACSigningKey(String algorithm, String secretKey) throws SignatureException {
+        this(algorithm, secretKey == null ? null : Base64.decodeBase64(secretKey));
+    }
+
+    /**
+     * Create a signing key from a decoded secret key
+     * 
+     * @param algorithm; name of the Mac algorithm, for example: HmacSHA256
+     * @param key; decoded secret key
+     * @throws SignatureException if the algorithm is not supported or the key is invalid
+     */
+    public HMACSigningKey(String algorithm, byte[] key) throws SignatureException {
+        this(algorithm, key, null);
+    }
+
+    /**
+     * Create a signing key, using the given uninitialized Mac as template if it is set
+     * 
+     * @param algorithm
+     * @param key
+     * @param mac; uninitialized Mac of the algorithm, or null to look one up
+     * @throws SignatureException if the algorithm is not supported or the key is invalid
+     */
+    HMACSigningKey(String algorithm, byte[] key, Mac mac) throws SignatureException {
+        if (key == null || key.length == 0) {
+            throw new SignatureException("Failed to create signing key : empty key");
+        }
+        this.algorithm = algorithm;
+        this.key = key.clone();
+        try {
+            this.keySpec = new SecretKeySpec(this.key, algorithm);
+            this.template = mac != null ? mac : Mac.getInstance(algorithm);
+            this.template.init(this.keySpec);
+        } catch(GeneralSecurityException e) {
+            throw new SignatureException("Failed to create signing key : " + e.getMessage());
+        } catch(IllegalArgumentException e) {
+            throw new SignatureException("Failed to create signing key : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the name of the Mac algorithm of this key
+     * 
+     * @return
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get a copy of the decoded secret key
+     * 
+     * @return
+     */
+    public byte[] getEncoded() {
+        return key.clone();
+    }
+
+    /**
+     * Get the prepared key specification
+     * 
+     * @return
+     */
+    public SecretKeySpec getSecretKeySpec() {
+        return keySpec;
+    }
+
+    /**
+     * Take an initialized Mac out of the pool, creating one if the pool is empty.
+     * The Mac must be given back with releaseMac once the message has been signed.
+     * 
+     * @return Mac initialized with this key
+     * @throws SignatureException if a new Mac cannot be created
+     */
+    Mac borrowMac() throws SignatureException {
+        Mac mac = this.idleMacs.poll();
+        if (mac != null) {
+            this.idleCount.decrementAndGet();
+            return mac;
+        }
+        try {
+            return (Mac) this.template.clone();
+        } catch(CloneNotSupportedException e) {
+            try {
+                mac = Mac.getInstance(this.algorithm);
+                mac.init(this.keySpec);
+                return mac;
+            } catch(GeneralSecurityException gse) {
+                throw new SignatureException("Failed to generate HMAC : " + gse.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Give a Mac back to the pool after doFinal has been called on it.
+     * 
+     * @param mac
+     */
+    void releaseMac(Mac mac) {
+        if (this.idleCount.incrementAndGet() <= MAX_IDLE_MACS) {
+            this.idleMacs.offer(mac);
+        } else {
+            this.idleCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * algorithm.hashCode() + Arrays.hashCode(key);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof HMACSigningKey)) {
+            return false;
+        }
+        HMACSigningKey other = (HMACSigningKey) obj;
+        return algorithm.equals(other.algorithm) && Arrays.equals(key, other.key);
+    }
+
+    @Override
+    public String toString() {
+        return "HMACSigningKey[" + algorithm + "]"; //never print the key itself
+    }
+
+}
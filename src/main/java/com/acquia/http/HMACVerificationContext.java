@@ -0,0 +1,106 @@
+package com.acquia.http;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * What is known about a request while it is verified: the parsed Authorization header, the timestamp,
+ * the resolved signing key and the request body hash.
+ * 
+ * The context is created once per request by HMACFilter or HMACHttpServlet and stored as the request
+ * attribute REQUEST_ATTRIBUTE, so the header is not parsed again further down the pipeline.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACVerificationContext {
+
+    /**
+     * Name of the request attribute that holds the context
+     */
+    public static final String REQUEST_ATTRIBUTE = HMACVerificationContext.class.getName();
+
+    private final HMACAuthorizationHeader authorizationHeader;
+
+    private final String xAuthorizationTimestamp;
+
+    private HMACSigningKey signingKey;
+
+    private byte[] bodySha256;
+
+    /**
+     * Constructor
+     * 
+     * @param authorizationHeader; parsed Authorization header
+     * @param xAuthorizationTimestamp; X-Authorization-Timestamp header
+     */
+    public HMACVerificationContext(HMACAuthorizationHeader authorizationHeader,
+            String xAuthorizationTimestamp) {
+        this.authorizationHeader = authorizationHeader;
+        this.xAuthorizationTimestamp = xAuthorizationTimestamp;
+    }
+
+    /**
+     * Get the context stored in the request
+     * 
+     * @param request
+     * @return the context; or null if the request has none
+     */
+    public static HMACVerificationContext getVerificationContext(ServletRequest request) {
+        Object context = request.getAttribute(REQUEST_ATTRIBUTE);
+        if (context instanceof HMACVerificationContext) {
+            return (HMACVerificationContext) context;
+        }
+        return null;
+    }
+
+    /**
+     * Store this context in the request
+     * 
+     * @param request
+     */
+    public void setVerificationContext(ServletRequest request) {
+        request.setAttribute(REQUEST_ATTRIBUTE, this);
+    }
+
+    public HMACAuthorizationHeader getAuthorizationHeader() {
+        return this.authorizationHeader;
+    }
+
+    public String getAccessKey() {
+        return this.authorizationHeader.getId();
+    }
+
+    public String getNonce() {
+        return this.authorizationHeader.getNonce();
+    }
+
+    public String getSignature() {
+        return this.authorizationHeader.getSignature();
+    }
+
+    public String getXAuthorizationTimestamp() {
+        return this.xAuthorizationTimestamp;
+    }
+
+    public HMACSigningKey getSigningKey() {
+        return this.signingKey;
+    }
+
+    public void setSigningKey(HMACSigningKey signingKey) {
+        this.signingKey = signingKey;
+    }
+
+    /**
+     * Get the SHA-256 hash of the request body
+     * 
+     * @return the hash; or null if the body has not been hashed
+     */
+    byte[] getBodySha256() {
+        return this.bodySha256;
+    }
+
+    void setBodySha256(byte[] bodySha256) {
+        this.bodySha256 = bodySha256;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.acquia.http;
+
+import java.io.IOException;
+
+/**
+ * Exception that is thrown when a response body read through HMACVerifyingHttpEntity
+ * does not match its X-Server-Authorization-HMAC-SHA256 response header.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACVerificationException extends IOException {
+
+    private static final long serialVersionUID = 2473105853412569402L;
+
+    public static final String INVALID_SIGNATURE = "Error: Invalid server response validation.";
+
+    public HMACVerificationException(String message) {
+        super(message);
+    }
+
+}
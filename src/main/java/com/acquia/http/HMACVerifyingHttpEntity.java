@@ -0,0 +1,172 @@
+package com.acquia.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SignatureException;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A response HttpEntity whose content is added to the response HMAC while the application reads it.
+ * 
+ * Once the end of the content is reached, the HMAC is checked against the
+ * X-Server-Authorization-HMAC-SHA256 response header; the read that reaches the end throws
+ * HMACVerificationException if they do not match. Content read before the end is not yet verified,
+ * so the application must read the whole content before it trusts any of it.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class HMACVerifyingHttpEntity extends HttpEntityWrapper {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Helper class to add the bytes read to the message signer and check the signature at the end
+     * 
+     * @author chris.nagy
+     *
+     */
+    private class VerifyingInputStream extends FilterInputStream {
+        private final byte[] singleByte = new byte[1];
+
+        VerifyingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = this.read(this.singleByte, 0, 1);
+            return result == -1 ? -1 : this.singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length = super.read(b, off, len);
+            if (length == -1) {
+                HMACVerifyingHttpEntity.this.verify();
+            } else if (length > 0) {
+                HMACVerifyingHttpEntity.this.update(b, off, length);
+            }
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //skipped bytes are part of the message too
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+            long skipped = 0;
+            while (skipped < n) {
+                int length = this.read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (length == -1) {
+                    break;
+                }
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("Mark is not supported.");
+        }
+    }
+
+    private final HMACAlgorithm algorithm;
+
+    private final String serverSignature;
+
+    /**
+     * Signer of the response message; null once the signature has been checked
+     */
+    private HMACMessageSigner messageSigner;
+
+    private boolean isValidSignature = false;
+
+    private VerifyingInputStream content;
+
+    /**
+     * Constructor
+     * 
+     * @param entity; the response entity
+     * @param algorithm; algorithm used to create the HMAC
+     * @param messageSigner; signer that already holds the start of the response message
+     * @param serverSignature; value of the X-Server-Authorization-HMAC-SHA256 response header
+     */
+    public HMACVerifyingHttpEntity(HttpEntity entity, HMACAlgorithm algorithm,
+            HMACMessageSigner messageSigner, String serverSignature) {
+        super(entity);
+        this.algorithm = algorithm;
+        this.messageSigner = messageSigner;
+        this.serverSignature = serverSignature;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    /**
+     * Get the content; the same stream is returned every time, since the content is verified only once
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        if (this.content == null) {
+            this.content = new VerifyingInputStream(super.getContent());
+        }
+        return this.content;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        InputStream inputStream = this.getContent();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length = -1;
+            while ((length = inputStream.read(buffer)) != -1) {
+                outstream.write(buffer, 0, length);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void update(byte[] bytes, int offset, int length) {
+        if (this.messageSigner != null) {
+            this.messageSigner.update(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Check the signature once the whole content has been read
+     * 
+     * @throws HMACVerificationException if the signature does not match
+     * @throws IOException if the message cannot be encrypted
+     */
+    private void verify() throws IOException {
+        if (this.messageSigner != null) {
+            HMACMessageSigner signer = this.messageSigner;
+            this.messageSigner = null;
+            try {
+                this.isValidSignature = this.algorithm.verifyMessage(signer, this.serverSignature);
+            } catch(SignatureException e) {
+                throw new IOException("Fail to sign response message", e);
+            }
+        }
+        if (!this.isValidSignature) {
+            throw new HMACVerificationException(HMACVerificationException.INVALID_SIGNATURE);
+        }
+    }
+
+}
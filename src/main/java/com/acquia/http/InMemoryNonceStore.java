@@ -0,0 +1,173 @@
+package com.acquia.http;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A NonceStore that keeps the nonces in memory, for a single node.
+ * 
+ * Nonces are grouped into time buckets by the timestamp of their request. There are just enough
+ * buckets to cover the timestamp tolerance on both sides, and a bucket is replaced as a whole once its
+ * time is past, so memory is bounded by the requests accepted within the tolerance window. Each bucket
+ * is a ConcurrentHashMap, so inserts from many threads do not contend on a lock. A nonce in UUID
+ * format is stored as its 128 bits; any other nonce as the first 128 bits of its SHA-256 hash.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class InMemoryNonceStore implements NonceStore {
+
+    /**
+     * Default number of seconds covered by one bucket
+     */
+    public static final long DEFAULT_BUCKET_SECONDS = 60;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 128-bit nonce
+     */
+    static final class NonceKey {
+        final long mostSignificantBits;
+        final long leastSignificantBits;
+
+        NonceKey(long mostSignificantBits, long leastSignificantBits) {
+            this.mostSignificantBits = mostSignificantBits;
+            this.leastSignificantBits = leastSignificantBits;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NonceKey)) {
+                return false;
+            }
+            NonceKey other = (NonceKey) obj;
+            return this.mostSignificantBits == other.mostSignificantBits
+                    && this.leastSignificantBits == other.leastSignificantBits;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = this.mostSignificantBits ^ this.leastSignificantBits;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    /**
+     * Nonces of the requests whose timestamp falls in one bucket period
+     */
+    private static final class Bucket {
+        final long period;
+        final ConcurrentMap<NonceKey, Boolean> nonces = new ConcurrentHashMap<NonceKey, Boolean>();
+
+        Bucket(long period) {
+            this.period = period;
+        }
+    }
+
+    private final long bucketSeconds;
+
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    /**
+     * Constructor with buckets of DEFAULT_BUCKET_SECONDS
+     * 
+     * @param toleranceSeconds; timestamp tolerance of the requests, in seconds
+     */
+    public InMemoryNonceStore(long toleranceSeconds) {
+        this(toleranceSeconds, DEFAULT_BUCKET_SECONDS);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param toleranceSeconds; timestamp tolerance of the requests, in seconds
+     * @param bucketSeconds; number of seconds covered by one bucket
+     */
+    public InMemoryNonceStore(long toleranceSeconds, long bucketSeconds) {
+        if (toleranceSeconds < 0 || bucketSeconds <= 0) {
+            throw new IllegalArgumentException("Invalid tolerance or bucket size.");
+        }
+        this.bucketSeconds = bucketSeconds;
+        //cover [now - tolerance, now + tolerance], plus the partial buckets at both ends
+        long bucketCount = (2 * toleranceSeconds + bucketSeconds - 1) / bucketSeconds + 2;
+        if (bucketCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many buckets; increase the bucket size.");
+        }
+        this.buckets = new AtomicReferenceArray<Bucket>((int) bucketCount);
+    }
+
+    @Override
+    public boolean add(String nonce, long unixTimestamp) {
+        long period = Math.floorDiv(unixTimestamp, this.bucketSeconds);
+        int index = (int) Math.floorMod(period, (long) this.buckets.length());
+
+        Bucket bucket = this.buckets.get(index);
+        while (bucket == null || bucket.period < period) {
+            //the bucket is empty or its time is past; start a new one
+            Bucket newBucket = new Bucket(period);
+            if (this.buckets.compareAndSet(index, bucket, newBucket)) {
+                bucket = newBucket;
+            } else {
+                bucket = this.buckets.get(index);
+            }
+        }
+        if (bucket.period > period) {
+            return false; //older than every nonce still remembered
+        }
+
+        return bucket.nonces.putIfAbsent(toNonceKey(nonce), Boolean.TRUE) == null;
+    }
+
+    /**
+     * Convert a nonce into its 128-bit key
+     * 
+     * @param nonce
+     * @return
+     */
+    static NonceKey toNonceKey(String nonce) {
+        if (nonce.length() == 36) {
+            long mostSignificantBits = 0;
+            long leastSignificantBits = 0;
+            boolean isUuid = true;
+            int digits = 0;
+            for (int i = 0; i < 36 && isUuid; i++) {
+                char c = nonce.charAt(i);
+                if (i == 8 || i == 13 || i == 18 || i == 23) {
+                    isUuid = c == '-';
+                    continue;
+                }
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    isUuid = false;
+                } else if (digits++ < 16) {
+                    mostSignificantBits = (mostSignificantBits << 4) | digit;
+                } else {
+                    leastSignificantBits = (leastSignificantBits << 4) | digit;
+                }
+            }
+            if (isUuid) {
+                return new NonceKey(mostSignificantBits, leastSignificantBits);
+            }
+        }
+
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(nonce.getBytes(UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //SHA-256 is always supported
+        }
+        long mostSignificantBits = 0;
+        long leastSignificantBits = 0;
+        for (int i = 0; i < 8; i++) {
+            mostSignificantBits = (mostSignificantBits << 8) | (hash[i] & 0xFF);
+            leastSignificantBits = (leastSignificantBits << 8) | (hash[i + 8] & 0xFF);
+        }
+        return new NonceKey(mostSignificantBits, leastSignificantBits);
+    }
+
+}
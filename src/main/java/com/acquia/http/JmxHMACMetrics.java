@@ -0,0 +1,260 @@
+package com.acquia.http;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * An HMACMetrics that keeps counters in memory and publishes them as an MXBean.
+ * 
+ * Counters are LongAdders, so concurrent requests do not contend on them. Body sizes are counted in
+ * buckets whose bounds grow by a factor of 16, from 0 bytes to 1 GB.
+ * 
+ * An MXBean that is already registered under the same name is never replaced: the metrics are
+ * registered under the next free name with an instance suffix instead.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class JmxHMACMetrics implements HMACMetrics, HMACMetricsMXBean, MBeanRegistration {
+
+    /**
+     * Domain of the names the metrics are registered under
+     */
+    public static final String JMX_DOMAIN = "com.acquia.http";
+
+    /**
+     * Upper bounds of the body size buckets, in bytes; larger bodies are counted in a last bucket
+     */
+    static final long[] BODY_SIZE_BOUNDS = { 0, 1L << 10, 1L << 14, 1L << 18, 1L << 22, 1L << 26,
+        1L << 30 };
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final Rejection[] REJECTIONS = Rejection.values();
+
+    private final LongAdder[] stageCounts = createAdders(STAGES.length);
+
+    private final LongAdder[] stageTotalNanos = createAdders(STAGES.length);
+
+    private final AtomicLongArray stageMaxNanos = new AtomicLongArray(STAGES.length);
+
+    private final LongAdder[] rejectionCounts = createAdders(REJECTIONS.length);
+
+    private final LongAdder[] bodySizeCounts = createAdders(BODY_SIZE_BOUNDS.length + 1);
+
+    private final LongAdder bodySizeTotal = new LongAdder();
+
+    /**
+     * The name the metrics are registered under; null if they are not registered, or once they have
+     * been unregistered by anyone
+     */
+    private volatile ObjectName objectName;
+
+    /**
+     * Create metrics and register them with the platform MBean server as
+     * com.acquia.http:type=&lt;type&gt;,name=&lt;name&gt;; or, if that name is taken, e.g. by the
+     * filter of the same name in another web application, as
+     * com.acquia.http:type=&lt;type&gt;,name=&lt;name&gt;,instance=&lt;n&gt;
+     * 
+     * @param type; for example: HMACFilter
+     * @param name; name of the filter, servlet or client
+     * @return
+     * @throws IllegalStateException if the metrics cannot be registered
+     */
+    public static JmxHMACMetrics register(String type, String name) {
+        JmxHMACMetrics result = new JmxHMACMetrics();
+        try {
+            String baseName = JMX_DOMAIN + ":type=" + ObjectName.quote(type) + ",name="
+                    + ObjectName.quote(name == null ? "default" : name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (int instance = 1; result.objectName == null; instance++) {
+                ObjectName objectName = new ObjectName(instance == 1 ? baseName
+                        : baseName + ",instance=" + instance);
+                try {
+                    server.registerMBean(result, objectName);
+                    result.objectName = objectName;
+                } catch(InstanceAlreadyExistsException e) {
+                    //taken by other metrics; try the next instance
+                }
+            }
+        } catch(JMException e) {
+            throw new IllegalStateException("Cannot register HMAC metrics " + name, e);
+        }
+        return result;
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if they are still registered; an
+     * MXBean registered under the same name since then is left alone
+     */
+    public void unregister() {
+        ObjectName name = this.objectName;
+        if (name != null) {
+            this.objectName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch(JMException e) {
+                //already unregistered
+            }
+        }
+    }
+
+    @Override
+    public ObjectName preRegister(MBeanServer server, ObjectName name) {
+        return name;
+    }
+
+    @Override
+    public void postRegister(Boolean registrationDone) {
+    }
+
+    @Override
+    public void preDeregister() {
+    }
+
+    @Override
+    public void postDeregister() {
+        //unregistered, possibly by someone else; the name may now belong to other metrics
+        this.objectName = null;
+    }
+
+    /**
+     * Get the name the metrics are registered under
+     * 
+     * @return the name; or null if the metrics are not registered
+     */
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+        int index = stage.ordinal();
+        this.stageCounts[index].increment();
+        this.stageTotalNanos[index].add(nanos);
+        long max = this.stageMaxNanos.get(index);
+        while (nanos > max && !this.stageMaxNanos.compareAndSet(index, max, nanos)) {
+            max = this.stageMaxNanos.get(index);
+        }
+    }
+
+    @Override
+    public void recordRejection(Rejection rejection) {
+        this.rejectionCounts[rejection.ordinal()].increment();
+    }
+
+    @Override
+    public void recordBodySize(long bytes) {
+        int index = 0;
+        while (index < BODY_SIZE_BOUNDS.length && bytes > BODY_SIZE_BOUNDS[index]) {
+            index++;
+        }
+        this.bodySizeCounts[index].increment();
+        this.bodySizeTotal.add(bytes);
+    }
+
+    /**
+     * Get the number of times the given stage has been recorded
+     * 
+     * @param stage
+     * @return
+     */
+    public long getStageCount(Stage stage) {
+        return this.stageCounts[stage.ordinal()].sum();
+    }
+
+    /**
+     * Get the number of rejections for the given reason
+     * 
+     * @param rejection
+     * @return
+     */
+    public long getRejectionCount(Rejection rejection) {
+        return this.rejectionCounts[rejection.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Stage stage : STAGES) {
+            result.put(stage.name(), this.stageCounts[stage.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageTotalNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Stage stage : STAGES) {
+            result.put(stage.name(), this.stageTotalNanos[stage.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Stage stage : STAGES) {
+            result.put(stage.name(), this.stageMaxNanos.get(stage.ordinal()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getRejectionCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Rejection rejection : REJECTIONS) {
+            result.put(rejection.name(), this.rejectionCounts[rejection.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getBodySizeHistogram() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BODY_SIZE_BOUNDS.length; i++) {
+            result.put("<=" + BODY_SIZE_BOUNDS[i], this.bodySizeCounts[i].sum());
+        }
+        result.put(">" + BODY_SIZE_BOUNDS[BODY_SIZE_BOUNDS.length - 1],
+            this.bodySizeCounts[BODY_SIZE_BOUNDS.length].sum());
+        return result;
+    }
+
+    @Override
+    public long getBodySizeTotal() {
+        return this.bodySizeTotal.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            this.stageCounts[i].reset();
+            this.stageTotalNanos[i].reset();
+            this.stageMaxNanos.set(i, 0);
+        }
+        for (LongAdder adder : this.rejectionCounts) {
+            adder.reset();
+        }
+        for (LongAdder adder : this.bodySizeCounts) {
+            adder.reset();
+        }
+        this.bodySizeTotal.reset();
+    }
+
+    private static LongAdder[] createAdders(int count) {
+        LongAdder[] result = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new LongAdder();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.acquia.http;
+
+/**
+ * The NonceGenerator interface defines a method to create the nonce of the Authorization header of a
+ * request. Implementations must be thread-safe.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface NonceGenerator {
+
+    /**
+     * Create a nonce that has not been used before.
+     * 
+     * @return Nonce in the RFC 4122 format of a UUID, for example d1954337-5319-4821-8427-115542e08d10
+     */
+    String createNonce();
+}
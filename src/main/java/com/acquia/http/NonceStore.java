@@ -0,0 +1,21 @@
+package com.acquia.http;
+
+/**
+ * The NonceStore interface defines a method to remember the nonces of accepted requests, so that a
+ * replayed request can be rejected. Implementations must be thread-safe; a cluster can use a shared
+ * backend so that a request cannot be replayed on another node.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface NonceStore {
+
+    /**
+     * Remember the given nonce, unless it has already been seen.
+     * 
+     * @param nonce Nonce of the Authorization header
+     * @param unixTimestamp X-Authorization-Timestamp of the request, in seconds
+     * @return true if the nonce has not been seen before; false if the request is a replay or too old to tell
+     */
+    boolean add( String nonce, long unixTimestamp );
+}
@@ -0,0 +1,25 @@
+package com.acquia.http;
+
+/**
+ * An HMACMetrics that records nothing.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class NoopHMACMetrics implements HMACMetrics {
+
+    public static final NoopHMACMetrics INSTANCE = new NoopHMACMetrics();
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+    }
+
+    @Override
+    public void recordRejection(Rejection rejection) {
+    }
+
+    @Override
+    public void recordBodySize(long bytes) {
+    }
+
+}
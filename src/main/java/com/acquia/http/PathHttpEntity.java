@@ -0,0 +1,82 @@
+package com.acquia.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A repeatable HttpEntity whose content is read from a file given by its Path.
+ * 
+ * HMACHttpRequestInterceptor hashes the file by reading its FileChannel in chunks, so large files are
+ * signed in constant memory.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class PathHttpEntity extends AbstractHttpEntity {
+
+    private final Path path;
+
+    /**
+     * Constructor
+     * 
+     * @param path; file to send
+     * @param contentType; content type of the file, or null
+     */
+    public PathHttpEntity(Path path, ContentType contentType) {
+        if (path == null) {
+            throw new IllegalArgumentException("Path must not be null.");
+        }
+        this.path = path;
+        if (contentType != null) {
+            this.setContentType(contentType.toString());
+        }
+    }
+
+    /**
+     * Get the file to send
+     * 
+     * @return
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        try {
+            return Files.size(this.path);
+        } catch(IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return Files.newInputStream(this.path);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream must not be null.");
+        }
+        Files.copy(this.path, outstream);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
@@ -1,25 +1,73 @@
 package com.acquia.http;
 
+import java.security.MessageDigest;
 import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 
 /**
  * The SHAHMACAlgorithm class creates HMACs by using the SHA algorithm. Supports 1, 256, 384 and 512 sizes.
  * 
+ * Initialized Mac instances are pooled by HMACSigningKey, so that signing a message with a known key
+ * only costs Mac.update/doFinal. Secret keys given as String are decoded once per thread.
+ * 
  * @author chris.nagy
  *
  */
 public class SHAHMACAlgorithm implements HMACAlgorithm {
 
+    /**
+     * Maximum number of decoded secret keys kept per thread
+     */
+    static final int MAX_CACHED_KEYS_PER_THREAD = 16;
+
     /**
      * The name of the algorithm. See Java Cryptography Architecture Reference Guide for valid names.
      */
     String algorithm = null;
 
+    /**
+     * The length of the HMAC in bytes
+     */
+    final int macLength;
+
+    /**
+     * Buffers of the current thread for the computed and the presented HMAC when verifying a signature
+     */
+    private final ThreadLocal<byte[][]> verifyBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] { new byte[macLength], new byte[macLength] };
+        }
+    };
+
+    /**
+     * Uninitialized Mac of this algorithm for the current thread; used as a prototype for new keys
+     */
+    private final ThreadLocal<Mac> prototypeMac = new ThreadLocal<Mac>();
+
+    /**
+     * Signing keys of the current thread, keyed by secret key (least recently used first)
+     */
+    private final ThreadLocal<Map<String, HMACSigningKey>> signingKeys = new ThreadLocal<Map<String, HMACSigningKey>>() {
+        @Override
+        protected Map<String, HMACSigningKey> initialValue() {
+            return new LinkedHashMap<String, HMACSigningKey>(MAX_CACHED_KEYS_PER_THREAD, 0.75f,
+                true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HMACSigningKey> eldest) {
+                    return this.size() > MAX_CACHED_KEYS_PER_THREAD;
+                }
+            };
+        }
+    };
+
     /**
      * Constructs a new SHAHMACAlgorithm with the given size.
      * 
@@ -31,24 +79,153 @@ public class SHAHMACAlgorithm implements HMACAlgorithm {
                     + " not supported (only 1, 256, 384 and 512 are supported)");
         }
         algorithm = "HmacSHA" + Integer.toString(shaSize);
+        macLength = shaSize == 1 ? 20 : shaSize / 8;
     }
 
     @Override
     public String encryptMessage(String secretKey, String message) throws SignatureException {
-        String result;
-        try {
-            Mac mac = Mac.getInstance(algorithm);
-            byte[] decodedSecretKey = Base64.decodeBase64(secretKey);
-            SecretKeySpec signingKey = new SecretKeySpec(decodedSecretKey, algorithm);
-            mac.init(signingKey);
+        Map<String, HMACSigningKey> keys = this.signingKeys.get();
+        HMACSigningKey signingKey = keys.get(secretKey);
+        if (signingKey == null) {
+            signingKey = this.createSigningKey(secretKey);
+            keys.put(secretKey, signingKey);
+        }
+        return this.encryptMessage(signingKey, message);
+    }
+
+    @Override
+    public String encryptMessage(HMACSigningKey signingKey, String message)
+            throws SignatureException {
+        return this.createMessageSigner(signingKey).append(message).encryptMessage();
+    }
+
+    @Override
+    public HMACSigningKey createSigningKey(String secretKey) throws SignatureException {
+        byte[] decodedSecretKey = secretKey == null ? null : Base64.decodeBase64(secretKey);
+        return new HMACSigningKey(algorithm, decodedSecretKey, this.newMac());
+    }
+
+    @Override
+    public HMACMessageSigner createMessageSigner(HMACSigningKey signingKey)
+            throws SignatureException {
+        this.checkSigningKey(signingKey);
+        return new HMACMessageSigner(signingKey);
+    }
 
-            byte[] rawHmac = mac.doFinal(message.getBytes());
-            result = Base64.encodeBase64String(rawHmac);
+    @Override
+    public boolean verifyMessage(HMACSigningKey signingKey, String message, String signature)
+            throws SignatureException {
+        return this.verifyMessage(this.createMessageSigner(signingKey).append(message), signature);
+    }
+
+    @Override
+    public boolean verifyMessage(HMACMessageSigner signer, String signature)
+            throws SignatureException {
+        if (!algorithm.equals(signer.getAlgorithm())) {
+            throw new SignatureException("Failed to generate HMAC : signer is for "
+                    + signer.getAlgorithm() + ", not " + algorithm);
+        }
+        byte[][] buffers = this.verifyBuffers.get();
+        byte[] computed = buffers[0];
+        byte[] presented = buffers[1];
+        signer.doFinal(computed);
+        if (signature == null || decodeBase64(signature, presented) != macLength) {
+            return false; //the length of a signature is not a secret
+        }
+        return MessageDigest.isEqual(computed, presented);
+    }
+
+    /**
+     * Decode a base64 (standard or URL safe alphabet) String into the given buffer
+     * 
+     * @param encoded
+     * @param output
+     * @return number of decoded bytes, or -1 if the String is not base64 or does not fit into the buffer
+     */
+    static int decodeBase64(String encoded, byte[] output) {
+        int length = encoded.length();
+        while (length > 0 && encoded.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1 || encoded.length() - length > 2) {
+            return -1;
+        }
+        int decodedLength = length / 4 * 3 + Math.max(length % 4 - 1, 0);
+        if (decodedLength > output.length) {
+            return -1;
+        }
 
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            int value = decodeBase64Character(encoded.charAt(i));
+            if (value < 0) {
+                return -1;
+            }
+            bits = ((bits << 6) | value) & 0xFFFF;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                output[position++] = (byte) (bits >> bitCount);
+            }
+        }
+        return position;
+    }
+
+    private static int decodeBase64Character(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '+' || c == '-') {
+            return 62;
+        } else if (c == '/' || c == '_') {
+            return 63;
+        }
+        return -1;
+    }
+
+    /**
+     * Make sure the signing key was created for this algorithm
+     * 
+     * @param signingKey
+     * @throws SignatureException
+     */
+    private void checkSigningKey(HMACSigningKey signingKey) throws SignatureException {
+        if (signingKey == null) {
+            throw new SignatureException("Failed to generate HMAC : no signing key");
+        }
+        if (!algorithm.equals(signingKey.getAlgorithm())) {
+            throw new SignatureException("Failed to generate HMAC : signing key is for "
+                    + signingKey.getAlgorithm() + ", not " + algorithm);
+        }
+    }
+
+    /**
+     * Create a new uninitialized Mac, cloned from the prototype of this thread where possible
+     * to avoid the synchronized provider lookup of Mac.getInstance
+     * 
+     * @return
+     * @throws SignatureException if the algorithm is not supported
+     */
+    private Mac newMac() throws SignatureException {
+        try {
+            Mac prototype = this.prototypeMac.get();
+            if (prototype == null) {
+                prototype = Mac.getInstance(algorithm);
+                this.prototypeMac.set(prototype);
+            }
+            try {
+                return (Mac) prototype.clone();
+            } catch(CloneNotSupportedException e) {
+                return Mac.getInstance(algorithm);
+            }
         } catch(Exception e) {
             throw new SignatureException("Failed to generate HMAC : " + e.getMessage());
         }
-        return result;
     }
 
 }
@@ -0,0 +1,19 @@
+package com.acquia.http;
+
+/**
+ * The SecretKeyProvider interface defines a method to look up the secret key of an access key.
+ * 
+ * @author chris.nagy
+ *
+ */
+public interface SecretKeyProvider {
+
+    /**
+     * Returns the secret key for the given access key.
+     * 
+     * @param accessKey Access Key
+     * @return Secret Key
+     * @throws SecretKeyException If the access key is unknown or the secret key cannot be retrieved
+     */
+    String getSecretKey( String accessKey ) throws SecretKeyException;
+}
@@ -0,0 +1,147 @@
+package com.acquia.http;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * A NonceGenerator that creates random (version 4) UUIDs, as UUID.randomUUID does, without sharing
+ * a SecureRandom between threads.
+ * 
+ * Each thread has its own SecureRandom; the random bytes of a batch of nonces are drawn from it at
+ * once, and each nonce is formatted into a char buffer that the thread reuses.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class SecureRandomNonceGenerator implements NonceGenerator {
+
+    /**
+     * Default number of nonces whose random bytes are drawn at once
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int UUID_LENGTH = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandomNonceGenerator sharedGenerator = new SecureRandomNonceGenerator();
+
+    /**
+     * Algorithm of the SecureRandom of each thread, or null for the default one
+     */
+    private final String algorithm;
+
+    private final int batchSize;
+
+    private final ThreadLocal<ThreadNonces> threadNonces = new ThreadLocal<ThreadNonces>() {
+        @Override
+        protected ThreadNonces initialValue() {
+            return new ThreadNonces(SecureRandomNonceGenerator.this.createSecureRandom(),
+                SecureRandomNonceGenerator.this.batchSize);
+        }
+    };
+
+    /**
+     * Constructor; every thread uses the default SecureRandom algorithm and draws DEFAULT_BATCH_SIZE
+     * nonces at once
+     */
+    public SecureRandomNonceGenerator() {
+        this.algorithm = null;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param algorithm; SecureRandom algorithm of each thread, for example SHA1PRNG; or null for the default one
+     * @param batchSize; number of nonces whose random bytes are drawn at once
+     * @throws NoSuchAlgorithmException if there is no SecureRandom with the given algorithm
+     */
+    public SecureRandomNonceGenerator(String algorithm, int batchSize)
+            throws NoSuchAlgorithmException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+        if (algorithm != null) {
+            SecureRandom.getInstance(algorithm); //fail now rather than in the first thread
+        }
+        this.algorithm = algorithm;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the generator shared by every interceptor that is not given its own
+     * 
+     * @return
+     */
+    public static SecureRandomNonceGenerator getSharedGenerator() {
+        return sharedGenerator;
+    }
+
+    @Override
+    public String createNonce() {
+        return this.threadNonces.get().next();
+    }
+
+    private SecureRandom createSecureRandom() {
+        if (this.algorithm == null) {
+            return new SecureRandom();
+        }
+        try {
+            return SecureRandom.getInstance(this.algorithm);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //checked by the constructor
+        }
+    }
+
+    /**
+     * The random bytes and char buffer of one thread
+     */
+    private static class ThreadNonces {
+
+        private final SecureRandom random;
+
+        private final byte[] randomBytes;
+
+        /**
+         * Offset of the random bytes of the next nonce
+         */
+        private int offset;
+
+        private final char[] chars = new char[36];
+
+        ThreadNonces(SecureRandom random, int batchSize) {
+            this.random = random;
+            this.randomBytes = new byte[batchSize * UUID_LENGTH];
+            this.offset = this.randomBytes.length;
+            this.chars[8] = '-';
+            this.chars[13] = '-';
+            this.chars[18] = '-';
+            this.chars[23] = '-';
+        }
+
+        String next() {
+            if (this.offset == this.randomBytes.length) {
+                this.random.nextBytes(this.randomBytes);
+                this.offset = 0;
+            }
+            byte[] bytes = this.randomBytes;
+            int offset = this.offset;
+            this.offset += UUID_LENGTH;
+
+            bytes[offset + 6] = (byte) ((bytes[offset + 6] & 0x0f) | 0x40); //version 4
+            bytes[offset + 8] = (byte) ((bytes[offset + 8] & 0x3f) | 0x80); //IETF variant
+            int position = 0;
+            for (int i = 0; i < UUID_LENGTH; i++) {
+                if (i == 4 || i == 6 || i == 8 || i == 10) {
+                    position++; //skip the hyphen
+                }
+                int value = bytes[offset + i] & 0xff;
+                this.chars[position++] = HEX_DIGITS[value >>> 4];
+                this.chars[position++] = HEX_DIGITS[value & 0x0f];
+            }
+            return new String(this.chars);
+        }
+    }
+
+}
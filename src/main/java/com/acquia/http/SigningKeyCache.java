@@ -0,0 +1,104 @@
+package com.acquia.http;
+
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the signing keys of many access keys, for one algorithm.
+ * 
+ * The least recently used access key is evicted first. Each signing key keeps its own pool of
+ * initialized Mac instances, so signing again for a cached access key never initializes key material.
+ * A signing key is created again if the secret key of its access key changes.
+ * 
+ * @author chris.nagy
+ *
+ */
+class SigningKeyCache {
+
+    /**
+     * Signing key decoded from a secret key
+     */
+    static class Entry {
+        final String secretKey;
+        final HMACSigningKey signingKey;
+
+        Entry(String secretKey, HMACSigningKey signingKey) {
+            this.secretKey = secretKey;
+            this.signingKey = signingKey;
+        }
+    }
+
+    private final HMACAlgorithm algorithm;
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor
+     * 
+     * @param algorithm; algorithm that creates the signing keys
+     * @param maximumSize; maximum number of access keys kept; 0 to keep nothing
+     */
+    SigningKeyCache(HMACAlgorithm algorithm, final int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative.");
+        }
+        this.algorithm = algorithm;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, /*accessOrder*/true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Get the signing key of the given credentials, creating it if it is not kept
+     * 
+     * @param credentials
+     * @return
+     * @throws SignatureException if the secret key is invalid
+     */
+    HMACSigningKey getSigningKey(HMACCredentials credentials) throws SignatureException {
+        return this.getSigningKey(credentials.getAccessKey(), credentials.getSecretKey());
+    }
+
+    /**
+     * Get the signing key of the given access key, creating it if it is not kept or if the secret
+     * key has changed
+     * 
+     * @param accessKey
+     * @param secretKey
+     * @return
+     * @throws SignatureException if the secret key is invalid
+     */
+    HMACSigningKey getSigningKey(String accessKey, String secretKey) throws SignatureException {
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(accessKey);
+            if (entry != null && entry.secretKey.equals(secretKey)) {
+                return entry.signingKey;
+            }
+        }
+
+        //decode the key outside of the lock; a concurrent miss only creates the key twice
+        HMACSigningKey signingKey = this.algorithm.createSigningKey(secretKey);
+        synchronized (this.entries) {
+            this.entries.put(accessKey, new Entry(secretKey, signingKey));
+        }
+        return signingKey;
+    }
+
+    /**
+     * Get the number of access keys kept
+     * 
+     * @return
+     */
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+}
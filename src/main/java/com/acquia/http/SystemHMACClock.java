@@ -0,0 +1,18 @@
+package com.acquia.http;
+
+/**
+ * An HMACClock that reads the system clock on every call.
+ * 
+ * @author chris.nagy
+ *
+ */
+public class SystemHMACClock implements HMACClock {
+
+    public static final SystemHMACClock INSTANCE = new SystemHMACClock();
+
+    @Override
+    public long getCurrentUnixTime() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+}
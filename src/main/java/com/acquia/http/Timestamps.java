@@ -0,0 +1,77 @@
+package com.acquia.http;
+
+/**
+ * Helper methods to check X-Authorization-Timestamp, shared by HMACFilter and HMACHttpServlet.
+ * 
+ * @author chris.nagy
+ *
+ */
+final class Timestamps {
+
+    /**
+     * The default tolerance of X-Authorization-Timestamp, in seconds.
+     */
+    static final long DEFAULT_TOLERANCE = 900;
+
+    /**
+     * Returned by parseUnixTimestamp for a value that is not a timestamp
+     */
+    static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Number of digits that always fit in a long
+     */
+    private static final int MAX_DIGITS = 18;
+
+    private Timestamps() {
+    }
+
+    /**
+     * Parse X-Authorization-Timestamp without throwing, since a malformed value is expected from
+     * garbage traffic and must be cheap to reject
+     * 
+     * @param value; decimal seconds since the epoch, optionally signed
+     * @return the timestamp; or INVALID_TIMESTAMP if the value is not a number of at most 18 digits
+     */
+    static long parseUnixTimestamp(String value) {
+        int length = value.length();
+        int start = 0;
+        boolean isNegative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            isNegative = value.charAt(0) == '-';
+            start = 1;
+        }
+        if (length == start || length - start > MAX_DIGITS) {
+            return INVALID_TIMESTAMP;
+        }
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID_TIMESTAMP;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return isNegative ? -result : result;
+    }
+
+    /**
+     * Check if timestamp is within tolerance of the current time of the clock
+     * 
+     * @param clock
+     * @param unixTimestamp
+     * @param tolerance; in seconds
+     * @return non-zero if timestamp is outside tolerance (positive if in the future; negative in the past); otherwise return zero
+     */
+    static int compareWithinTolerance(HMACClock clock, long unixTimestamp, long tolerance) {
+        long unixCurrent = clock.getCurrentUnixTime();
+        if (unixTimestamp > unixCurrent + tolerance) {
+            return 1;
+        } else if (unixTimestamp < unixCurrent - tolerance) {
+            return -1;
+        } else {
+            return 0;
+        }
+    }
+
+}
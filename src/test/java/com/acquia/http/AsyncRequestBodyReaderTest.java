@@ -0,0 +1,178 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class AsyncRequestBodyReaderTest {
+
+    /**
+     * Stream that is only ready for a few short reads at a time, like a slow client
+     */
+    private static class TricklingServletStream extends ServletInputStream {
+        final ByteArrayInputStream bais;
+        int readyReads = 0;
+        ReadListener readListener;
+
+        TricklingServletStream(byte[] body) {
+            this.bais = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return this.bais.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            this.readyReads--;
+            return this.bais.read(b, off, Math.min(len, 700));
+        }
+
+        @Override
+        public boolean isFinished() {
+            return this.bais.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return this.readyReads > 0;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            this.readListener = readListener;
+        }
+
+        /**
+         * Let the listener read a few times
+         * 
+         * @throws IOException
+         */
+        void trickle() throws IOException {
+            this.readyReads = 3;
+            this.readListener.onDataAvailable();
+        }
+    }
+
+    @Test
+    public void testHeapBody() throws IOException {
+        this.assertBodyRead(5000, CharRequestWrapper.NO_SPILL_THRESHOLD, -1);
+    }
+
+    @Test
+    public void testUntrustedContentLength() throws IOException {
+        this.assertBodyRead(5000, CharRequestWrapper.NO_SPILL_THRESHOLD, Integer.MAX_VALUE);
+        this.assertBodyRead(CharRequestWrapper.MAX_INITIAL_BUFFER_SIZE * 3 + 17,
+            CharRequestWrapper.NO_SPILL_THRESHOLD,
+            CharRequestWrapper.MAX_INITIAL_BUFFER_SIZE * 3 + 17);
+    }
+
+    @Test
+    public void testSpilledBody() throws IOException {
+        this.assertBodyRead(5000, 1024, 5000);
+        this.assertBodyRead(5000, 0, -1);
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        byte[] body = new byte[5000];
+        new Random(42).nextBytes(body);
+        TricklingServletStream inputStream = new TricklingServletStream(body);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getInputStream()).thenReturn(inputStream);
+        when(request.getContentLength()).thenReturn(body.length);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getRequest()).thenReturn(request);
+        when(asyncContext.getResponse()).thenReturn(response);
+
+        int spillFiles = this.countSpillFiles();
+        AsyncRequestBodyReader bodyReader = new AsyncRequestBodyReader(asyncContext, 1024);
+        bodyReader.start();
+        ArgumentCaptor<AsyncListener> asyncListener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(asyncListener.capture());
+        inputStream.trickle();
+        inputStream.trickle();
+        assertEquals(spillFiles + 1, this.countSpillFiles());
+
+        //the client stops sending before the body is complete
+        asyncListener.getValue().onTimeout(new AsyncEvent(asyncContext));
+        verify(response).sendError(eq(HttpServletResponse.SC_REQUEST_TIMEOUT), anyString());
+        verify(asyncContext).complete();
+        assertEquals(spillFiles, this.countSpillFiles());
+
+        //the request is not dispatched if the rest of the body arrives later
+        inputStream.readListener.onAllDataRead();
+        verify(asyncContext, never()).dispatch();
+        verify(request, never()).setAttribute(eq(AsyncRequestBodyReader.REQUEST_ATTRIBUTE),
+            anyObject());
+    }
+
+    private int countSpillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(CharRequestWrapper.SPILL_FILE_PREFIX);
+            }
+        });
+        return names == null ? 0 : names.length;
+    }
+
+    private void assertBodyRead(int bodyLength, long spillThreshold, int contentLength)
+            throws IOException {
+        byte[] body = new byte[bodyLength];
+        new Random(42).nextBytes(body);
+        TricklingServletStream inputStream = new TricklingServletStream(body);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getInputStream()).thenReturn(inputStream);
+        when(request.getContentLength()).thenReturn(contentLength);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getRequest()).thenReturn(request);
+
+        AsyncRequestBodyReader bodyReader = new AsyncRequestBodyReader(asyncContext,
+            spillThreshold);
+        bodyReader.start();
+        while (!inputStream.isFinished()) {
+            inputStream.trickle();
+        }
+        inputStream.readListener.onAllDataRead();
+
+        verify(request).setAttribute(eq(AsyncRequestBodyReader.REQUEST_ATTRIBUTE), eq(bodyReader));
+        verify(asyncContext).dispatch();
+        CharRequestWrapper wrappedRequest = bodyReader.createRequestWrapper(request);
+        assertEquals(bodyLength, wrappedRequest.getBodyLength());
+        byte[] readBytes = new byte[bodyLength];
+        DataInputStream readBody = new DataInputStream(wrappedRequest.getInputStream());
+        readBody.readFully(readBytes);
+        assertEquals(-1, readBody.read());
+        assertArrayEquals(body, readBytes);
+        assertArrayEquals(DigestUtils.sha256(body), wrappedRequest.getBodySha256());
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingSecretKeyProviderTest {
+
+    private final String secretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+
+    /**
+     * Loader that counts lookups; "unknown" is not found and "broken" cannot be retrieved
+     */
+    private static class CountingLoader implements SecretKeyProvider {
+        final AtomicInteger lookups = new AtomicInteger();
+        final String secretKey;
+
+        CountingLoader(String secretKey) {
+            this.secretKey = secretKey;
+        }
+
+        @Override
+        public String getSecretKey(String accessKey) throws SecretKeyException {
+            this.lookups.incrementAndGet();
+            if ("unknown".equals(accessKey)) {
+                throw new SecretKeyException(SecretKeyException.NOT_FOUND);
+            } else if ("broken".equals(accessKey)) {
+                throw new SecretKeyException(SecretKeyException.CANNOT_RETRIEVE);
+            }
+            return this.secretKey;
+        }
+    }
+
+    @Test
+    public void testCachedSecretKey() throws Exception {
+        CountingLoader loader = new CountingLoader(secretKey);
+        CachingSecretKeyProvider provider = new CachingSecretKeyProvider(loader, 10, 1,
+            TimeUnit.MINUTES.toSeconds(1), TimeUnit.MINUTES);
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+
+        assertEquals(secretKey, provider.getSecretKey("access"));
+        HMACSigningKey signingKey = provider.getSigningKey("access", algorithm);
+        assertSame(signingKey, provider.getSigningKey("access", algorithm));
+        assertEquals(1, loader.lookups.get());
+
+        provider.invalidate("access");
+        provider.getSigningKey("access", algorithm);
+        assertEquals(2, loader.lookups.get());
+    }
+
+    @Test
+    public void testSigningKeyWithoutCache() throws Exception {
+        CountingLoader loader = new CountingLoader(secretKey);
+        CachingSecretKeyProvider provider = new CachingSecretKeyProvider(loader, 0, 0, 0,
+            TimeUnit.SECONDS);
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+
+        //the secret key is looked up every time, the signing key is only created once
+        HMACSigningKey signingKey = provider.getSigningKey("access", algorithm);
+        assertSame(signingKey, provider.getSigningKey("access", algorithm));
+        assertEquals(2, loader.lookups.get());
+    }
+
+    @Test
+    public void testNotFoundCached() throws Exception {
+        CountingLoader loader = new CountingLoader(secretKey);
+        CachingSecretKeyProvider provider = new CachingSecretKeyProvider(loader, 10, 1, 1,
+            TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++) {
+            this.assertSecretKeyException(provider, "unknown", SecretKeyException.NOT_FOUND);
+        }
+        assertEquals(1, loader.lookups.get());
+
+        //other failures are looked up again
+        for (int i = 0; i < 3; i++) {
+            this.assertSecretKeyException(provider, "broken", SecretKeyException.CANNOT_RETRIEVE);
+        }
+        assertEquals(4, loader.lookups.get());
+    }
+
+    @Test
+    public void testExpiryAndEviction() throws Exception {
+        CountingLoader loader = new CountingLoader(secretKey);
+        CachingSecretKeyProvider provider = new CachingSecretKeyProvider(loader, 2, 0, 0,
+            TimeUnit.SECONDS);
+        provider.getSecretKey("access");
+        provider.getSecretKey("access");
+        assertEquals(2, loader.lookups.get());
+
+        provider = new CachingSecretKeyProvider(loader, 2, 1, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5; i++) {
+            provider.getSecretKey("access" + i);
+        }
+        assertEquals(2, provider.size());
+    }
+
+    @Test
+    public void testEvictionOrder() throws Exception {
+        CountingLoader loader = new CountingLoader(secretKey);
+        CachingSecretKeyProvider provider = new CachingSecretKeyProvider(loader, 2, 1, 1,
+            TimeUnit.MINUTES);
+        provider.getSecretKey("a");
+        provider.getSecretKey("b");
+        provider.invalidate("a");
+        provider.getSecretKey("c");
+        assertEquals(2, provider.size());
+
+        //b is the oldest entry left
+        provider.getSecretKey("d");
+        assertEquals(2, provider.size());
+        assertEquals(4, loader.lookups.get());
+        provider.getSecretKey("c");
+        provider.getSecretKey("d");
+        assertEquals(4, loader.lookups.get());
+        provider.getSecretKey("b");
+        assertEquals(5, loader.lookups.get());
+    }
+
+    @Test
+    public void testSingleLookupForConcurrentRequests() throws Exception {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger();
+        final CachingSecretKeyProvider provider = new CachingSecretKeyProvider(
+            new SecretKeyProvider() {
+                @Override
+                public String getSecretKey(String accessKey) throws SecretKeyException {
+                    lookups.incrementAndGet();
+                    lookupStarted.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        throw new SecretKeyException(SecretKeyException.CANNOT_RETRIEVE);
+                    }
+                    return secretKey;
+                }
+            }, 10, 1, 1, TimeUnit.MINUTES);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return provider.getSecretKey("access");
+                    }
+                }));
+            }
+            lookupStarted.await();
+            Thread.sleep(100); //let the other threads wait for the lookup
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals(secretKey, result.get());
+            }
+            assertEquals(1, lookups.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertSecretKeyException(SecretKeyProvider provider, String accessKey,
+            String message) {
+        try {
+            provider.getSecretKey(accessKey);
+            fail("SecretKeyException expected");
+        } catch(SecretKeyException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class CharRequestWrapperTest {
+
+    @Test
+    public void testBodyWithContentLength() throws IOException {
+        byte[] body = this.createBody(5000);
+        this.assertWrappedBody(body, this.mockRequest(body, body.length));
+    }
+
+    @Test
+    public void testBodyWithoutContentLength() throws IOException {
+        byte[] body = this.createBody(5000);
+        this.assertWrappedBody(body, this.mockRequest(body, -1));
+    }
+
+    @Test
+    public void testBodyLongerThanContentLength() throws IOException {
+        byte[] body = this.createBody(5000);
+        this.assertWrappedBody(body, this.mockRequest(body, 10));
+    }
+
+    @Test
+    public void testUntrustedContentLength() throws IOException {
+        //the first buffer does not follow a declared length that never arrives
+        assertEquals(CharRequestWrapper.MAX_INITIAL_BUFFER_SIZE,
+            CharRequestWrapper.getInitialBufferSize(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        byte[] body = this.createBody(5000);
+        this.assertWrappedBody(body, this.mockRequest(body, Integer.MAX_VALUE));
+
+        //a body longer than the first buffer grows it as it arrives
+        body = this.createBody(CharRequestWrapper.MAX_INITIAL_BUFFER_SIZE * 3 + 17);
+        this.assertWrappedBody(body, this.mockRequest(body, body.length));
+    }
+
+    @Test
+    public void testEmptyBody() throws IOException {
+        byte[] body = new byte[0];
+        this.assertWrappedBody(body, this.mockRequest(body, 0));
+    }
+
+    @Test
+    public void testSpilledBody() throws IOException {
+        byte[] body = this.createBody(200000);
+        this.assertWrappedBody(body, this.mockRequest(body, body.length), 1000);
+        this.assertWrappedBody(body, this.mockRequest(body, -1), 1000);
+        this.assertWrappedBody(body, this.mockRequest(body, 10), 1000);
+
+        //body exactly at the threshold stays in memory
+        this.assertWrappedBody(body, this.mockRequest(body, -1), body.length);
+        assertFalse(new CharRequestWrapper(this.mockRequest(body, -1), body.length).isSpilled());
+        assertTrue(new CharRequestWrapper(this.mockRequest(body, -1),
+            body.length - 1).isSpilled());
+    }
+
+    @Test
+    public void testSpilledBodyClosed() throws IOException {
+        byte[] body = this.createBody(200000);
+        CharRequestWrapper wrappedRequest = new CharRequestWrapper(
+            this.mockRequest(body, body.length), 1000);
+        InputStream inputStream = wrappedRequest.getInputStream();
+        assertEquals(body.length, inputStream.available());
+        assertEquals(body[0] & 0xFF, inputStream.read());
+        assertEquals(100000, inputStream.skip(100000));
+        assertEquals(body[100001] & 0xFF, inputStream.read());
+
+        //the temporary file is released with the wrapper
+        wrappedRequest.close();
+        try {
+            this.readFully(inputStream);
+            fail("Read a closed body");
+        } catch(IOException e) {
+            //expected
+        }
+    }
+
+    private void assertWrappedBody(byte[] body, HttpServletRequest request) throws IOException {
+        this.assertWrappedBody(body, request, CharRequestWrapper.NO_SPILL_THRESHOLD);
+    }
+
+    private void assertWrappedBody(byte[] body, HttpServletRequest request, long spillThreshold)
+            throws IOException {
+        CharRequestWrapper wrappedRequest = new CharRequestWrapper(request, spillThreshold);
+        assertArrayEquals(DigestUtils.sha256(body), wrappedRequest.getBodySha256());
+
+        assertEquals(body.length, wrappedRequest.getBodyLength());
+        if (wrappedRequest.isSpilled()) {
+            //a spilled body is only read through its input stream
+            try {
+                wrappedRequest.getBody();
+                fail("Got a spilled body as a ByteBuffer");
+            } catch(IllegalStateException e) {
+                //expected
+            }
+        } else {
+            ByteBuffer bodyBuffer = wrappedRequest.getBody();
+            byte[] bufferBytes = new byte[bodyBuffer.remaining()];
+            bodyBuffer.get(bufferBytes);
+            assertArrayEquals(body, bufferBytes);
+        }
+
+        //the body can be consumed more than once
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(body, this.readFully(wrappedRequest.getInputStream()));
+            assertEquals(-1, wrappedRequest.getInputStream().read());
+            wrappedRequest.resetInputStream();
+        }
+    }
+
+    private byte[] createBody(int length) {
+        byte[] body = new byte[length];
+        new Random(42).nextBytes(body);
+        return body;
+    }
+
+    private HttpServletRequest mockRequest(byte[] body, int contentLength) throws IOException {
+        final ByteArrayInputStream realInputStream = new ByteArrayInputStream(body);
+        ServletInputStream requestInputStream = new ServletInputStream() {
+            @Override
+            public int read() {
+                return realInputStream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return realInputStream.read(b, off, Math.min(len, 100)); //short reads
+            }
+
+            @Override
+            public boolean isFinished() {
+                return realInputStream.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContentLength()).thenReturn(contentLength);
+        when(request.getInputStream()).thenReturn(requestInputStream);
+        return request;
+    }
+
+    private byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] byteChunk = new byte[1024];
+        int length = -1;
+        while ((length = inputStream.read(byteChunk)) != -1) {
+            baos.write(byteChunk, 0, length);
+        }
+        return baos.toByteArray();
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class CharResponseWrapperTest {
+
+    private final String secretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+
+    @Test
+    public void testSignedWhileWritten() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        HMACSigningKey signingKey = algorithm.createSigningKey(secretKey);
+        HMACMessageCreator messageCreator = new HMACMessageCreator();
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getCharacterEncoding()).thenReturn("UTF-8");
+        CharResponseWrapper wrappedResponse = new CharResponseWrapper(response);
+        wrappedResponse.getOutputStream().write("before ".getBytes("UTF-8"));
+
+        HMACMessageSigner signer = algorithm.createMessageSigner(signingKey);
+        messageCreator.appendSignableResponseMessagePrefix("nonce", "1432075982", signer);
+        wrappedResponse.setMessageSigner(signer);
+
+        ServletOutputStream outputStream = wrappedResponse.getOutputStream();
+        outputStream.write('a');
+        outputStream.write("fter ".getBytes("UTF-8"));
+        PrintWriter writer = wrappedResponse.getWriter();
+        writer.print("caf\u00e9 \u20ac\ud83d\ude00");
+
+        String body = "before after caf\u00e9 \u20ac\ud83d\ude00";
+        assertEquals(body, wrappedResponse.toString());
+        assertArrayEquals(body.getBytes("UTF-8"), wrappedResponse.getByteArray());
+        assertEquals(
+            algorithm.encryptMessage(signingKey,
+                messageCreator.createSignableResponseMessage("nonce", "1432075982", body)),
+            wrappedResponse.encryptMessage());
+    }
+
+    @Test
+    public void testWriterCharacterEncoding() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        HMACSigningKey signingKey = algorithm.createSigningKey(secretKey);
+        HMACMessageCreator messageCreator = new HMACMessageCreator();
+
+        //the application has set a charset on the Content-Type
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getCharacterEncoding()).thenReturn("ISO-8859-1");
+        CharResponseWrapper wrappedResponse = new CharResponseWrapper(response);
+        HMACMessageSigner signer = algorithm.createMessageSigner(signingKey);
+        messageCreator.appendSignableResponseMessagePrefix("nonce", "1432075982", signer);
+        wrappedResponse.setMessageSigner(signer);
+        wrappedResponse.getWriter().print("caf\u00e9");
+
+        byte[] body = "caf\u00e9".getBytes("ISO-8859-1");
+        assertArrayEquals(body, wrappedResponse.getByteArray());
+        assertEquals("caf\u00e9", wrappedResponse.toString());
+        HMACMessageSigner expectedSigner = algorithm.createMessageSigner(signingKey);
+        messageCreator.appendSignableResponseMessagePrefix("nonce", "1432075982", expectedSigner);
+        expectedSigner.update(body, 0, body.length);
+        assertEquals(expectedSigner.encryptMessage(), wrappedResponse.encryptMessage());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoMessageSigner() throws Exception {
+        new CharResponseWrapper(mock(HttpServletResponse.class)).encryptMessage();
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class DigestingHttpEntityTest {
+
+    @Test
+    public void testHashedInPlace() throws IOException {
+        byte[] body = this.createBody(5000);
+        DigestingHttpEntity entity = new DigestingHttpEntity(new ByteArrayEntity(body));
+        assertFalse(entity.isBuffered());
+        assertArrayEquals(DigestUtils.sha256(body), entity.getContentSha256());
+        assertArrayEquals(body, EntityUtils.toByteArray(entity));
+    }
+
+    @Test
+    public void testBufferedOnce() throws IOException {
+        byte[] body = this.createBody(5000);
+        //unknown and exact content length
+        for (long length : new long[] { -1, body.length }) {
+            InputStreamEntity streamEntity = new InputStreamEntity(new ByteArrayInputStream(body),
+                length);
+            assertFalse(streamEntity.isRepeatable());
+
+            DigestingHttpEntity entity = new DigestingHttpEntity(streamEntity);
+            assertTrue(entity.isBuffered());
+            assertTrue(entity.isRepeatable());
+            assertEquals(body.length, entity.getContentLength());
+            assertArrayEquals(DigestUtils.sha256(body), entity.getContentSha256());
+            assertArrayEquals(body, entity.getBufferedContent());
+
+            //the body can be consumed any number of times
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                entity.writeTo(baos);
+                assertArrayEquals(body, baos.toByteArray());
+                assertArrayEquals(body, EntityUtils.toByteArray(entity));
+            }
+        }
+    }
+
+    @Test
+    public void testFileHashedInPlace() throws Exception {
+        byte[] body = this.createBody(5000);
+        File file = File.createTempFile("digesting-entity-", ".tmp");
+        try {
+            Files.write(file.toPath(), body);
+            HttpEntity[] fileEntities = new HttpEntity[] {
+                new FileEntity(file, ContentType.APPLICATION_OCTET_STREAM),
+                new PathHttpEntity(file.toPath(), ContentType.APPLICATION_OCTET_STREAM) };
+            for (HttpEntity fileEntity : fileEntities) {
+                DigestingHttpEntity entity = new DigestingHttpEntity(fileEntity);
+                assertFalse(entity.isBuffered());
+                assertEquals(body.length, entity.getContentLength());
+                assertArrayEquals(DigestUtils.sha256(body), entity.getContentSha256());
+                assertArrayEquals(body, EntityUtils.toByteArray(entity));
+            }
+
+            //a file read in several chunks
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            FileChannel channel = DigestingHttpEntity.openFileChannel(fileEntities[0]);
+            try {
+                DigestingHttpEntity.updateDigest(digest, channel, ByteBuffer.allocateDirect(1024));
+            } finally {
+                channel.close();
+            }
+            assertArrayEquals(DigestUtils.sha256(body), digest.digest());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private byte[] createBody(int length) {
+        byte[] body = new byte[length];
+        new Random(42).nextBytes(body);
+        return body;
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class HMACAuthorizationHeaderTest {
+
+    @Test
+    public void testParseToString() throws ParseException {
+        HMACAuthorizationHeader authHeader = new HMACAuthorizationHeader("Plexus", "client-id",
+            "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd", "2.0", Arrays.asList("custom1", "custom2"),
+            "4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=");
+        HMACAuthorizationHeader result = HMACAuthorizationHeader.parse(authHeader.toString());
+        assertEquals("Plexus", result.getRealm());
+        assertEquals("client-id", result.getId());
+        assertEquals("64d02132-40bf-4fce-85bf-3f1bb1bfe7dd", result.getNonce());
+        assertEquals("2.0", result.getVersion());
+        assertEquals(Arrays.asList("custom1", "custom2"), result.getHeaders());
+        assertEquals("4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=", result.getSignature());
+        assertEquals(authHeader.toString(), result.toString());
+    }
+
+    @Test
+    public void testTemplate() throws IOException, HttpException {
+        AuthorizationHeaderTemplate template = new AuthorizationHeaderTemplate("Pipet service",
+            "client id&1", "2.0", Arrays.asList("custom1", "custom2"));
+        HMACAuthorizationHeader fromTemplate = template.createAuthorizationHeader(
+            "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd");
+        HMACAuthorizationHeader plain = new HMACAuthorizationHeader("Pipet service",
+            "client id&1", "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd", "2.0",
+            Arrays.asList("custom1", "custom2"), null);
+        assertEquals(plain.toString(), fromTemplate.toString());
+        fromTemplate.setSignature("4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=");
+        plain.setSignature("4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=");
+        assertEquals(plain.toString(), fromTemplate.toString());
+
+        HttpRequest request = new BasicHttpRequest("GET", "/v1.0/task-status/133?limit=10");
+        request.setHeader(HMACMessageCreator.PARAMETER_HOST, "example.acquiapipet.net");
+        request.setHeader(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP, "1432075982");
+        request.setHeader("custom1", "value1");
+        request.setHeader("custom2", "value2");
+        HMACMessageCreator messageCreator = new HMACMessageCreator();
+        assertEquals(messageCreator.createSignableRequestMessage(request, plain),
+            messageCreator.createSignableRequestMessage(request, fromTemplate));
+
+        //the template is no longer used once the header is changed
+        fromTemplate.setRealm("Plexus");
+        plain.setRealm("Plexus");
+        assertNull(fromTemplate.getTemplate());
+        assertEquals(plain.toString(), fromTemplate.toString());
+    }
+
+    @Test
+    public void testTemplateHeadersModified() throws IOException {
+        AuthorizationHeaderTemplate template = new AuthorizationHeaderTemplate("Plexus",
+            "client-id", "2.0", Arrays.asList("custom1"));
+        HMACAuthorizationHeader fromTemplate = template.createAuthorizationHeader("nonce");
+        assertNotNull(fromTemplate.getTemplate());
+
+        //the custom headers of a header can still be changed in place
+        fromTemplate.getHeaders().add("custom2");
+        assertNull(fromTemplate.getTemplate());
+        assertEquals(new HMACAuthorizationHeader("Plexus", "client-id", "nonce", "2.0",
+            Arrays.asList("custom1", "custom2"), null).toString(), fromTemplate.toString());
+        assertEquals(Arrays.asList("custom1"),
+            template.createAuthorizationHeader("nonce").getHeaders());
+    }
+
+    @Test
+    public void testParseLenientInput() throws ParseException {
+        HMACAuthorizationHeader result = HMACAuthorizationHeader.parse(
+            "acquia-http-hmac Realm=\"a,b=c\", ID=\"id\" ,nonce=\"n\\1\",version=2.0,"
+                    + "other=\"x\",headers=\"\",signature=\"\"");
+        assertEquals("a,b=c", result.getRealm());
+        assertEquals("id", result.getId());
+        assertEquals("n\\1", result.getNonce());
+        assertEquals("2.0", result.getVersion());
+        assertNull(result.getHeaders());
+        assertNull(result.getSignature());
+    }
+
+    @Test
+    public void testBackslashRoundTrip() throws ParseException, IOException {
+        HMACAuthorizationHeader header = new HMACAuthorizationHeader("Pipet\\service",
+            "id\\", "n\\1", "2.0", null, "signature");
+        HMACAuthorizationHeader result = HMACAuthorizationHeader.parse(header.toString());
+        assertEquals("Pipet\\service", result.getRealm());
+        assertEquals("id\\", result.getId());
+        assertEquals("n\\1", result.getNonce());
+        assertEquals(header.toString(), result.toString());
+
+        //the interceptor writes the header from its template
+        AuthorizationHeaderTemplate template = new AuthorizationHeaderTemplate("Pipet\\service",
+            "id\\", "2.0", null);
+        HMACAuthorizationHeader fromTemplate = template.createAuthorizationHeader("n\\1");
+        fromTemplate.setSignature("signature");
+        assertEquals(header.toString(), fromTemplate.toString());
+        assertEquals("Pipet\\service", HMACAuthorizationHeader.parse(
+            fromTemplate.toString()).getRealm());
+    }
+
+    @Test
+    public void testMalformedInput() {
+        String valid = "acquia-http-hmac realm=\"r\",id=\"i\",nonce=\"n\",version=\"2.0\"";
+        this.assertParseException(valid.replace("id=", "id"), 29);
+        this.assertParseException(valid.replace(",id", ";id"), 26);
+        this.assertParseException(valid.substring(0, valid.length() - 1), 52);
+        this.assertParseException(valid.replace(",id", ",=id"), 27);
+        this.assertParseException(valid.replace("realm=\"r\",", ""), 47);
+
+        assertNull(HMACAuthorizationHeader.getAuthorizationHeaderObject(
+            valid.replace("id=", "id")));
+        assertNull(HMACAuthorizationHeader.getAuthorizationHeaderObject(null));
+    }
+
+    private void assertParseException(String authString, int errorOffset) {
+        try {
+            HMACAuthorizationHeader.parse(authString);
+            fail("ParseException expected for " + authString);
+        } catch(ParseException e) {
+            assertEquals(errorOffset, e.getErrorOffset());
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HMACClockTest {
+
+    @Test
+    public void testCompareWithinTolerance() {
+        FixedHMACClock clock = new FixedHMACClock(1449578521);
+        assertEquals(0, Timestamps.compareWithinTolerance(clock, 1449578521, 900));
+        assertEquals(0, Timestamps.compareWithinTolerance(clock, 1449578521 + 900, 900));
+        assertEquals(0, Timestamps.compareWithinTolerance(clock, 1449578521 - 900, 900));
+        assertEquals(1, Timestamps.compareWithinTolerance(clock, 1449578521 + 901, 900));
+        assertEquals(-1, Timestamps.compareWithinTolerance(clock, 1449578521 - 901, 900));
+
+        clock.advance(1000);
+        assertEquals(-1, Timestamps.compareWithinTolerance(clock, 1449578521, 900));
+        assertEquals(0, Timestamps.compareWithinTolerance(clock, 1449578521, 1000));
+    }
+
+    @Test
+    public void testParseUnixTimestamp() {
+        assertEquals(1449578521L, Timestamps.parseUnixTimestamp("1449578521"));
+        assertEquals(-5L, Timestamps.parseUnixTimestamp("-5"));
+        assertEquals(7L, Timestamps.parseUnixTimestamp("+7"));
+        assertEquals(0L, Timestamps.parseUnixTimestamp("0"));
+        assertEquals(Timestamps.INVALID_TIMESTAMP, Timestamps.parseUnixTimestamp(""));
+        assertEquals(Timestamps.INVALID_TIMESTAMP, Timestamps.parseUnixTimestamp("-"));
+        assertEquals(Timestamps.INVALID_TIMESTAMP, Timestamps.parseUnixTimestamp("14495x8521"));
+        assertEquals(Timestamps.INVALID_TIMESTAMP, Timestamps.parseUnixTimestamp(" 1449578521"));
+        assertEquals(Timestamps.INVALID_TIMESTAMP,
+            Timestamps.parseUnixTimestamp("9999999999999999999"));
+    }
+
+    @Test
+    public void testCachedClock() throws InterruptedException {
+        CachedHMACClock clock = new CachedHMACClock(10);
+        try {
+            long systemTime = SystemHMACClock.INSTANCE.getCurrentUnixTime();
+            Thread.sleep(50);
+            long cachedTime = clock.getCurrentUnixTime();
+            assertTrue(cachedTime >= systemTime);
+            assertTrue(cachedTime <= SystemHMACClock.INSTANCE.getCurrentUnixTime());
+        } finally {
+            clock.shutdown();
+        }
+        assertTrue(clock.getCurrentUnixTime() > 0);
+    }
+
+}
@@ -1,6 +1,11 @@
 package com.acquia.http;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.argThat;
@@ -10,15 +15,21 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
@@ -29,6 +40,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -75,6 +87,21 @@ public class HMACFilterTest {
             public int read() {
                 return realInputStream.read();
             }
+
+            @Override
+            public boolean isFinished() {
+                return realInputStream.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
         };
 
         this.request = mock(HttpServletRequest.class);
@@ -155,6 +182,142 @@ public class HMACFilterTest {
         verify(filterChain).doFilter((ServletRequest) anyObject(), (ServletResponse) anyObject());
         assertEquals(this.expectedServerAuthResponseSignature,
             serverResponseValidationHeader.toString());
+        verify(this.request).setAttribute(eq(HMACVerificationContext.REQUEST_ATTRIBUTE),
+            argThat(new ArgumentMatcher<Object>() {
+                @Override
+                public boolean matches(Object argument) {
+                    return argument instanceof HMACVerificationContext
+                            && id.equals(((HMACVerificationContext) argument).getAccessKey());
+                }
+            }));
+    }
+
+    @Test
+    public void testReplayedRequest() throws IOException, ServletException {
+        //the same request is sent twice
+        when(this.request.getInputStream()).thenReturn(this.createInputStream(),
+            this.createInputStream());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(
+            new ByteArrayServletStream(new ByteArrayOutputStream()));
+        HttpServletResponse replayResponse = mock(HttpServletResponse.class);
+        FilterChain filterChain = mock(FilterChain.class);
+
+        HMACFilter filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                return secretKey;
+            }
+        };
+        HMACFilter testFilter = spy(filter);
+        doReturn(0).when(testFilter).compareTimestampWithinTolerance(anyLong());
+        when(this.filterConfig.getInitParameter(HMACFilter.FILTER_CONFIG_NONCE_REPLAY_CHECK))
+            .thenReturn("true");
+        testFilter.init(this.filterConfig);
+        testFilter.doFilter(this.request, response, filterChain);
+        testFilter.doFilter(this.request, replayResponse, filterChain);
+
+        verify(response, never()).sendError(anyInt(), (String) anyObject());
+        verify(replayResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED),
+            eq("Error: Nonce has already been used."));
+        verify(filterChain).doFilter((ServletRequest) anyObject(), (ServletResponse) anyObject());
+    }
+
+    @Test
+    public void testReplayCheckOffByDefault() throws IOException, ServletException {
+        when(this.request.getInputStream()).thenReturn(this.createInputStream(),
+            this.createInputStream());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(
+            new ByteArrayServletStream(new ByteArrayOutputStream()),
+            new ByteArrayServletStream(new ByteArrayOutputStream()));
+        FilterChain filterChain = mock(FilterChain.class);
+
+        HMACFilter filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                return secretKey;
+            }
+        };
+        HMACFilter testFilter = spy(filter);
+        doReturn(0).when(testFilter).compareTimestampWithinTolerance(anyLong());
+        testFilter.init(this.filterConfig);
+        assertNull(testFilter.verifier.nonceStore);
+        testFilter.doFilter(this.request, response, filterChain);
+        testFilter.doFilter(this.request, response, filterChain);
+
+        verify(response, never()).sendError(anyInt(), (String) anyObject());
+        verify(filterChain, times(2)).doFilter((ServletRequest) anyObject(),
+            (ServletResponse) anyObject());
+    }
+
+    @Test
+    public void testAsyncFilter() throws IOException, ServletException {
+        when(this.filterConfig.getInitParameter(HMACFilter.FILTER_CONFIG_ASYNC)).thenReturn("true");
+        when(this.request.getInputStream()).thenReturn(this.createInputStream());
+        when(this.request.isAsyncSupported()).thenReturn(true);
+        when(this.request.getDispatcherType()).thenReturn(DispatcherType.REQUEST,
+            DispatcherType.ASYNC);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getRequest()).thenReturn(this.request);
+        when(this.request.startAsync()).thenReturn(asyncContext);
+
+        //keep the request attributes
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+        }).when(this.request).setAttribute((String) anyObject(), anyObject());
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        }).when(this.request).getAttribute((String) anyObject());
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                attributes.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.request).removeAttribute((String) anyObject());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ByteArrayServletStream(baos));
+        FilterChain filterChain = mock(FilterChain.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws IOException {
+                HttpServletResponse response = (HttpServletResponse) invocation.getArguments()[1];
+                response.getOutputStream().write(respBody.getBytes());
+                return null;
+            }
+        }).when(filterChain).doFilter(argThat(new HttpServletRequestMatcher(this.reqBody)),
+            (HttpServletResponse) anyObject());
+
+        HMACFilter filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                return secretKey;
+            }
+        };
+        HMACFilter testFilter = spy(filter);
+        doReturn(0).when(testFilter).compareTimestampWithinTolerance(anyLong());
+        testFilter.init(this.filterConfig);
+
+        //the body is read, then the request is dispatched again
+        testFilter.doFilter(this.request, response, filterChain);
+        verify(asyncContext).dispatch();
+        verify(filterChain, never()).doFilter((ServletRequest) anyObject(),
+            (ServletResponse) anyObject());
+
+        testFilter.doFilter(this.request, response, filterChain);
+        verify(filterChain).doFilter((ServletRequest) anyObject(), (ServletResponse) anyObject());
+        verify(response).setHeader(HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
+            this.expectedServerAuthResponseSignature);
+        assertEquals(this.respBody, baos.toString());
+        verify(asyncContext).complete();
     }
 
     @Test
@@ -205,4 +368,94 @@ public class HMACFilterTest {
         verify(filterChain, never()).doFilter(this.request, response);
     }
 
+    @Test
+    public void testClock() throws ServletException {
+        HMACFilter filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                return secretKey;
+            }
+        };
+        filter.init(this.filterConfig);
+        assertSame(SystemHMACClock.INSTANCE, filter.verifier.clock);
+        filter.destroy();
+
+        //a cached clock is stopped with the filter
+        when(this.filterConfig.getInitParameter(HMACFilter.FILTER_CONFIG_CLOCK_TICK_MILLIS))
+                .thenReturn("10");
+        filter.init(this.filterConfig);
+        CachedHMACClock clock = (CachedHMACClock) filter.verifier.clock;
+        assertFalse(clock.isShutdown());
+        filter.destroy();
+        assertTrue(clock.isShutdown());
+    }
+
+    @Test
+    public void testRejectedBeforeBodyRead() throws IOException, ServletException {
+        final JmxHMACMetrics jmxMetrics = new JmxHMACMetrics();
+        HMACFilter filter = new HMACFilter() {
+            @Override
+            protected String getSecretKey(String accessKey) throws SecretKeyException {
+                return secretKey;
+            }
+
+            @Override
+            protected HMACClock createClock() {
+                return new FixedHMACClock(1449578521 + 901); //the request is too old
+            }
+
+            @Override
+            protected HMACMetrics createMetrics(FilterConfig config) {
+                return jmxMetrics;
+            }
+        };
+        filter.init(this.filterConfig);
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        FilterChain filterChain = mock(FilterChain.class);
+        filter.doFilter(this.request, response, filterChain);
+        verify(response).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED),
+            eq("Error: X-Authorization-Timestamp is too far in the past."));
+
+        when(this.request.getHeader(
+            HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP)).thenReturn("1449578521x");
+        HttpServletResponse malformedResponse = mock(HttpServletResponse.class);
+        filter.doFilter(this.request, malformedResponse, filterChain);
+        verify(malformedResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED),
+            eq("Error: X-Authorization-Timestamp is invalid."));
+
+        //the body of a rejected request is never read
+        verify(this.request, never()).getInputStream();
+        assertEquals(1, jmxMetrics.getRejectionCount(HMACMetrics.Rejection.TIMESTAMP_PAST));
+        assertEquals(1, jmxMetrics.getRejectionCount(HMACMetrics.Rejection.TIMESTAMP_INVALID));
+        assertEquals(0, jmxMetrics.getStageCount(HMACMetrics.Stage.BODY_HASH));
+        verify(filterChain, never()).doFilter((ServletRequest) anyObject(),
+            (ServletResponse) anyObject());
+    }
+
+    private ServletInputStream createInputStream() {
+        final ByteArrayInputStream realInputStream = new ByteArrayInputStream(reqBody.getBytes());
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return realInputStream.read();
+            }
+
+            @Override
+            public boolean isFinished() {
+                return realInputStream.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                CharRequestWrapper.notifyReadListener(this, readListener);
+            }
+        };
+    }
+
 }
@@ -0,0 +1,143 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class HMACHttpAsyncResponseConsumerTest {
+
+    private final String secretKey = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+
+    private final String nonce = "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd";
+    private final String xAuthorizationTimestamp = "1449578521";
+
+    private final String respBody = "{\"person\":{\"id\":12007,\"engagementScore\":0,\"lastTouch\":\"2015-10-20T14:19:13Z\",\"firstTouch\":\"2015-10-20T14:19:13Z\",\"firstTimeVisitor\":true,\"subscriberStatus\":\"Unknown\",\"customerId\":10008,\"primaryIdentifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"primaryIdentifierTypeId\":2,\"active\":true,\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"anonymousVisitor\":false,\"doNotTrack\":false},\"identifiers\":[{\"id\":12611,\"identifier\":\"qa100\",\"personIdentifierTypeId\":6,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12610,\"identifier\":\"qa100@example.com\",\"personIdentifierTypeId\":1,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12609,\"identifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"personIdentifierTypeId\":2,\"personId\":12007,\"customerId\":10008,\"active\":true}],\"touches\":[{\"id\":12212,\"touchDuration\":0,\"touchDurationInSeconds\":0,\"touchDate\":\"2015-10-20T14:19:13Z\",\"channelType\":\"twitter\",\"engagementScore\":0,\"referrer\":\"Direct\",\"referrerDomain\":\"Direct\",\"numberOfPageViews\":1,\"identifier\":\"33tpvFowlnHW7rNquqtmq5\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"personId\":12007,\"customerId\":10008,\"personIdentifierId\":12609,\"events\":[{\"id\":17619,\"name\":\"Content View\",\"eventDate\":\"2015-10-20T14:19:13Z\",\"eventCategoryType\":\"OTHER\",\"accountId\":\"SOMEACCOUNTID\",\"referrer\":\"Direct\",\"captureIdentifier\":\"2zkT5TXrcC92HmKqMAq1Yc\",\"touchId\":12212,\"personId\":12007,\"customerId\":10008,\"eventCategoryId\":10046,\"clientDate\":\"2015-10-20T14:19:13Z\",\"clientTimezone\":\"America/Anguilla\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\"}]}]}";
+
+    private final String expectedServerAuthResponseSignature = "3uUNS0PW5+fl6x1ZCcHxnt0Me0PWvtNBGsH5F17P+h8=";
+
+    /**
+     * Decoder that delivers the content in small pieces
+     */
+    private static class ChunkedContentDecoder implements ContentDecoder {
+        final ByteBuffer content;
+
+        ChunkedContentDecoder(byte[] content) {
+            this.content = ByteBuffer.wrap(content);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!this.content.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(Math.min(dst.remaining(), this.content.remaining()), 100);
+            ByteBuffer chunk = this.content.duplicate();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            this.content.position(this.content.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return !this.content.hasRemaining();
+        }
+    }
+
+    @Test
+    public void testValidResponse() throws Exception {
+        HMACHttpAsyncResponseConsumer<HttpResponse> consumer = this.consumeResponse(
+            this.expectedServerAuthResponseSignature);
+        assertNull(consumer.getException());
+        assertEquals(this.respBody, EntityUtils.toString(consumer.getResult().getEntity()));
+    }
+
+    @Test
+    public void testInvalidResponse() throws Exception {
+        HMACHttpAsyncResponseConsumer<HttpResponse> consumer = this.consumeResponse(
+            "4VtBHjqrdDeYrJySoJVDUHpN9u3vyTsyOLz4chezi98=");
+        assertTrue(consumer.getException() instanceof HttpException);
+        assertTrue(consumer.isDone());
+        assertNull(consumer.getResult());
+    }
+
+    @Test
+    public void testSigningKeyOfContext() throws Exception {
+        HMACSigningKey signingKey = new HMACAlgorithmFactory().createAlgorithm(
+            "SHA256").createSigningKey(this.secretKey);
+
+        //the key the request was signed with is used instead of the one of the consumer
+        HMACHttpAsyncResponseConsumer<HttpResponse> consumer = this.consumeResponse(
+            this.expectedServerAuthResponseSignature, "d3Jvbmcgc2VjcmV0IGtleQ==", signingKey);
+        assertNull(consumer.getException());
+
+        consumer = this.consumeResponse(this.expectedServerAuthResponseSignature, null, signingKey);
+        assertNull(consumer.getException());
+        assertEquals(this.respBody, EntityUtils.toString(consumer.getResult().getEntity()));
+    }
+
+    @Test(expected = HttpException.class)
+    public void testNoSigningKey() throws Exception {
+        this.consumeResponse(this.expectedServerAuthResponseSignature, null, null);
+    }
+
+    private HMACHttpAsyncResponseConsumer<HttpResponse> consumeResponse(String serverSignature)
+            throws IOException, HttpException, SignatureException {
+        return this.consumeResponse(serverSignature, this.secretKey, null);
+    }
+
+    private HMACHttpAsyncResponseConsumer<HttpResponse> consumeResponse(String serverSignature,
+            String consumerSecretKey, HMACSigningKey contextSigningKey)
+            throws IOException, HttpException, SignatureException {
+        byte[] body = this.respBody.getBytes(HMACMessageCreator.ENCODING_UTF_8);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setHeader(HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
+            serverSignature);
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContentLength(body.length);
+        response.setEntity(entity);
+
+        HttpContext context = mock(HttpContext.class);
+        when(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_HTTP_VERB)).thenReturn("POST");
+        when(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_AUTH_HEADER)).thenReturn(
+            new HMACAuthorizationHeader("Plexus", "id", this.nonce, "2.0"));
+        when(context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_X_AUTHORIZATION_TIMESTAMP)).thenReturn(
+                this.xAuthorizationTimestamp);
+        when(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY)).thenReturn(
+            contextSigningKey);
+
+        HMACHttpAsyncResponseConsumer<HttpResponse> consumer = consumerSecretKey == null
+                ? new HMACHttpAsyncResponseConsumer<HttpResponse>(new BasicAsyncResponseConsumer(),
+                    context, "SHA256")
+                : new HMACHttpAsyncResponseConsumer<HttpResponse>(new BasicAsyncResponseConsumer(),
+                    context, consumerSecretKey, "SHA256");
+        consumer.responseReceived(response);
+        ChunkedContentDecoder decoder = new ChunkedContentDecoder(body);
+        IOControl ioctrl = mock(IOControl.class);
+        while (!decoder.isCompleted()) {
+            consumer.consumeContent(decoder, ioctrl);
+        }
+        consumer.responseCompleted(context);
+        return consumer;
+    }
+
+}
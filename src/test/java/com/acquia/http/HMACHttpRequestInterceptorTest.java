@@ -12,12 +12,23 @@ import static org.mockito.Mockito.when;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
 import org.apache.http.RequestLine;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.junit.Assert;
 import org.junit.Test;
@@ -92,9 +103,19 @@ public class HMACHttpRequestInterceptorTest {
         }).when(request).setHeader((String) anyObject(), (String) anyObject());
 
         HttpContext context = mock(HttpContext.class);
+        HMACDiagnostics diagnostics = new HMACDiagnostics();
+        when(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS)).thenReturn(
+            diagnostics);
 
         requestInterceptor.process(request, context);
 
+        //the messages of a sampled request are kept
+        verify(context).setAttribute(HMACHttpRequestInterceptor.CONTEXT_SIGNED_REQUEST_MESSAGE,
+            expectedSignature);
+        verify(context).setAttribute(HMACHttpRequestInterceptor.CONTEXT_SIGNABLE_REQUEST_MESSAGE,
+            diagnostics.getSignableRequestMessage());
+        Assert.assertEquals(expectedSignature, diagnostics.getSignedRequestMessage());
+
         //verify that X-Authorization-Timestamp is set once, since we had deliberately not set this header before
         verify(request, times(1)).setHeader(
             eq(HMACMessageCreator.PARAMETER_X_AUTHORIZATION_TIMESTAMP),
@@ -110,6 +131,162 @@ public class HMACHttpRequestInterceptorTest {
         Assert.assertEquals(expectedSignature, calculatedAuthHeader.getSignature());
     }
 
+    @Test
+    public void testProcessAll() throws IOException, HttpException, SignatureException {
+        String secretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+        HMACCredentials credentials = new HMACCredentials("Pipet service", "second-client",
+            "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==");
+        HMACHttpRequestInterceptor requestInterceptor = new HMACHttpRequestInterceptor(
+            "Pipet service", "efdde334-fe7b-11e4-a322-1697f925ec7b", secretKey, "SHA256");
+
+        List<HttpRequest> requests = new ArrayList<HttpRequest>();
+        List<HttpContext> contexts = new ArrayList<HttpContext>();
+        for (int i = 0; i < 300; i++) {
+            HttpRequest request = new BasicHttpRequest("GET", "/v1.0/task-status/" + i + "?limit=10");
+            request.setHeader(HMACMessageCreator.PARAMETER_HOST, "example.acquiapipet.net");
+            requests.add(request);
+            HttpContext context = new BasicHttpContext();
+            if (i % 3 == 0) {
+                context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_CREDENTIALS, credentials);
+            }
+            contexts.add(context);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            requestInterceptor.processAll(requests.subList(0, 100), contexts.subList(0, 100));
+            requestInterceptor.processAll(requests.subList(100, 300), contexts.subList(100, 300),
+                pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        HMACMessageCreator messageCreator = new HMACMessageCreator();
+        Set<String> nonces = new HashSet<String>();
+        for (int i = 0; i < requests.size(); i++) {
+            HttpRequest request = requests.get(i);
+            HMACAuthorizationHeader authHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
+                request.getFirstHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION).getValue());
+            Assert.assertEquals(i % 3 == 0 ? "second-client" : "efdde334-fe7b-11e4-a322-1697f925ec7b",
+                authHeader.getId());
+            Assert.assertEquals(4, UUID.fromString(authHeader.getNonce()).version());
+            Assert.assertTrue(nonces.add(authHeader.getNonce()));
+            Assert.assertEquals(authHeader.getSignature(), ((HMACAuthorizationHeader) contexts.get(
+                i).getAttribute(HMACHttpRequestInterceptor.CONTEXT_AUTH_HEADER)).getSignature());
+
+            String signableRequestMessage = messageCreator.createSignableRequestMessage(request,
+                authHeader);
+            Assert.assertEquals(algorithm.encryptMessage(
+                i % 3 == 0 ? credentials.getSecretKey() : secretKey, signableRequestMessage),
+                authHeader.getSignature());
+        }
+    }
+
+    @Test
+    public void testContextCredentials() throws IOException, HttpException {
+        final String nonce = "d1954337-5319-4821-8427-115542e08d10";
+        final String xAuthorizationTimestamp = "1432075982";
+        HMACCredentials credentials = new HMACCredentials("Pipet service",
+            "efdde334-fe7b-11e4-a322-1697f925ec7b", "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=");
+
+        String expectedSignature = "MRlPr/Z1WQY2sMthcaEqETRMw4gPYXlPcTpaLWS2gcc=";
+
+        HMACHttpRequestInterceptor requestInterceptor = new HMACHttpRequestInterceptor("SHA256", 2) {
+
+            @Override
+            protected HMACAuthorizationHeader createHMACAuthorizationHeader(
+                    HMACCredentials credentials) {
+                return new HMACAuthorizationHeader(credentials.getRealm(),
+                    credentials.getAccessKey(), nonce, VERSION);
+            }
+
+            @Override
+            protected long getCurrentUnixTime() {
+                return Long.parseLong(xAuthorizationTimestamp);
+            }
+
+        };
+
+        HMACSigningKey firstSigningKey = null;
+        for (int i = 0; i < 2; i++) {
+            HttpRequest request = new BasicHttpRequest("GET", "/v1.0/task-status/133?limit=10");
+            request.setHeader(HMACMessageCreator.PARAMETER_HOST, "example.acquiapipet.net");
+            HttpContext context = new BasicHttpContext();
+            context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_CREDENTIALS, credentials);
+
+            requestInterceptor.process(request, context);
+
+            HMACAuthorizationHeader calculatedAuthHeader = HMACAuthorizationHeader.getAuthorizationHeaderObject(
+                request.getFirstHeader(HMACMessageCreator.PARAMETER_AUTHORIZATION).getValue());
+            Assert.assertEquals(credentials.getAccessKey(), calculatedAuthHeader.getId());
+            Assert.assertEquals(expectedSignature, calculatedAuthHeader.getSignature());
+
+            //the signing key is kept for the next request, and passed on to the response interceptor
+            HMACSigningKey signingKey = (HMACSigningKey) context.getAttribute(
+                HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY);
+            Assert.assertNotNull(signingKey);
+            if (firstSigningKey == null) {
+                firstSigningKey = signingKey;
+            }
+            Assert.assertSame(firstSigningKey, signingKey);
+        }
+    }
+
+    @Test
+    public void testReusedContext() throws IOException, HttpException {
+        HMACHttpRequestInterceptor requestInterceptor = new HMACHttpRequestInterceptor("Plexus",
+            "id", "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=", "SHA256");
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_CREDENTIALS, new HMACCredentials(
+            "Plexus", "other-id",
+            "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q=="));
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS, new HMACDiagnostics());
+        HttpRequest request = new BasicHttpRequest("GET", "/");
+        request.setHeader(HMACMessageCreator.PARAMETER_HOST, "example.acquiapipet.net");
+        requestInterceptor.process(request, context);
+        Assert.assertNotNull(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY));
+        Assert.assertNotNull(context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_SIGNABLE_REQUEST_MESSAGE));
+
+        //the next request is signed with the key of the interceptor and is not sampled
+        context.removeAttribute(HMACHttpRequestInterceptor.CONTEXT_CREDENTIALS);
+        context.removeAttribute(HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS);
+        request = new BasicHttpRequest("GET", "/");
+        request.setHeader(HMACMessageCreator.PARAMETER_HOST, "example.acquiapipet.net");
+        requestInterceptor.process(request, context);
+        Assert.assertNull(context.getAttribute(HMACHttpRequestInterceptor.CONTEXT_SIGNING_KEY));
+        Assert.assertNull(context.getAttribute(
+            HMACHttpRequestInterceptor.CONTEXT_SIGNABLE_REQUEST_MESSAGE));
+    }
+
+    @Test
+    public void testChangedSecretKey() throws SignatureException {
+        String secretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+        String otherSecretKey = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+        HMACHttpRequestInterceptor requestInterceptor = new HMACHttpRequestInterceptor("Plexus",
+            "id", secretKey, "SHA256");
+        HMACSigningKey signingKey = requestInterceptor.getSigningKey();
+        Assert.assertSame(signingKey, requestInterceptor.getSigningKey());
+
+        //a subclass may change the secret key after the first request
+        requestInterceptor.secretKey = otherSecretKey;
+        HMACSigningKey otherSigningKey = requestInterceptor.getSigningKey();
+        Assert.assertArrayEquals(Base64.decodeBase64(otherSecretKey), otherSigningKey.getEncoded());
+        Assert.assertSame(otherSigningKey, requestInterceptor.getSigningKey());
+    }
+
+    @Test
+    public void testMissingContextCredentials() throws IOException {
+        HMACHttpRequestInterceptor requestInterceptor = new HMACHttpRequestInterceptor("SHA256", 2);
+        HttpRequest request = new BasicHttpRequest("GET", "/");
+        try {
+            requestInterceptor.process(request, new BasicHttpContext());
+            Assert.fail("A request without credentials must not be signed.");
+        } catch(HttpException e) {
+            //no credentials
+        }
+    }
+
     @Test
     public void testPostAuthorizationHeader_setHeaders() throws IOException, HttpException {
         //base Authorization parameter
@@ -248,7 +425,7 @@ public class HMACHttpRequestInterceptorTest {
             }
 
             @Override
-            protected String getBase64Sha256String(byte[] inputStreamBytes) throws IOException {
+            protected String getBase64ContentSha256(byte[] contentSha256) throws IOException {
                 return xAuthorizationContentSha256;
             }
 
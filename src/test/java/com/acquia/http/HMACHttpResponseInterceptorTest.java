@@ -1,5 +1,10 @@
 package com.acquia.http;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -9,18 +14,29 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.SignatureException;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 public class HMACHttpResponseInterceptorTest {
 
+    private static final String SECRET_KEY = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+
+    private static final String RESPONSE_BODY = "{\"person\":{\"id\":12007,\"engagementScore\":0,\"lastTouch\":\"2015-10-20T14:19:13Z\",\"firstTouch\":\"2015-10-20T14:19:13Z\",\"firstTimeVisitor\":true,\"subscriberStatus\":\"Unknown\",\"customerId\":10008,\"primaryIdentifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"primaryIdentifierTypeId\":2,\"active\":true,\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"anonymousVisitor\":false,\"doNotTrack\":false},\"identifiers\":[{\"id\":12611,\"identifier\":\"qa100\",\"personIdentifierTypeId\":6,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12610,\"identifier\":\"qa100@example.com\",\"personIdentifierTypeId\":1,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12609,\"identifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"personIdentifierTypeId\":2,\"personId\":12007,\"customerId\":10008,\"active\":true}],\"touches\":[{\"id\":12212,\"touchDuration\":0,\"touchDurationInSeconds\":0,\"touchDate\":\"2015-10-20T14:19:13Z\",\"channelType\":\"twitter\",\"engagementScore\":0,\"referrer\":\"Direct\",\"referrerDomain\":\"Direct\",\"numberOfPageViews\":1,\"identifier\":\"33tpvFowlnHW7rNquqtmq5\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"personId\":12007,\"customerId\":10008,\"personIdentifierId\":12609,\"events\":[{\"id\":17619,\"name\":\"Content View\",\"eventDate\":\"2015-10-20T14:19:13Z\",\"eventCategoryType\":\"OTHER\",\"accountId\":\"SOMEACCOUNTID\",\"referrer\":\"Direct\",\"captureIdentifier\":\"2zkT5TXrcC92HmKqMAq1Yc\",\"touchId\":12212,\"personId\":12007,\"customerId\":10008,\"eventCategoryId\":10046,\"clientDate\":\"2015-10-20T14:19:13Z\",\"clientTimezone\":\"America/Anguilla\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\"}]}]}";
+
     @Test
     public void testResponseValidationHeader() throws IOException, HttpException {
         //base Authorization parameter
@@ -31,9 +47,9 @@ public class HMACHttpResponseInterceptorTest {
         String xAuthorizationTimestamp = "1449578521";
 
         String httpMethod = "POST";
-        String secretKey = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+        String secretKey = SECRET_KEY;
 
-        String respBody = "{\"person\":{\"id\":12007,\"engagementScore\":0,\"lastTouch\":\"2015-10-20T14:19:13Z\",\"firstTouch\":\"2015-10-20T14:19:13Z\",\"firstTimeVisitor\":true,\"subscriberStatus\":\"Unknown\",\"customerId\":10008,\"primaryIdentifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"primaryIdentifierTypeId\":2,\"active\":true,\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"anonymousVisitor\":false,\"doNotTrack\":false},\"identifiers\":[{\"id\":12611,\"identifier\":\"qa100\",\"personIdentifierTypeId\":6,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12610,\"identifier\":\"qa100@example.com\",\"personIdentifierTypeId\":1,\"personId\":12007,\"customerId\":10008,\"active\":true},{\"id\":12609,\"identifier\":\"7RBYAsUXsXH6L5V871y0RO\",\"personIdentifierTypeId\":2,\"personId\":12007,\"customerId\":10008,\"active\":true}],\"touches\":[{\"id\":12212,\"touchDuration\":0,\"touchDurationInSeconds\":0,\"touchDate\":\"2015-10-20T14:19:13Z\",\"channelType\":\"twitter\",\"engagementScore\":0,\"referrer\":\"Direct\",\"referrerDomain\":\"Direct\",\"numberOfPageViews\":1,\"identifier\":\"33tpvFowlnHW7rNquqtmq5\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\",\"personId\":12007,\"customerId\":10008,\"personIdentifierId\":12609,\"events\":[{\"id\":17619,\"name\":\"Content View\",\"eventDate\":\"2015-10-20T14:19:13Z\",\"eventCategoryType\":\"OTHER\",\"accountId\":\"SOMEACCOUNTID\",\"referrer\":\"Direct\",\"captureIdentifier\":\"2zkT5TXrcC92HmKqMAq1Yc\",\"touchId\":12212,\"personId\":12007,\"customerId\":10008,\"eventCategoryId\":10046,\"clientDate\":\"2015-10-20T14:19:13Z\",\"clientTimezone\":\"America/Anguilla\",\"lastModifiedDate\":\"2015-10-20T18:19:20Z\"}]}]}";
+        String respBody = RESPONSE_BODY;
 
         String expectedServerAuthResponseSignature = "3uUNS0PW5+fl6x1ZCcHxnt0Me0PWvtNBGsH5F17P+h8=";
 
@@ -89,6 +105,111 @@ public class HMACHttpResponseInterceptorTest {
         responseInterceptor.process(response, context); //this will throw HttpException if not passed
     }
 
+    @Test
+    public void testDeferredResponseValidation() throws IOException, HttpException {
+        HttpResponse response = this.createDeferredResponse(RESPONSE_BODY);
+        HMACHttpResponseInterceptor responseInterceptor = new HMACHttpResponseInterceptor(
+            SECRET_KEY, "SHA256");
+        responseInterceptor.setDeferredVerification(true);
+        responseInterceptor.process(response, this.createDeferredContext());
+
+        assertTrue(response.getEntity() instanceof HMACVerifyingHttpEntity);
+        assertEquals(RESPONSE_BODY, EntityUtils.toString(response.getEntity(), "UTF-8"));
+    }
+
+    @Test
+    public void testDeferredResponseValidationTampered() throws IOException, HttpException {
+        HttpResponse response = this.createDeferredResponse(RESPONSE_BODY + " ");
+        HMACHttpResponseInterceptor responseInterceptor = new HMACHttpResponseInterceptor(
+            SECRET_KEY, "SHA256");
+        responseInterceptor.setDeferredVerification(true);
+        responseInterceptor.process(response, this.createDeferredContext()); //the body is not read yet
+
+        InputStream content = response.getEntity().getContent();
+        byte[] buffer = new byte[100];
+        try {
+            while (content.read(buffer) != -1) {
+            }
+            fail("A tampered response body must not pass verification.");
+        } catch(HMACVerificationException e) {
+            assertEquals(HMACVerificationException.INVALID_SIGNATURE, e.getMessage());
+        }
+        try {
+            content.read();
+            fail("A tampered response body must not pass verification.");
+        } catch(HMACVerificationException e) {
+            //still invalid
+        }
+    }
+
+    @Test
+    public void testSampledDiagnostics() throws IOException, HttpException {
+        HttpContext context = this.createDeferredContext();
+        HMACDiagnostics diagnostics = new HMACDiagnostics();
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS, diagnostics);
+
+        HMACHttpResponseInterceptor interceptor = new HMACHttpResponseInterceptor(SECRET_KEY,
+            "SHA256");
+        interceptor.process(this.createDeferredResponse(RESPONSE_BODY), context);
+        assertEquals("64d02132-40bf-4fce-85bf-3f1bb1bfe7dd\n1449578521\n" + RESPONSE_BODY,
+            diagnostics.getSignableResponseMessage());
+    }
+
+    @Test
+    public void testChangedSecretKey() throws SignatureException {
+        String otherSecretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+        HMACHttpResponseInterceptor responseInterceptor = new HMACHttpResponseInterceptor(
+            SECRET_KEY, "SHA256");
+        HMACSigningKey signingKey = responseInterceptor.getSigningKey();
+        assertSame(signingKey, responseInterceptor.getSigningKey());
+
+        //a subclass may change the secret key after the first response
+        responseInterceptor.secretKey = otherSecretKey;
+        HMACSigningKey otherSigningKey = responseInterceptor.getSigningKey();
+        assertArrayEquals(Base64.decodeBase64(otherSecretKey), otherSigningKey.getEncoded());
+        assertSame(otherSigningKey, responseInterceptor.getSigningKey());
+    }
+
+    @Test
+    public void testMissingResponseValidationHeader() throws IOException {
+        HttpContext context = this.createDeferredContext();
+        HMACDiagnostics diagnostics = new HMACDiagnostics();
+        diagnostics.setSignableRequestMessage("POST\nexample.com\n/resource");
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_DIAGNOSTICS, diagnostics);
+
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Server Error");
+        HMACHttpResponseInterceptor interceptor = new HMACHttpResponseInterceptor(SECRET_KEY,
+            "SHA256");
+        try {
+            interceptor.process(response, context);
+            fail("A response without a validation header must be rejected.");
+        } catch(HttpException e) {
+            assertTrue(e.getMessage().contains("POST\nexample.com\n/resource"));
+            assertTrue(e.getMessage().contains("HTTP/1.1 500 Server Error"));
+            assertTrue(e.getMessage().contains("X-Authorization-Timestamp:\n1449578521"));
+        }
+    }
+
+    private HttpResponse createDeferredResponse(String body) throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        byte[] bytes = body.getBytes(HMACMessageCreator.ENCODING_UTF_8);
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(bytes), -1));
+        response.setHeader(HMACMessageCreator.PARAMETER_X_SERVER_AUTHORIZATION_HMAC_SHA256,
+            "3uUNS0PW5+fl6x1ZCcHxnt0Me0PWvtNBGsH5F17P+h8=");
+        return response;
+    }
+
+    private HttpContext createDeferredContext() {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_HTTP_VERB, "POST");
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_AUTH_HEADER,
+            new HMACAuthorizationHeader("Plexus", "f0d16792-cdc9-4585-a5fd-bae3d898d8c5",
+                "64d02132-40bf-4fce-85bf-3f1bb1bfe7dd", "2.0"));
+        context.setAttribute(HMACHttpRequestInterceptor.CONTEXT_X_AUTHORIZATION_TIMESTAMP,
+            "1449578521");
+        return context;
+    }
+
     private Header mockHeader(String value) {
         Header header = mock(Header.class);
         when(header.getValue()).thenReturn(value);
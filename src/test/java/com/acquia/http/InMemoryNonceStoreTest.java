@@ -0,0 +1,55 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class InMemoryNonceStoreTest {
+
+    private final long now = 1449578521;
+
+    @Test
+    public void testReplay() {
+        NonceStore nonceStore = new InMemoryNonceStore(900);
+        String nonce = UUID.randomUUID().toString();
+        assertTrue(nonceStore.add(nonce, now));
+        assertFalse(nonceStore.add(nonce, now));
+        assertFalse(nonceStore.add(nonce.toUpperCase(), now));
+        assertTrue(nonceStore.add(UUID.randomUUID().toString(), now));
+
+        //nonces that are not UUIDs
+        assertTrue(nonceStore.add("not-a-uuid", now));
+        assertFalse(nonceStore.add("not-a-uuid", now));
+        assertTrue(nonceStore.add("not-a-uuid-either", now));
+    }
+
+    @Test
+    public void testTimeWindow() {
+        NonceStore nonceStore = new InMemoryNonceStore(900, 60);
+        String nonce = UUID.randomUUID().toString();
+        assertTrue(nonceStore.add(nonce, now - 900));
+        assertTrue(nonceStore.add(UUID.randomUUID().toString(), now + 900));
+        assertFalse(nonceStore.add(nonce, now - 900)); //still remembered across the whole window
+
+        //once the time of its bucket is past, a request is too old to tell
+        assertTrue(nonceStore.add(UUID.randomUUID().toString(), now + 3600));
+        assertFalse(nonceStore.add(UUID.randomUUID().toString(), now + 3600 - 32 * 60));
+    }
+
+    @Test
+    public void testNonceKey() {
+        UUID uuid = UUID.randomUUID();
+        InMemoryNonceStore.NonceKey nonceKey = InMemoryNonceStore.toNonceKey(uuid.toString());
+        assertEquals(uuid.getMostSignificantBits(), nonceKey.mostSignificantBits);
+        assertEquals(uuid.getLeastSignificantBits(), nonceKey.leastSignificantBits);
+        assertEquals(nonceKey, InMemoryNonceStore.toNonceKey(uuid.toString()));
+        assertFalse(nonceKey.equals(InMemoryNonceStore.toNonceKey(
+            UUID.randomUUID().toString())));
+        assertEquals(InMemoryNonceStore.toNonceKey("x"), InMemoryNonceStore.toNonceKey("x"));
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+public class JmxHMACMetricsTest {
+
+    @Test
+    public void testRecord() {
+        JmxHMACMetrics metrics = new JmxHMACMetrics();
+        metrics.recordStage(HMACMetrics.Stage.MAC_COMPUTE, 300);
+        metrics.recordStage(HMACMetrics.Stage.MAC_COMPUTE, 100);
+        metrics.recordRejection(HMACMetrics.Rejection.BAD_SIGNATURE);
+        metrics.recordBodySize(0);
+        metrics.recordBodySize(1024);
+        metrics.recordBodySize(1025);
+        metrics.recordBodySize(2L << 30);
+
+        assertEquals(Long.valueOf(2), metrics.getStageCounts().get("MAC_COMPUTE"));
+        assertEquals(Long.valueOf(400), metrics.getStageTotalNanos().get("MAC_COMPUTE"));
+        assertEquals(Long.valueOf(300), metrics.getStageMaxNanos().get("MAC_COMPUTE"));
+        assertEquals(Long.valueOf(0), metrics.getStageCounts().get("BODY_HASH"));
+        assertEquals(1, metrics.getRejectionCount(HMACMetrics.Rejection.BAD_SIGNATURE));
+
+        Map<String, Long> histogram = metrics.getBodySizeHistogram();
+        assertEquals(Long.valueOf(1), histogram.get("<=0"));
+        assertEquals(Long.valueOf(1), histogram.get("<=1024"));
+        assertEquals(Long.valueOf(1), histogram.get("<=16384"));
+        assertEquals(Long.valueOf(1), histogram.get(">1073741824"));
+        assertEquals(2049 + (2L << 30), metrics.getBodySizeTotal());
+
+        metrics.reset();
+        assertEquals(0, metrics.getStageCount(HMACMetrics.Stage.MAC_COMPUTE));
+        assertEquals(Long.valueOf(0), metrics.getStageMaxNanos().get("MAC_COMPUTE"));
+        assertEquals(0, metrics.getBodySizeTotal());
+    }
+
+    @Test
+    public void testRegister() throws JMException {
+        JmxHMACMetrics metrics = JmxHMACMetrics.register("HMACFilter", "test");
+        ObjectName objectName = metrics.getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertTrue(server.isRegistered(objectName));
+            metrics.recordRejection(HMACMetrics.Rejection.UNKNOWN_KEY);
+
+            TabularData rejectionCounts = (TabularData) server.getAttribute(objectName,
+                "RejectionCounts");
+            CompositeData row = rejectionCounts.get(new Object[] { "UNKNOWN_KEY" });
+            assertEquals(Long.valueOf(1), row.get("value"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    @Test
+    public void testRegisterSameName() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        JmxHMACMetrics first = JmxHMACMetrics.register("HMACFilter", "same");
+        JmxHMACMetrics second = JmxHMACMetrics.register("HMACFilter", "same");
+        ObjectName firstName = first.getObjectName();
+        try {
+            //the first metrics are not replaced
+            assertTrue(server.isRegistered(firstName));
+            assertEquals("2", second.getObjectName().getKeyProperty("instance"));
+            assertTrue(server.isRegistered(second.getObjectName()));
+
+            //metrics unregistered by someone else leave the next metrics of the name alone
+            server.unregisterMBean(firstName);
+            assertNull(first.getObjectName());
+            JmxHMACMetrics third = JmxHMACMetrics.register("HMACFilter", "same");
+            assertEquals(firstName, third.getObjectName());
+            first.unregister();
+            assertTrue(server.isRegistered(firstName));
+            third.unregister();
+        } finally {
+            first.unregister();
+            second.unregister();
+        }
+        assertFalse(server.isRegistered(firstName));
+    }
+
+}
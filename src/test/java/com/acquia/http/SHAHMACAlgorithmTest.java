@@ -0,0 +1,136 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+public class SHAHMACAlgorithmTest {
+
+    private final String secretKey = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+    private final String otherSecretKey = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+
+    @Test
+    public void testRepeatedSigningWithCachedMac() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(this.sign("HmacSHA256", secretKey, "message " + i),
+                algorithm.encryptMessage(secretKey, "message " + i));
+            assertEquals(this.sign("HmacSHA256", otherSecretKey, "message " + i),
+                algorithm.encryptMessage(otherSecretKey, "message " + i));
+        }
+    }
+
+    @Test
+    public void testMoreKeysThanCached() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA512");
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < SHAHMACAlgorithm.MAX_CACHED_KEYS_PER_THREAD * 2; i++) {
+                String key = Base64.encodeBase64String(("key-" + i).getBytes());
+                assertEquals(this.sign("HmacSHA512", key, "message"),
+                    algorithm.encryptMessage(key, "message"));
+            }
+        }
+    }
+
+    @Test
+    public void testSigningKey() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA384");
+        HMACSigningKey signingKey = algorithm.createSigningKey(secretKey);
+        assertEquals(new HMACSigningKey("HmacSHA384", secretKey), signingKey);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(this.sign("HmacSHA384", secretKey, "message " + i),
+                algorithm.encryptMessage(signingKey, "message " + i));
+        }
+    }
+
+    @Test
+    public void testMessageSigner() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        HMACSigningKey signingKey = algorithm.createSigningKey(secretKey);
+        String message = "POST\nexample.com\n/caf\u00e9\nq=\u20ac\ud83d\ude00\n";
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longMessage.append(message);
+        }
+
+        HMACMessageSigner signer = algorithm.createMessageSigner(signingKey);
+        for (int i = 0; i < longMessage.length(); i++) {
+            signer.append(longMessage.charAt(i)); //split surrogate pairs across calls
+        }
+        assertEquals(this.sign("HmacSHA256", secretKey, longMessage.toString()),
+            signer.encryptMessage());
+
+        signer = algorithm.createMessageSigner(signingKey);
+        signer.append(message, 0, 5).append(message.substring(5));
+        assertEquals(this.sign("HmacSHA256", secretKey, message), signer.encryptMessage());
+    }
+
+    @Test
+    public void testVerifyMessage() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA256");
+        HMACSigningKey signingKey = algorithm.createSigningKey(secretKey);
+        String signature = this.sign("HmacSHA256", secretKey, "message");
+        assertTrue(algorithm.verifyMessage(signingKey, "message", signature));
+        assertFalse(algorithm.verifyMessage(signingKey, "other message", signature));
+        assertFalse(algorithm.verifyMessage(signingKey, "message",
+            this.sign("HmacSHA256", otherSecretKey, "message")));
+        assertFalse(algorithm.verifyMessage(signingKey, "message", signature.substring(4)));
+        assertFalse(algorithm.verifyMessage(signingKey, "message", "*" + signature.substring(1)));
+        assertFalse(algorithm.verifyMessage(signingKey, "message", null));
+
+        HMACMessageSigner signer = algorithm.createMessageSigner(signingKey);
+        signer.append("mess").append("age");
+        assertTrue(algorithm.verifyMessage(signer, signature));
+    }
+
+    @Test
+    public void testDecodeBase64() {
+        Random random = new Random(42);
+        byte[] output = new byte[64];
+        for (int length = 0; length <= output.length; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = Base64.encodeBase64String(bytes);
+            assertEquals(length, SHAHMACAlgorithm.decodeBase64(encoded, output));
+            assertArrayEquals(bytes, Arrays.copyOf(output, length));
+            assertEquals(length, SHAHMACAlgorithm.decodeBase64(encoded.replace("=", ""), output));
+            assertArrayEquals(bytes, Arrays.copyOf(output, length));
+        }
+        assertEquals(-1, SHAHMACAlgorithm.decodeBase64("abcde", output));
+        assertEquals(-1, SHAHMACAlgorithm.decodeBase64("ab c", output));
+        assertEquals(-1, SHAHMACAlgorithm.decodeBase64(
+            Base64.encodeBase64String(new byte[65]), output));
+    }
+
+    @Test(expected = SignatureException.class)
+    public void testSigningKeyOfOtherAlgorithm() throws Exception {
+        HMACAlgorithmFactory algorithmFactory = new HMACAlgorithmFactory();
+        HMACSigningKey signingKey = algorithmFactory.createAlgorithm("SHA1").createSigningKey(
+            secretKey);
+        algorithmFactory.createAlgorithm("SHA256").encryptMessage(signingKey, "message");
+    }
+
+    @Test(expected = SignatureException.class)
+    public void testEmptyKey() throws Exception {
+        HMACAlgorithm algorithm = new HMACAlgorithmFactory().createAlgorithm("SHA1");
+        algorithm.encryptMessage("", "message");
+    }
+
+    private String sign(String algorithm, String secretKey, String message) throws Exception {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(Base64.decodeBase64(secretKey), algorithm));
+        return Base64.encodeBase64String(mac.doFinal(message.getBytes("UTF-8")));
+    }
+
+}
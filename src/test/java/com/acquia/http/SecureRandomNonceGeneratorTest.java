@@ -0,0 +1,61 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class SecureRandomNonceGeneratorTest {
+
+    @Test
+    public void testFormat() throws NoSuchAlgorithmException {
+        NonceGenerator generator = new SecureRandomNonceGenerator(null, 3); //refills several times
+        for (int i = 0; i < 100; i++) {
+            String nonce = generator.createNonce();
+            UUID uuid = UUID.fromString(nonce);
+            assertEquals(uuid.toString(), nonce);
+            assertEquals(4, uuid.version());
+            assertEquals(2, uuid.variant());
+        }
+    }
+
+    @Test
+    public void testUnique() throws InterruptedException {
+        final NonceGenerator generator = SecureRandomNonceGenerator.getSharedGenerator();
+        final Set<String> nonces = Collections.synchronizedSet(new HashSet<String>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 5000; j++) {
+                        nonces.add(generator.createNonce());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(20000, nonces.size());
+    }
+
+    @Test
+    public void testUnknownAlgorithm() {
+        try {
+            new SecureRandomNonceGenerator("NoSuchPRNG", 64);
+            fail("An unknown SecureRandom algorithm must be rejected.");
+        } catch(NoSuchAlgorithmException e) {
+            assertTrue(e.getMessage().contains("NoSuchPRNG"));
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.acquia.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.security.SignatureException;
+
+import org.junit.Test;
+
+public class SigningKeyCacheTest {
+
+    private static final String SECRET_KEY = "W5PeGMxSItNerkNFqQMfYiJvH14WzVJMy54CPoTAYoI=";
+
+    private static final String OTHER_SECRET_KEY = "eox4TsBBPhpi737yMxpdBbr3sgg/DEC4m47VXO0B8qJLsbdMsmN47j/ZF/EFpyUKtAhm0OWXMGaAjRaho7/93Q==";
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws SignatureException {
+        SigningKeyCache cache = new SigningKeyCache(new HMACAlgorithmFactory().createAlgorithm(
+            "SHA256"), 2);
+        HMACCredentials first = new HMACCredentials("Acquia", "1", SECRET_KEY);
+        HMACCredentials second = new HMACCredentials("Acquia", "2", SECRET_KEY);
+        HMACCredentials third = new HMACCredentials("Acquia", "3", SECRET_KEY);
+
+        HMACSigningKey firstKey = cache.getSigningKey(first);
+        HMACSigningKey secondKey = cache.getSigningKey(second);
+        assertSame(firstKey, cache.getSigningKey(first)); //second is now the least recently used
+        cache.getSigningKey(third);
+        assertEquals(2, cache.size());
+
+        assertSame(firstKey, cache.getSigningKey(first));
+        assertNotSame(secondKey, cache.getSigningKey(second));
+    }
+
+    @Test
+    public void testChangedSecretKey() throws SignatureException {
+        SigningKeyCache cache = new SigningKeyCache(new HMACAlgorithmFactory().createAlgorithm(
+            "SHA256"), 2);
+        HMACSigningKey signingKey = cache.getSigningKey(new HMACCredentials("Acquia", "1",
+            SECRET_KEY));
+        HMACSigningKey rotatedKey = cache.getSigningKey(new HMACCredentials("Acquia", "1",
+            OTHER_SECRET_KEY));
+
+        assertNotSame(signingKey, rotatedKey);
+        assertEquals(1, cache.size());
+        assertSame(rotatedKey, cache.getSigningKey(new HMACCredentials("Acquia", "1",
+            OTHER_SECRET_KEY)));
+        assertSame(rotatedKey, cache.getSigningKey("1", OTHER_SECRET_KEY));
+    }
+
+}